@@ -0,0 +1,60 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/***********************************************************************************
+ * Chatlog appends and HISTORY pages for bench.ChatlogAppendBenchmark and          *
+ * bench.HistoryBenchmark                                                          *
+ *                                                                                 *
+ * opens the backend empty (Derby under derby.system.home, which the benchmarks    *
+ * point at build/jmh/derby, segments under build/jmh/segments) and numbers rows   *
+ * as the server does                                                              *
+ ***********************************************************************************/
+
+public class ChatlogFixture implements bench.HotPaths.Chatlog {
+
+    private ChatlogBackend store;
+    private final long time = System.currentTimeMillis();
+    private long nextId = 1;
+    private final List<ChatlogEntry> batch = new ArrayList<ChatlogEntry>();
+
+    public void open(String backend) throws IOException {
+        ServerConfig config = ServerConfig.fromSystemProperties();
+        config.logBackend = ServerConfig.LogBackend.valueOf(backend);
+        config.logSegmentDir = "build" + File.separator + "jmh" + File.separator + "segments";
+        store = ChatlogBackend.create(config);
+        store.open(true);
+    }
+
+    public int appendOne() throws IOException {
+        return store.append(Collections.singletonList(entry(nextId++)));
+    }
+
+    public int appendBatch(int size) throws IOException {
+        batch.clear();
+        for(int i = 0; i < size; ++i)
+            batch.add(entry(nextId++));
+        return store.append(batch);
+    }
+
+    /** append rows in writer-sized batches until the chatlog holds this many **/
+    public void fill(int rows) throws IOException {
+        while(nextId <= rows)
+            appendBatch((int) Math.min(200, rows - nextId + 1));
+    }
+
+    public Object page(long beforeId, int limit) throws IOException {
+        return store.page(ChatlogEntry.DEFAULT_ROOM, beforeId, limit);
+    }
+
+    public void close() {
+        store.close();
+    }
+
+    private ChatlogEntry entry(long id) {
+        return new ChatlogEntry(id, time + id, "user" + (id % 100), ChatlogEntry.DEFAULT_ROOM,
+                "hello everyone, this is chat line number " + id);
+    }
+}
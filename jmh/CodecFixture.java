@@ -0,0 +1,45 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/***********************************************************************************
+ * ChatMessage round trips for bench.CodecBenchmark                                *
+ ***********************************************************************************/
+
+public class CodecFixture implements bench.HotPaths.Codec {
+
+    private final ChatMessage message = new ChatMessage(ChatMessage.MESSAGE, "hello everyone, this is a typical chat line");
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final ObjectOutputStream out;
+    private final byte[] serialized; // a stream header then the message, as a client's stream starts
+    private final byte[] encoded;
+
+    public CodecFixture() throws IOException {
+        out = new ObjectOutputStream(bytes);
+        ByteArrayOutputStream whole = new ByteArrayOutputStream();
+        try(ObjectOutputStream wholeOut = new ObjectOutputStream(whole)) {
+            wholeOut.writeObject(message);
+        }
+        serialized = whole.toByteArray();
+        encoded = ChatCodec.encode(message);
+    }
+
+    public Object serializeLegacy() throws IOException {
+        bytes.reset();
+        out.reset(); // as a client does between messages
+        out.writeObject(message);
+        out.flush();
+        return bytes.size();
+    }
+
+    public Object deserializeLegacy() throws IOException, ClassNotFoundException {
+        return new ObjectInputStream(new ByteArrayInputStream(serialized)).readObject();
+    }
+
+    public Object encodeBinary() {
+        return ChatCodec.encode(message);
+    }
+
+    public Object decodeBinary() throws IOException {
+        return ChatCodec.decode(ByteBuffer.wrap(encoded), 1 << 20);
+    }
+}
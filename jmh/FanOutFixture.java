@@ -0,0 +1,43 @@
+/***********************************************************************************
+ * broadcast fan-out for bench.FanOutBenchmark                                     *
+ *                                                                                 *
+ * a server that is never started (no sockets, no chatlog writer) with in-process  *
+ * clients in its default room; one of them sends every message                    *
+ ***********************************************************************************/
+
+public class FanOutFixture implements bench.HotPaths.FanOut {
+
+    private final ChatMessage message = new ChatMessage(ChatMessage.MESSAGE, "hello everyone, this is a typical chat line");
+    private Server.ClientConnection sender;
+
+    public void open(int recipients) {
+        ServerConfig config = ServerConfig.fromSystemProperties();
+        config.consoleLevel = ServerLog.Level.WARN; // no console line per broadcast
+        config.metricsJmx = false;
+        config.historyCacheSize = 16;
+        Server server = new Server(config, null);
+        sender = recipient(server, "sender");
+        for(int i = 1; i < recipients; ++i)
+            recipient(server, "user" + i);
+    }
+
+    public Object broadcast() {
+        return sender.handle(message);
+    }
+
+    /** an in-process client whose queue is emptied whenever it would fill, so it is never slow **/
+    private static Server.ClientConnection recipient(Server server, String name) {
+        Server.ClientConnection client = server.new ClientConnection() {
+            void wakeWriter() {
+                if(outbound.remainingCapacity() == 0)
+                    outbound.clear();
+            }
+            void close() {
+                closed = true;
+            }
+        };
+        client.username = name;
+        server.add(client);
+        return client;
+    }
+}
@@ -0,0 +1,18 @@
+/***********************************************************************************
+ * sendMsg framing for bench.FramingBenchmark                                      *
+ ***********************************************************************************/
+
+public class FramingFixture implements bench.HotPaths.Framing {
+
+    private final String text = "12:00:00 <alice>: hello everyone, this is a typical chat line";
+
+    public Object legacy() {
+        return Frame.of(text).bytes(ChatCodec.Protocol.LEGACY);
+    }
+
+    public Object legacyAndBinary() {
+        Frame frame = Frame.of(text);
+        frame.bytes(ChatCodec.Protocol.LEGACY);
+        return frame.bytes(ChatCodec.Protocol.BINARY);
+    }
+}
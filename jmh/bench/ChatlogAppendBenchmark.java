@@ -0,0 +1,51 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/***********************************************************************************
+ * chatlog inserts, one row at a time and in batches                               *
+ *                                                                                 *
+ * on both backends: the embedded Derby database and the segment files; the time   *
+ * is per row, so the two benchmarks compare directly; every fork starts from an   *
+ * empty chatlog under build/jmh                                                   *
+ ***********************************************************************************/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Dderby.system.home=build/jmh/derby")
+public class ChatlogAppendBenchmark {
+
+    static final int BATCH = 200; // rows per batch, the writer's default (chat.log.batchSize)
+
+    @Param({ "DERBY", "SEGMENTS" })
+    public String backend;
+
+    private HotPaths.Chatlog chatlog;
+
+    @Setup
+    public void setUp() throws Exception {
+        chatlog = HotPaths.load(HotPaths.Chatlog.class);
+        chatlog.open(backend);
+    }
+
+    @TearDown
+    public void tearDown() {
+        chatlog.close();
+    }
+
+    @Benchmark
+    public int single() throws Exception {
+        return chatlog.appendOne();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int batch() throws Exception {
+        return chatlog.appendBatch(BATCH);
+    }
+}
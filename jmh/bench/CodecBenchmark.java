@@ -0,0 +1,48 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/***********************************************************************************
+ * ChatMessage serialization and deserialization                                   *
+ *                                                                                 *
+ * the legacy object stream (what existing clients send and read) and the binary   *
+ * codec negotiated at handshake, for one typical chat line                        *
+ ***********************************************************************************/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CodecBenchmark {
+
+    private HotPaths.Codec codec;
+
+    @Setup
+    public void setUp() {
+        codec = HotPaths.load(HotPaths.Codec.class);
+    }
+
+    @Benchmark
+    public Object legacySerialize() throws Exception {
+        return codec.serializeLegacy();
+    }
+
+    @Benchmark
+    public Object legacyDeserialize() throws Exception {
+        return codec.deserializeLegacy();
+    }
+
+    @Benchmark
+    public Object binaryEncode() {
+        return codec.encodeBinary();
+    }
+
+    @Benchmark
+    public Object binaryDecode() throws Exception {
+        return codec.decodeBinary();
+    }
+}
@@ -0,0 +1,38 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/***********************************************************************************
+ * broadcast fan-out                                                               *
+ *                                                                                 *
+ * one MESSAGE through the server's handler to every member of the default room,   *
+ * for rooms of 10 to 10k in-process recipients whose queues are emptied as they   *
+ * fill, so none is ever treated as a slow consumer                                *
+ ***********************************************************************************/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class FanOutBenchmark {
+
+    @Param({ "10", "100", "1000", "10000" })
+    public int recipients;
+
+    private HotPaths.FanOut fanOut;
+
+    @Setup
+    public void setUp() {
+        fanOut = HotPaths.load(HotPaths.FanOut.class);
+        fanOut.open(recipients);
+    }
+
+    @Benchmark
+    public Object broadcast() {
+        return fanOut.broadcast();
+    }
+}
@@ -0,0 +1,38 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/***********************************************************************************
+ * sendMsg framing                                                                 *
+ *                                                                                 *
+ * a line encoded once as a Frame: the object stream bytes every frame carries,    *
+ * and those plus the binary encoding built for the first binary client            *
+ ***********************************************************************************/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class FramingBenchmark {
+
+    private HotPaths.Framing framing;
+
+    @Setup
+    public void setUp() {
+        framing = HotPaths.load(HotPaths.Framing.class);
+    }
+
+    @Benchmark
+    public Object legacy() {
+        return framing.legacy();
+    }
+
+    @Benchmark
+    public Object legacyAndBinary() {
+        return framing.legacyAndBinary();
+    }
+}
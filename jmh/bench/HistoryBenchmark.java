@@ -0,0 +1,57 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/***********************************************************************************
+ * HISTORY retrieval at different chatlog sizes                                    *
+ *                                                                                 *
+ * one page of the default room from a chatlog of 1k, 10k or 100k rows, on both    *
+ * backends: the newest page (what a client asks for first) and pages from random  *
+ * points further back (paging through older history); this measures the           *
+ * backend alone, without the in-memory cache of recent lines in front of it       *
+ ***********************************************************************************/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Dderby.system.home=build/jmh/derby")
+public class HistoryBenchmark {
+
+    static final int PAGE = 50; // lines per page, the server's default (chat.history.pageSize)
+
+    @Param({ "DERBY", "SEGMENTS" })
+    public String backend;
+
+    @Param({ "1000", "10000", "100000" })
+    public int rows;
+
+    private HotPaths.Chatlog chatlog;
+    private final Random random = new Random(1);
+
+    @Setup
+    public void setUp() throws Exception {
+        chatlog = HotPaths.load(HotPaths.Chatlog.class);
+        chatlog.open(backend);
+        chatlog.fill(rows);
+    }
+
+    @TearDown
+    public void tearDown() {
+        chatlog.close();
+    }
+
+    @Benchmark
+    public Object latest() throws Exception {
+        return chatlog.page(Long.MAX_VALUE, PAGE);
+    }
+
+    @Benchmark
+    public Object random() throws Exception {
+        return chatlog.page(1 + random.nextInt(rows), PAGE);
+    }
+}
@@ -0,0 +1,56 @@
+package bench;
+
+/***********************************************************************************
+ * What the benchmarks in this package measure                                     *
+ *                                                                                 *
+ * the server's classes are in the default package, which a named package cannot   *
+ * refer to, while JMH only generates benchmarks for named packages; so each       *
+ * benchmark loads a fixture that lives next to the server classes (the class      *
+ * named after its interface plus "Fixture") and calls it through one of these     *
+ * interfaces, a call site with a single receiver that the JIT inlines             *
+ ***********************************************************************************/
+
+public final class HotPaths {
+
+    /** ChatMessage round trips: legacy object stream and binary codec **/
+    public interface Codec {
+        Object serializeLegacy() throws Exception;
+        Object deserializeLegacy() throws Exception;
+        Object encodeBinary();
+        Object decodeBinary() throws Exception;
+    }
+
+    /** what sendMsg does to a line before it reaches a client's queue **/
+    public interface Framing {
+        Object legacy();
+        Object legacyAndBinary();
+    }
+
+    /** a MESSAGE handled by the server and fanned out to every member of its room **/
+    public interface FanOut {
+        void open(int recipients);
+        Object broadcast();
+    }
+
+    /** appends to and HISTORY pages from one chatlog backend **/
+    public interface Chatlog {
+        void open(String backend) throws Exception;
+        int appendOne() throws Exception;
+        int appendBatch(int size) throws Exception;
+        void fill(int rows) throws Exception;
+        Object page(long beforeId, int limit) throws Exception;
+        void close();
+    }
+
+    private HotPaths() {}
+
+    /** a new instance of the fixture implementing type **/
+    static <T> T load(Class<T> type) {
+        try {
+            return type.cast(Class.forName(type.getSimpleName() + "Fixture").getDeclaredConstructor().newInstance());
+        }
+        catch(ReflectiveOperationException e) {
+            throw new IllegalStateException("no fixture for " + type.getSimpleName(), e);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/***********************************************************************************
+ * Compact binary wire protocol, negotiated per connection                         *
+ *                                                                                 *
+ * handshake:                                                                      *
+ *   server -> client  object stream header (AC ED 00 05), as it always has been   *
+ *   client -> server  either an object stream (legacy client) or                  *
+ *                     "SYNC" version:u8 nameLength:u16 name:UTF-8                 *
+ *                     [lastSeen:i64, version 2: resume after this sequence, 0     *
+ *                     for a new session]                                          *
+ *   server -> client  "SYNC" version:u8 (the version both sides will use)         *
+ *                                                                                 *
+ * every message after the handshake, in both directions:                          *
+ *   length:i32 (type byte plus payload) type:u8 payload:UTF-8                     *
+ *                                                                                 *
+ * the type byte carries the ChatMessage type codes; the server sends chat text    *
+ * as MESSAGE frames and heartbeats as empty PING and PONG frames, which either    *
+ * side may send; a frame that names a room or user (ROOM_MESSAGE, DIRECT,         *
+ * or USERLIST and HISTORY for another room) has the TARGET flag (0x80) set in     *
+ * its type, and its payload starts with targetLength:u16 target:UTF-8; from       *
+ * version 2 a chat line the server stores has the SEQUENCE flag (0x40) set, and   *
+ * its payload starts with sequence:i64, the line's chatlog id                     *
+ ***********************************************************************************/
+
+final class ChatCodec {
+
+    /** wire format of one connection **/
+    enum Protocol { LEGACY, BINARY }
+
+    static final byte[] MAGIC = { 'S', 'Y', 'N', 'C' };
+    static final int VERSION = 2; // highest protocol version this server speaks
+    static final int SEQUENCED = 2; // first version with resume and sequence numbers
+    static final int TARGET = 0x80; // type flag: the payload starts with a room or user name
+    static final int SEQUENCE = 0x40; // type flag: the payload starts with the server's sequence number
+
+    /** what the client sent in its binary hello **/
+    static final class Hello {
+        final int version; // version to use (the lower of the client's and ours)
+        final String username;
+        final long lastSeen; // sequence the client last received before reconnecting, 0 for none
+
+        Hello(int version, String username, long lastSeen) {
+            this.version = version;
+            this.username = username;
+            this.lastSeen = lastSeen;
+        }
+    }
+
+    private ChatCodec() {}
+
+    /** protocol chosen by the first four bytes the client sent, null if they have not all arrived **/
+    static Protocol detect(ByteBuffer in) throws StreamCorruptedException {
+        if(in.remaining() < 4)
+            return null;
+        int p = in.position();
+        if(in.getShort(p) == ObjectStreamConstants.STREAM_MAGIC)
+            return Protocol.LEGACY;
+        for(int i = 0; i < MAGIC.length; ++i)
+            if(in.get(p + i) != MAGIC[i])
+                throw new StreamCorruptedException("unknown protocol");
+        return Protocol.BINARY;
+    }
+
+    /** consume a complete binary hello, or return null (consuming nothing) if more bytes are needed **/
+    static Hello decodeHello(ByteBuffer in) throws StreamCorruptedException {
+        int p = in.position();
+        if(in.remaining() < MAGIC.length + 3)
+            return null;
+        int clientVersion = in.get(p + MAGIC.length) & 0xFF;
+        int nameLength = in.getShort(p + MAGIC.length + 1) & 0xFFFF;
+        int resumeLength = clientVersion >= SEQUENCED ? 8 : 0;
+        if(in.remaining() < MAGIC.length + 3 + nameLength + resumeLength)
+            return null;
+        int version = checkVersion(clientVersion);
+        in.position(p + MAGIC.length + 3);
+        String username = utf8(in, nameLength);
+        return new Hello(version, username, resumeLength > 0 ? in.getLong() : 0);
+    }
+
+    /** read a binary hello from a blocking stream (the magic has not been consumed yet) **/
+    static Hello readHello(DataInputStream in) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        int clientVersion = in.readUnsignedByte();
+        int version = checkVersion(clientVersion);
+        byte[] name = new byte[in.readUnsignedShort()];
+        in.readFully(name);
+        long lastSeen = clientVersion >= SEQUENCED ? in.readLong() : 0;
+        return new Hello(version, new String(name, StandardCharsets.UTF_8), lastSeen);
+    }
+
+    /** a binary client's hello (used by the load generator) **/
+    static byte[] encodeHello(int version, String username, long lastSeen) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer out = ByteBuffer.allocate(MAGIC.length + 3 + name.length + (version >= SEQUENCED ? 8 : 0));
+        out.put(MAGIC).put((byte) version).putShort((short) name.length).put(name);
+        if(version >= SEQUENCED)
+            out.putLong(lastSeen);
+        return out.array();
+    }
+
+    /** the server's reply to a hello **/
+    static byte[] encodeHelloReply(int version) {
+        byte[] out = new byte[MAGIC.length + 1];
+        System.arraycopy(MAGIC, 0, out, 0, MAGIC.length);
+        out[MAGIC.length] = (byte) version;
+        return out;
+    }
+
+    private static int checkVersion(int clientVersion) throws StreamCorruptedException {
+        if(clientVersion < 1)
+            throw new StreamCorruptedException("unsupported protocol version " + clientVersion);
+        return Math.min(clientVersion, VERSION);
+    }
+
+    /** encode one message frame **/
+    static byte[] encode(int type, String payload) {
+        byte[] text = payload.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer out = ByteBuffer.allocate(5 + text.length);
+        out.putInt(1 + text.length).put((byte) type).put(text);
+        return out.array();
+    }
+
+    /** encode a stored chat line with its sequence number (version 2 clients) **/
+    static byte[] encodeSequenced(int type, long sequence, String payload) {
+        byte[] text = payload.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer out = ByteBuffer.allocate(13 + text.length);
+        out.putInt(9 + text.length).put((byte) (type | SEQUENCE)).putLong(sequence).put(text);
+        return out.array();
+    }
+
+    /** encode a client's message, with its room or recipient when it names one **/
+    static byte[] encode(ChatMessage message) {
+        if(message.getTarget() == null)
+            return encode(message.getType(), message.getMessage());
+        byte[] target = message.getTarget().getBytes(StandardCharsets.UTF_8);
+        byte[] text = message.getMessage().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer out = ByteBuffer.allocate(7 + target.length + text.length);
+        out.putInt(3 + target.length + text.length).put((byte) (message.getType() | TARGET));
+        out.putShort((short) target.length).put(target).put(text);
+        return out.array();
+    }
+
+    /**
+     * consume one complete frame from the buffer and return it, or return null (consuming
+     * nothing) if the whole frame has not arrived yet
+     **/
+    static ChatMessage decode(ByteBuffer in, int maxFrameBytes) throws StreamCorruptedException {
+        if(in.remaining() < 4)
+            return null;
+        int p = in.position();
+        int length = checkLength(in.getInt(p), maxFrameBytes);
+        if(in.remaining() < 4 + length)
+            return null;
+        int type = in.get(p + 4) & 0xFF;
+        in.position(p + 5);
+        if((type & SEQUENCE) != 0) {
+            if(length < 9)
+                throw new StreamCorruptedException("invalid sequenced frame");
+            long sequence = in.getLong();
+            return ChatMessage.sequenced(type & ~SEQUENCE, sequence, utf8(in, length - 9));
+        }
+        if((type & TARGET) == 0)
+            return new ChatMessage(type, utf8(in, length - 1));
+        type &= ~TARGET;
+        int targetLength = length < 3 ? -1 : in.getShort(p + 5) & 0xFFFF;
+        if(targetLength < 0 || 3 + targetLength > length)
+            throw new StreamCorruptedException("invalid target length in frame");
+        in.position(p + 7);
+        String target = utf8(in, targetLength);
+        String text = utf8(in, length - 3 - targetLength);
+        return type == ChatMessage.DIRECT ? ChatMessage.direct(target, text) : new ChatMessage(type, target, text);
+    }
+
+    /** reads frames from a blocking stream into a reusable buffer **/
+    static final class StreamDecoder {
+        private final DataInputStream in;
+        private final int maxFrameBytes;
+        private ByteBuffer buffer = ByteBuffer.allocate(256); // grown as needed, reused for every frame
+
+        StreamDecoder(DataInputStream in, int maxFrameBytes) {
+            this.in = in;
+            this.maxFrameBytes = maxFrameBytes;
+        }
+
+        ChatMessage read() throws IOException {
+            int length = checkLength(in.readInt(), maxFrameBytes);
+            if(buffer.capacity() < 4 + length)
+                buffer = ByteBuffer.allocate(Math.max(4 + length, buffer.capacity() * 2));
+            buffer.clear();
+            buffer.putInt(length);
+            in.readFully(buffer.array(), 4, length);
+            buffer.limit(4 + length).position(0);
+            return decode(buffer, maxFrameBytes);
+        }
+    }
+
+    private static int checkLength(int length, int maxFrameBytes) throws StreamCorruptedException {
+        if(length < 1 || length > maxFrameBytes)
+            throw new StreamCorruptedException("invalid frame length " + length);
+        return length;
+    }
+
+    /** decode and consume length bytes of UTF-8, without copying from heap buffers **/
+    private static String utf8(ByteBuffer in, int length) {
+        String s;
+        if(in.hasArray()) {
+            s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        }
+        else {
+            byte[] bytes = new byte[length];
+            in.duplicate().get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        in.position(in.position() + length);
+        return s;
+    }
+}
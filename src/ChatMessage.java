@@ -16,17 +16,50 @@ public class ChatMessage implements Serializable {
     * MESSAGE an ordinary message
     * LOGOUT to disconnect from the Server
     * HISTORY to view chatlog history
+    * JOIN to enter the room named by the message (and make it the current room)
+    * LEAVE to leave the room named by the message (the current room if empty)
+    * ROOM_MESSAGE an ordinary message to the room given by getRoom()
+    * DIRECT a private message to the user given by getRecipient()
+    * PING asks the other side to answer with a PONG (either side may send it)
+    * PONG the answer to a PING
+    * SEARCH to find chatlog lines holding the words of the message ("page N words" for later pages)
+    *
+    * USERLIST, HISTORY and SEARCH apply to getRoom() when it is set, otherwise to the current room;
+    * the server only sends PING and PONG to binary protocol clients (object stream clients
+    * receive nothing but Strings), but any client may send PING to keep its connection alive
     */
-    static final int USERLIST = 0, MESSAGE = 1, LOGOUT = 2, HISTORY = 3;
+    static final int USERLIST = 0, MESSAGE = 1, LOGOUT = 2, HISTORY = 3, JOIN = 4, LEAVE = 5, ROOM_MESSAGE = 6,
+            DIRECT = 7, PING = 8, PONG = 9, SEARCH = 10;
     private int type;
     private String message;
+    private String room; // target room, null for the current room (absent from older clients' objects)
+    private String recipient; // username a DIRECT message is for
+    private transient long sequence; // chatlog id of a stored line the server sent (binary version 2), else 0
 
     // mutator constructor
     ChatMessage(int type, String message) {
+        this(type, null, message);
+    }
+    ChatMessage(int type, String room, String message) {
         this.type = type;
+        this.room = room;
         this.message = message;
     }
 
+    /** a private message for one user **/
+    static ChatMessage direct(String recipient, String message) {
+        ChatMessage direct = new ChatMessage(DIRECT, message);
+        direct.recipient = recipient;
+        return direct;
+    }
+
+    /** a stored chat line as a binary version 2 client receives it **/
+    static ChatMessage sequenced(int type, long sequence, String message) {
+        ChatMessage sequenced = new ChatMessage(type, message);
+        sequenced.sequence = sequence;
+        return sequenced;
+    }
+
     // accessors
     int getType() {
         return type;
@@ -34,4 +67,17 @@ public class ChatMessage implements Serializable {
     String getMessage() {
         return message;
     }
+    String getRoom() {
+        return room;
+    }
+    String getRecipient() {
+        return recipient;
+    }
+    long getSequence() {
+        return sequence;
+    }
+    /** the room or user the message names, null if it names neither **/
+    String getTarget() {
+        return type == DIRECT ? recipient : room;
+    }
 }
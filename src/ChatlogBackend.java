@@ -0,0 +1,57 @@
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+/***********************************************************************************
+ * Where the chatlog is stored                                                     *
+ *                                                                                 *
+ * DERBY     one row per entry in the embedded database (ChatlogStore)             *
+ * SEGMENTS  length-prefixed records in memory-mapped segment files                *
+ *           (ChatlogSegmentStore)                                                 *
+ *                                                                                 *
+ * the writer thread is the only caller of append(); page() and get() may be       *
+ * called from any thread at the same time                                         *
+ ***********************************************************************************/
+
+interface ChatlogBackend {
+
+    /** the backend chosen by the chat.log.backend setting **/
+    static ChatlogBackend create(ServerConfig config) {
+        if(config.logBackend == ServerConfig.LogBackend.SEGMENTS)
+            return new ChatlogSegmentStore(config);
+        return new ChatlogStore(config);
+    }
+
+    /** prepare the stored chatlog for use, emptying it first if reset is true **/
+    void open(boolean reset) throws IOException;
+
+    /** the largest id stored (0 if the chatlog is empty) **/
+    long lastId() throws IOException;
+
+    /** store entries, returning how many were rejected (e.g. too large) and skipped **/
+    int append(List<ChatlogEntry> entries) throws IOException;
+
+    /** up to limit messages of a room (of every room if room is null) with ids below beforeId, oldest first **/
+    List<ChatlogEntry> page(String room, long beforeId, int limit) throws IOException;
+
+    /** up to limit of the newest messages of a room with ids above afterId, oldest first (what a resuming client missed) **/
+    List<ChatlogEntry> since(String room, long afterId, int limit) throws IOException;
+
+    /** the stored entries with these ids, lowest id first; ids not stored (e.g. removed by retention) are left out **/
+    List<ChatlogEntry> get(Collection<Long> ids) throws IOException;
+
+    /**
+     * stored entries posted before the cutoff, lowest ids first, about limit of them
+     * (a backend may return a whole storage unit); empty when nothing has expired
+     **/
+    List<ChatlogEntry> expired(long cutoff, int limit) throws IOException;
+
+    /** remove entries returned by expired(), returning how many were removed **/
+    int remove(List<ChatlogEntry> expired, long cutoff) throws IOException;
+
+    /** release files and connections **/
+    void close();
+
+    /** one line summary of the backend's activity **/
+    String stats();
+}
@@ -0,0 +1,100 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/***********************************************************************************
+ * Benchmark comparing the Derby and segment-file chatlog backends                 *
+ *                                                                                 *
+ * each backend is opened empty, fed entries in writer-sized batches, and then     *
+ * asked for the latest HISTORY page and for pages at random points in the log;    *
+ * append throughput and page latency percentiles are reported per backend         *
+ *                                                                                 *
+ *   > java ChatlogBenchmark [entries] [pages]                                     *
+ *                                                                                 *
+ * (the Derby run needs derby.jar on the classpath and is skipped without it;      *
+ *  both backends write under the current directory, to ChatlogDB and a            *
+ *  ChatlogBenchmarkSegments directory, and start from an empty chatlog)           *
+ ***********************************************************************************/
+
+public class ChatlogBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int pages = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        for(ServerConfig.LogBackend backend : ServerConfig.LogBackend.values()) {
+            ServerConfig config = ServerConfig.fromSystemProperties();
+            config.logBackend = backend;
+            config.logSegmentDir = "ChatlogBenchmarkSegments";
+            try {
+                run(config, entries, pages);
+            }
+            catch(IOException e) {
+                System.out.println(backend + ": skipped (" + e.getMessage() + ")");
+            }
+        }
+    }
+
+    /** fill one backend and time appends and history pages **/
+    private static void run(ServerConfig config, int entries, int pages) throws IOException {
+        ChatlogBackend store = ChatlogBackend.create(config);
+        store.open(true);
+        try {
+            Random random = new Random(42);
+            int batchSize = Math.max(1, config.logBatchSize);
+            List<ChatlogEntry> batch = new ArrayList<ChatlogEntry>(batchSize);
+            long time = System.currentTimeMillis() - entries;
+            long start = System.nanoTime();
+            for(int id = 1; id <= entries; ++id) {
+                // mostly chat in the main room, with some server events mixed in
+                batch.add(id % 10 == 0
+                        ? new ChatlogEntry(id, time + id, null, null, "User" + random.nextInt(1000) + " has connected.")
+                        : new ChatlogEntry(id, time + id, "User" + random.nextInt(1000), ChatlogEntry.DEFAULT_ROOM,
+                                message(random)));
+                if(batch.size() == batchSize || id == entries) {
+                    store.append(batch);
+                    batch.clear();
+                }
+            }
+            long appendNanos = System.nanoTime() - start;
+
+            long[] latest = new long[pages];
+            long[] older = new long[pages];
+            for(int i = 0; i < pages; ++i) {
+                long pageStart = System.nanoTime();
+                store.page(ChatlogEntry.DEFAULT_ROOM, Long.MAX_VALUE, config.historyPageSize);
+                latest[i] = System.nanoTime() - pageStart;
+                long before = 1 + random.nextInt(entries);
+                pageStart = System.nanoTime();
+                store.page(ChatlogEntry.DEFAULT_ROOM, before, config.historyPageSize);
+                older[i] = System.nanoTime() - pageStart;
+            }
+
+            System.out.println(config.logBackend + ": " + entries + " entries in " + appendNanos / 1000000 + " ms ("
+                    + (long) (entries / (appendNanos / 1e9)) + "/s), pages of " + config.historyPageSize
+                    + ": latest " + percentiles(latest) + ", random " + percentiles(older));
+            System.out.println("    " + store.stats());
+        }
+        finally {
+            store.close();
+        }
+    }
+
+    private static String message(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int words = 3 + random.nextInt(15);
+        for(int i = 0; i < words; ++i)
+            sb.append(i == 0 ? "" : " ").append(Long.toString(random.nextLong() & 0xFFFFFF, 36));
+        return sb.toString();
+    }
+
+    private static String percentiles(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return "p50 " + sorted[sorted.length / 2] / 1000 + " us, p99 "
+                + sorted[Math.min(sorted.length - 1, (int) (sorted.length * 0.99))] / 1000 + " us";
+    }
+}
@@ -0,0 +1,85 @@
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/***********************************************************************************
+ * One row of the Chatlog table                                                    *
+ *                                                                                 *
+ * chat messages carry the sender and room; server events have neither             *
+ ***********************************************************************************/
+
+final class ChatlogEntry {
+
+    static final String DEFAULT_ROOM = "main"; // room every client joins when it connects
+
+    private static final DateTimeFormatter TIME =
+            DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    final long id; // server-assigned, increases with every entry
+    final long time; // epoch millis when the server received it
+    final String sender; // username, null for server events
+    final String room; // room name, null for server events
+    final String message; // message text as typed (or the event text)
+
+    ChatlogEntry(long id, long time, String sender, String room, String message) {
+        this.id = id;
+        this.time = time;
+        this.sender = sender;
+        this.room = room;
+        this.message = message;
+    }
+
+    /**
+     * the line as clients and the UI show it, e.g. "12:51:43 <User1023>: hello", with the room
+     * named for rooms other than the default one: "12:51:43 [dev] <User1023>: hello"
+     **/
+    String line() {
+        String stamp = TIME.format(Instant.ofEpochMilli(time));
+        if(room != null && !room.equals(DEFAULT_ROOM))
+            stamp += " [" + room + "]";
+        return sender == null ? stamp + " " + message : stamp + " <" + sender + ">: " + message;
+    }
+
+    /** the entry as one line of tab-separated text (spill and archive files): id, time, sender, room, message **/
+    String toRecord() {
+        return id + "\t" + time + "\t" + escape(sender) + "\t" + escape(room) + "\t" + escape(message);
+    }
+
+    /** parse a line written by toRecord(), or return null if it is incomplete **/
+    static ChatlogEntry fromRecord(String record) {
+        String[] fields = record.split("\t", -1);
+        if(fields.length != 5)
+            return null;
+        try {
+            return new ChatlogEntry(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                    unescape(fields[2]), unescape(fields[3]), unescape(fields[4]));
+        }
+        catch(NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** escape a record field so it holds no tabs or newlines (null becomes \N) **/
+    private static String escape(String field) {
+        if(field == null)
+            return "\\N";
+        return field.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    /** reverse the escaping applied by escape() **/
+    private static String unescape(String field) {
+        if(field.equals("\\N"))
+            return null;
+        StringBuilder sb = new StringBuilder(field.length());
+        for(int i = 0; i < field.length(); ++i) {
+            char c = field.charAt(i);
+            if(c == '\\' && i + 1 < field.length()) {
+                char next = field.charAt(++i);
+                sb.append(next == 'n' ? '\n' : next == 't' ? '\t' : next);
+            }
+            else
+                sb.append(c);
+        }
+        return sb.toString();
+    }
+}
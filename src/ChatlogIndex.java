@@ -0,0 +1,733 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/***********************************************************************************
+ * Inverted index over the stored chat lines, answering SEARCH                     *
+ *                                                                                 *
+ * every word of a line maps to the sorted ids of the lines in its room that use   *
+ * it (room and word together are the key), so a query only touches the postings   *
+ * of its own words; the chatlog writer adds each batch once it is stored          *
+ *                                                                                 *
+ * the index is kept in memory and logged to postings.log in its directory:        *
+ *   record:  length:i32 id:i64 room termCount:u16 terms (strings as writeUTF)     *
+ * a negative id records that line -id was removed (the retention job deletes it   *
+ * from the chatlog); once removed lines make up half the log, it is rewritten     *
+ * without them; at startup the log is replayed on a background thread, a torn     *
+ * last record is cut off, and lines the chatlog stored after the last logged one  *
+ * are indexed from it; searches made before that finishes are turned away         *
+ *                                                                                 *
+ * results are ranked by the summed rarity (idf) of the query words a line         *
+ * contains, newest first among equals                                             *
+ ***********************************************************************************/
+
+final class ChatlogIndex {
+
+    private static final String LOG_FILE = "postings.log";
+    private static final int MAX_TERM = 32; // longer words are not indexed
+    private static final char SEPARATOR = '\u0000'; // between room and word in a key
+    private static final int COMPACT_MIN = 10000; // removed lines logged before the log is worth rewriting
+
+    /** ids of the lines holding one word of one room, from first to size; sorted once sealed **/
+    private static final class Postings {
+        long[] ids = new long[4];
+        int first; // ids before it were removed (lines expire oldest first, so removing them mostly moves it)
+        int size;
+        boolean sorted = true;
+
+        int count() {
+            return size - first;
+        }
+
+        /** add an id in any order (loading); seal() sorts before the postings are read **/
+        void append(long id) {
+            if(size == ids.length)
+                ids = Arrays.copyOf(ids, size * 2);
+            if(size > 0 && id <= ids[size - 1])
+                sorted = false;
+            ids[size++] = id;
+        }
+
+        /** sort and drop duplicate ids **/
+        void seal() {
+            if(sorted)
+                return;
+            Arrays.sort(ids, first, size);
+            int kept = first;
+            for(int i = first; i < size; ++i)
+                if(kept == first || ids[i] != ids[kept - 1])
+                    ids[kept++] = ids[i];
+            size = kept;
+            sorted = true;
+        }
+
+        boolean contains(long id) {
+            return Arrays.binarySearch(ids, first, size, id) >= 0;
+        }
+
+        /** add an id to sealed postings, keeping them sorted; false if it is already there **/
+        boolean add(long id) {
+            if(size == first || id > ids[size - 1]) {
+                append(id);
+                return true;
+            }
+            int at = Arrays.binarySearch(ids, first, size, id);
+            if(at >= 0)
+                return false;
+            at = -at - 1; // a late spilled line: rare, so an array copy is fine
+            if(size == ids.length)
+                ids = Arrays.copyOf(ids, size * 2);
+            System.arraycopy(ids, at, ids, at + 1, size - at);
+            ids[at] = id;
+            ++size;
+            return true;
+        }
+
+        /** remove the sorted ids gone[0..count) from sealed postings (ids not there are skipped) **/
+        void remove(long[] gone, int count) {
+            int g = 0;
+            while(g < count && first < size && gone[g] <= ids[first]) { // the oldest ids: just move first
+                if(gone[g++] == ids[first])
+                    ++first;
+            }
+            if(g < count && first < size) { // anything newer: close the gaps from the first one up
+                int at = Arrays.binarySearch(ids, first, size, gone[g]);
+                int kept = at < 0 ? -at - 1 : at;
+                for(int i = kept; i < size; ++i) {
+                    while(g < count && gone[g] < ids[i])
+                        ++g;
+                    if(g < count && gone[g] == ids[i])
+                        ++g;
+                    else
+                        ids[kept++] = ids[i];
+                }
+                size = kept;
+            }
+            if(first > 0 && first >= count()) { // more removed than left: give the space back
+                ids = Arrays.copyOfRange(ids, first, first + Math.max(4, count()));
+                size -= first;
+                first = 0;
+            }
+        }
+    }
+
+    /** one page of ranked results **/
+    static final class Result {
+        final List<Long> ids; // best first
+        final boolean more; // whether a further page has results
+
+        Result(List<Long> ids, boolean more) {
+            this.ids = ids;
+            this.more = more;
+        }
+    }
+
+    /** a scored line while ranking **/
+    private static final class Hit {
+        final long id;
+        final double score;
+
+        Hit(long id, double score) {
+            this.id = id;
+            this.score = score;
+        }
+
+        boolean beats(double score, long id) {
+            return this.score > score || (this.score == score && this.id > id);
+        }
+    }
+
+    private static final Comparator<Hit> WORST_FIRST = new Comparator<Hit>() {
+        public int compare(Hit a, Hit b) {
+            return a.beats(b.score, b.id) ? 1 : b.beats(a.score, a.id) ? -1 : 0;
+        }
+    };
+
+    private final File directory;
+    private final File logFile;
+    private final Map<String, Postings> postings = new HashMap<String, Postings>(); // room + word (room alone: every line)
+    private final ReadWriteLock lock = new ReentrantReadWriteLock(); // the writer adds, searches read
+    private final Object pendingLock = new Object();
+    private List<ChatlogEntry> pending = new ArrayList<ChatlogEntry>(); // stored while loading, null once loaded
+    private List<ChatlogEntry> pendingRemoved = new ArrayList<ChatlogEntry>(); // removed while loading, null once loaded
+    private volatile boolean ready; // loaded and caught up with the chatlog
+    private boolean failed; // loading failed: nothing more is indexed (guarded by pendingLock)
+    private DataOutputStream log; // loader, then writer thread
+    private int logLines, logRemoved; // line and removal records in the log (guarded by the write lock)
+    private Thread loader;
+
+    // metrics
+    private volatile long loadMillis;
+    private final AtomicLong searches = new AtomicLong();
+    private final AtomicLong searchNanos = new AtomicLong();
+
+    ChatlogIndex(ServerConfig config) {
+        directory = new File(config.searchIndexDir);
+        logFile = new File(directory, LOG_FILE);
+    }
+
+    /** load the index in the background, catching up with lines the chatlog has that it is missing **/
+    void start(final ChatlogBackend store, final boolean reset) {
+        loader = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    load(store, reset);
+                }
+                catch(IOException e) {
+                    ServerLog.error("Error loading the search index, SEARCH is off: " + e.getMessage());
+                    synchronized(pendingLock) {
+                        pending = null;
+                        pendingRemoved = null;
+                        failed = true;
+                    }
+                }
+            }
+        }, "ChatlogIndexLoader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /** index a batch the writer has just stored (held until the index is loaded) **/
+    void add(List<ChatlogEntry> batch) {
+        synchronized(pendingLock) {
+            if(failed)
+                return;
+            if(pending != null) {
+                pending.addAll(batch);
+                return;
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            indexAndLog(batch);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * forget lines the retention job is about to delete from the chatlog (held until the index is
+     * loaded); removing them first means a crash in between leaves expired lines unsearchable,
+     * never a search finding lines that are gone
+     **/
+    void remove(List<ChatlogEntry> rows) {
+        synchronized(pendingLock) {
+            if(failed)
+                return;
+            if(pendingRemoved != null) {
+                pendingRemoved.addAll(rows);
+                return;
+            }
+        }
+        boolean compact;
+        lock.writeLock().lock();
+        try {
+            compact = removeAndLog(rows);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        if(compact)
+            compactQuietly();
+    }
+
+    /**
+     * rank the lines of a room containing any of the words and return those from offset to
+     * offset + count, or null while the index is still loading (or could not be loaded)
+     **/
+    Result search(String room, Collection<String> words, int offset, int count) {
+        if(!ready)
+            return null;
+        long start = System.nanoTime();
+        lock.readLock().lock();
+        try {
+            Postings lines = postings.get(room);
+            if(lines == null || lines.count() == 0)
+                return new Result(Collections.<Long>emptyList(), false);
+            List<Postings> lists = new ArrayList<Postings>();
+            List<Double> weights = new ArrayList<Double>();
+            for(String word : words) {
+                Postings list = postings.get(room + SEPARATOR + word);
+                if(list != null && list.count() > 0) {
+                    lists.add(list);
+                    weights.add(Math.log(1 + (double) lines.count() / list.count()));
+                }
+            }
+            return rank(lists, weights, offset, count);
+        }
+        finally {
+            lock.readLock().unlock();
+            searches.incrementAndGet();
+            searchNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * merge the postings newest first, keeping the best offset + count + 1 lines (MaxScore): once
+     * the kept lines set a bar, the rarest words whose weights together cannot reach it are only
+     * looked up (binary search) for lines found through the others, and ranking stops when the
+     * others run out
+     **/
+    private static Result rank(List<Postings> lists, List<Double> weights, int offset, int count) {
+        int n = lists.size();
+        int want = offset + count + 1; // one more than the page, to tell whether another follows
+        Integer[] order = new Integer[n]; // lightest (most common) word first
+        for(int i = 0; i < n; ++i)
+            order[i] = i;
+        final List<Double> w = weights;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(w.get(a), w.get(b));
+            }
+        });
+        long[][] ids = new long[n][];
+        int[] low = new int[n]; // position of the oldest id
+        int[] next = new int[n]; // position of the newest id not yet passed
+        double[] weight = new double[n];
+        double[] lighter = new double[n + 1]; // summed weight of the words before each
+        for(int i = 0; i < n; ++i) {
+            Postings list = lists.get(order[i]);
+            ids[i] = list.ids;
+            low[i] = list.first;
+            next[i] = list.size - 1;
+            weight[i] = weights.get(order[i]);
+            lighter[i + 1] = lighter[i] + weight[i];
+        }
+        PriorityQueue<Hit> best = new PriorityQueue<Hit>(want, WORST_FIRST);
+        int essential = 0; // words from here on are walked, the lighter ones only looked up
+        while(true) {
+            double bar = best.size() == want ? best.peek().score : -1; // an older line must score above it
+            while(essential < n && lighter[essential + 1] <= bar)
+                ++essential;
+            long id = Long.MIN_VALUE;
+            for(int i = essential; i < n; ++i)
+                if(next[i] >= low[i])
+                    id = Math.max(id, ids[i][next[i]]);
+            if(id == Long.MIN_VALUE)
+                break;
+            double score = 0;
+            for(int i = essential; i < n; ++i) {
+                if(next[i] >= low[i] && ids[i][next[i]] == id) {
+                    score += weight[i];
+                    --next[i];
+                }
+            }
+            for(int i = essential - 1; i >= 0 && score + lighter[i + 1] > bar; --i) {
+                int at = Arrays.binarySearch(ids[i], low[i], next[i] + 1, id);
+                if(at >= 0) {
+                    score += weight[i];
+                    next[i] = at - 1;
+                }
+                else
+                    next[i] = -at - 2;
+            }
+            if(best.size() < want)
+                best.add(new Hit(id, score));
+            else if(!best.peek().beats(score, id)) {
+                best.poll();
+                best.add(new Hit(id, score));
+            }
+        }
+        List<Hit> ranked = new ArrayList<Hit>(best);
+        Collections.sort(ranked, Collections.reverseOrder(WORST_FIRST));
+        List<Long> page = new ArrayList<Long>();
+        for(int i = offset; i < Math.min(ranked.size(), offset + count); ++i)
+            page.add(ranked.get(i).id);
+        return new Result(page, ranked.size() > offset + count);
+    }
+
+    /** the distinct lower-case words of a text, as they are indexed and searched **/
+    static Set<String> words(String text) {
+        Set<String> words = new LinkedHashSet<String>();
+        if(text == null)
+            return words;
+        int start = -1;
+        for(int i = 0; i <= text.length(); ++i) {
+            boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if(letter && start < 0)
+                start = i;
+            else if(!letter && start >= 0) {
+                if(i - start <= MAX_TERM)
+                    words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    /** stop loading and close the log **/
+    void close() {
+        if(loader != null)
+            loader.interrupt();
+        lock.writeLock().lock();
+        try {
+            if(log != null)
+                log.close();
+        }
+        catch(IOException e) {
+            ServerLog.warn("Error closing the search index: " + e.getMessage());
+        }
+        finally {
+            log = null;
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** one line summary of the index and its searches **/
+    String stats() {
+        int words = 0, lines = 0;
+        lock.readLock().lock();
+        try {
+            for(Map.Entry<String, Postings> entry : postings.entrySet()) {
+                if(entry.getKey().indexOf(SEPARATOR) < 0)
+                    lines += entry.getValue().count();
+                else
+                    ++words;
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+        long n = searches.get();
+        return "Search index: " + lines + " lines, " + words + " words"
+                + (ready ? ", loaded in " + loadMillis + " ms" : ", not loaded")
+                + ", " + n + " searches avg " + (n == 0 ? 0 : searchNanos.get() / n / 1000) + " us";
+    }
+
+    /** replay the log, index what the chatlog stored after it, then take over from the pending lines **/
+    private void load(ChatlogBackend store, boolean reset) throws IOException {
+        long start = System.currentTimeMillis();
+        if(!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("cannot create " + directory);
+        File file = logFile;
+        if(reset && file.exists() && !file.delete())
+            throw new IOException("cannot remove " + file);
+        compactFile().delete(); // left by a rewrite that did not finish
+        Map<String, Postings> removed = new HashMap<String, Postings>();
+        long indexed = replay(file, removed);
+        boolean compact;
+        lock.writeLock().lock();
+        try {
+            log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            // lines stored after the last logged one (the log is not forced to disk; the chatlog is)
+            long beforeId = Long.MAX_VALUE;
+            int caughtUp = 0;
+            while(!Thread.currentThread().isInterrupted()) {
+                List<ChatlogEntry> page = store.page(null, beforeId, 1000);
+                List<ChatlogEntry> missing = new ArrayList<ChatlogEntry>();
+                for(ChatlogEntry entry : page)
+                    if(entry.id > indexed)
+                        missing.add(entry);
+                for(ChatlogEntry entry : missing)
+                    for(String key : keys(entry))
+                        postings(key).append(entry.id);
+                writeLog(missing, false);
+                caughtUp += missing.size();
+                if(page.isEmpty() || page.get(0).id <= indexed)
+                    break;
+                beforeId = page.get(0).id;
+            }
+            for(Postings list : postings.values())
+                list.seal();
+            drop(removed);
+            synchronized(pendingLock) {
+                indexAndLog(pending);
+                pending = null;
+                removeAndLog(pendingRemoved);
+                pendingRemoved = null;
+            }
+            compact = compactDue();
+            ready = true;
+            loadMillis = System.currentTimeMillis() - start;
+            ServerLog.info("Search index loaded in " + loadMillis + " ms (" + caughtUp + " lines indexed from the chatlog).");
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        if(compact)
+            compactQuietly();
+    }
+
+    /**
+     * read the log into unsorted postings, and the removed lines into removed (to take out once the
+     * postings are sealed), cutting off a torn last record; the highest id read
+     **/
+    private long replay(File file, Map<String, Postings> removed) throws IOException {
+        long indexed = 0, good = 0;
+        if(!file.exists())
+            return 0;
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while(true) {
+                byte[] record;
+                try {
+                    int length = in.readInt();
+                    if(length <= 0)
+                        break;
+                    record = new byte[length];
+                    in.readFully(record);
+                }
+                catch(EOFException e) {
+                    break;
+                }
+                DataInputStream fields = new DataInputStream(new ByteArrayInputStream(record));
+                long id = fields.readLong();
+                Map<String, Postings> into = id < 0 ? removed : postings;
+                String room = fields.readUTF();
+                postings(into, room).append(Math.abs(id));
+                for(int terms = fields.readUnsignedShort(); terms > 0; --terms)
+                    postings(into, room + SEPARATOR + fields.readUTF()).append(Math.abs(id));
+                if(id < 0)
+                    ++logRemoved;
+                else
+                    ++logLines;
+                indexed = Math.max(indexed, id);
+                good += 4 + record.length;
+            }
+        }
+        if(file.length() > good) {
+            ServerLog.warn("Search index log ends in a partial record, cutting it off.");
+            try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(good);
+            }
+        }
+        return indexed;
+    }
+
+    /** add lines to the sealed postings and log those that were not already indexed (write lock held) **/
+    private void indexAndLog(List<ChatlogEntry> entries) {
+        List<ChatlogEntry> added = new ArrayList<ChatlogEntry>(entries.size());
+        for(ChatlogEntry entry : entries) {
+            if(entry.room == null || !postings(entry.room).add(entry.id))
+                continue; // server events are not searchable; an id already there was caught up from the chatlog
+            for(String word : words(entry.message))
+                postings(entry.room + SEPARATOR + word).add(entry.id);
+            added.add(entry);
+        }
+        try {
+            writeLog(added, false);
+        }
+        catch(IOException e) {
+            ServerLog.warn("Error writing the search index: " + e.getMessage()); // caught up from the chatlog next start
+        }
+    }
+
+    /** take indexed lines out of the postings and log their removal (write lock held); whether the log is due a rewrite **/
+    private boolean removeAndLog(List<ChatlogEntry> rows) {
+        Map<String, Postings> gone = new HashMap<String, Postings>();
+        List<ChatlogEntry> removed = new ArrayList<ChatlogEntry>(rows.size());
+        for(ChatlogEntry entry : rows) {
+            Postings lines = entry.room == null ? null : postings.get(entry.room);
+            if(lines == null || !lines.contains(entry.id))
+                continue;
+            for(String key : keys(entry))
+                postings(gone, key).append(entry.id);
+            removed.add(entry);
+        }
+        drop(gone);
+        try {
+            writeLog(removed, true);
+        }
+        catch(IOException e) {
+            ServerLog.warn("Error writing the search index: " + e.getMessage()); // back in the index after a restart, but gone from the chatlog
+        }
+        return compactDue();
+    }
+
+    /** remove the ids gathered for each key from its postings, forgetting keys left with none **/
+    private void drop(Map<String, Postings> gone) {
+        for(Map.Entry<String, Postings> entry : gone.entrySet()) {
+            Postings list = postings.get(entry.getKey());
+            if(list == null)
+                continue;
+            Postings ids = entry.getValue();
+            ids.seal();
+            list.remove(ids.ids, ids.size);
+            if(list.count() == 0)
+                postings.remove(entry.getKey());
+        }
+    }
+
+    /** the keys a line is indexed under: its room alone, then room and each word **/
+    private static List<String> keys(ChatlogEntry entry) {
+        List<String> keys = new ArrayList<String>();
+        if(entry.room == null)
+            return keys;
+        keys.add(entry.room);
+        for(String word : words(entry.message))
+            keys.add(entry.room + SEPARATOR + word);
+        return keys;
+    }
+
+    private Postings postings(String key) {
+        return postings(postings, key);
+    }
+
+    private static Postings postings(Map<String, Postings> map, String key) {
+        Postings list = map.get(key);
+        if(list == null) {
+            list = new Postings();
+            map.put(key, list);
+        }
+        return list;
+    }
+
+    /** append one record per line to the log, with its id negated if the lines were removed **/
+    private void writeLog(List<ChatlogEntry> entries, boolean removed) throws IOException {
+        if(log == null || entries.isEmpty())
+            return;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(bytes);
+        for(ChatlogEntry entry : entries) {
+            if(entry.room == null)
+                continue;
+            Set<String> words = words(entry.message);
+            bytes.reset();
+            record.writeLong(removed ? -entry.id : entry.id);
+            record.writeUTF(entry.room);
+            record.writeShort(Math.min(words.size(), 0xFFFF));
+            int written = 0;
+            for(Iterator<String> it = words.iterator(); it.hasNext() && written < 0xFFFF; ++written)
+                record.writeUTF(it.next());
+            log.writeInt(bytes.size());
+            bytes.writeTo(log);
+            if(removed)
+                ++logRemoved;
+            else
+                ++logLines;
+        }
+        log.flush();
+    }
+
+    /** whether removed lines make up enough of the log to rewrite it (write lock held) **/
+    private boolean compactDue() {
+        return log != null && logRemoved >= COMPACT_MIN && logRemoved * 2 >= logLines;
+    }
+
+    private File compactFile() {
+        return new File(directory, LOG_FILE + ".compact");
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        }
+        catch(IOException e) {
+            ServerLog.warn("Error rewriting the search index log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * rewrite the log with only the records of lines still indexed: the records logged so far are
+     * copied without holding the lock (each checked under the read lock), then those logged in the
+     * meantime are appended under the write lock and the new log replaces the old one
+     **/
+    private void compact() throws IOException {
+        long start = System.currentTimeMillis();
+        long length;
+        lock.writeLock().lock();
+        try {
+            if(log == null)
+                return;
+            log.flush();
+            length = logFile.length();
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        File copy = compactFile();
+        int kept = 0;
+        boolean replaced = false;
+        try {
+            try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(copy)))) {
+                for(long read = 0; read < length; ) {
+                    byte[] record = new byte[in.readInt()];
+                    in.readFully(record);
+                    read += 4 + record.length;
+                    DataInputStream fields = new DataInputStream(new ByteArrayInputStream(record));
+                    long id = fields.readLong();
+                    if(id > 0 && indexed(fields.readUTF(), id)) {
+                        out.writeInt(record.length);
+                        out.write(record);
+                        ++kept;
+                    }
+                }
+            }
+            lock.writeLock().lock();
+            try {
+                if(log == null)
+                    return; // closed meanwhile
+                log.flush();
+                int lines = 0, removed = 0;
+                try(DataInputStream in = new DataInputStream(new BufferedInputStream(openAt(logFile, length)));
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(copy, true)))) {
+                    while(true) { // what was logged since the copy began
+                        byte[] record;
+                        try {
+                            record = new byte[in.readInt()];
+                        }
+                        catch(EOFException e) {
+                            break;
+                        }
+                        in.readFully(record);
+                        out.writeInt(record.length);
+                        out.write(record);
+                        if(new DataInputStream(new ByteArrayInputStream(record)).readLong() < 0)
+                            ++removed;
+                        else
+                            ++lines;
+                    }
+                }
+                log.close();
+                try {
+                    Files.move(copy.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    replaced = true;
+                    logLines = kept + lines;
+                    logRemoved = removed;
+                }
+                finally {
+                    log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true)));
+                }
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+        }
+        finally {
+            if(!replaced)
+                copy.delete();
+        }
+        ServerLog.info("Search index log rewritten in " + (System.currentTimeMillis() - start) + " ms, "
+                + kept + " lines kept.");
+    }
+
+    /** a file opened for reading from a position **/
+    private static InputStream openAt(File file, long position) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            in.getChannel().position(position);
+            return in;
+        }
+        catch(IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /** whether a line is in the index (takes the read lock) **/
+    private boolean indexed(String room, long id) {
+        lock.readLock().lock();
+        try {
+            Postings lines = postings.get(room);
+            return lines != null && lines.contains(id);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+}
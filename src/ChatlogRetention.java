@@ -0,0 +1,127 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/***********************************************************************************
+ * Removes chatlog rows older than the configured age on a background thread       *
+ *                                                                                 *
+ * rows are taken oldest first in small batches, each removed in its own short     *
+ * step, so live inserts (which always land at the newest ids) never wait behind   *
+ * a long delete; rows can be appended to an archive file before they go, and      *
+ * they leave the search index just before they leave the chatlog                  *
+ ***********************************************************************************/
+
+public class ChatlogRetention implements Runnable {
+
+    private final ChatlogBackend store;
+    private final ChatlogIndex index; // SEARCH's index, which must forget removed rows
+    private final long maxAgeMillis; // rows posted longer ago than this are removed
+    private final int batchSize; // max rows removed per transaction
+    private final long intervalMillis; // time between passes
+    private final long pauseMillis; // time between batches within a pass
+    private final File archiveFile; // where removed rows are appended, null to just delete them
+    private final Object wakeup = new Object(); // notified by stop() (no interrupts: they close Derby connections)
+    private volatile boolean running;
+    private Thread thread;
+
+    ChatlogRetention(ServerConfig config, ChatlogBackend store, ChatlogIndex index) {
+        this.store = store;
+        this.index = index;
+        maxAgeMillis = config.logRetentionHours * 3600000L;
+        batchSize = Math.max(1, config.logRetentionBatchSize);
+        intervalMillis = Math.max(1, config.logRetentionIntervalMinutes) * 60000L;
+        pauseMillis = Math.max(0, config.logRetentionPauseMillis);
+        archiveFile = config.logArchiveFile == null || config.logArchiveFile.isEmpty()
+                ? null : new File(config.logArchiveFile);
+    }
+
+    /** start the retention thread, unless retention is off (a max age of 0 keeps everything) **/
+    void start() {
+        if(maxAgeMillis <= 0)
+            return;
+        running = true;
+        thread = new Thread(this, "ChatlogRetention");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /** stop after the batch in progress **/
+    void stop() {
+        running = false;
+        if(thread == null)
+            return;
+        synchronized(wakeup) {
+            wakeup.notifyAll();
+        }
+        try {
+            thread.join();
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    /** one pass right away, then one every interval **/
+    public void run() {
+        while(running) {
+            try {
+                purge();
+            }
+            catch(IOException e) {
+                ServerLog.warn("Error applying chatlog retention: " + e.getMessage());
+            }
+            pause(intervalMillis);
+        }
+    }
+
+    /** remove every row older than the cutoff, one batch at a time **/
+    private void purge() throws IOException {
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        int removed = 0;
+        while(running) {
+            List<ChatlogEntry> batch = store.expired(cutoff, batchSize);
+            if(batch.isEmpty())
+                break;
+            archive(batch);
+            index.remove(batch);
+            int count = store.remove(batch, cutoff);
+            if(count == 0)
+                break;
+            removed += count;
+            pause(pauseMillis); // let live inserts and queries in between batches
+        }
+        if(removed > 0)
+            ServerLog.info("Chatlog retention: " + removed + " rows older than " + new java.util.Date(cutoff)
+                    + (archiveFile == null ? " deleted" : " archived to " + archiveFile));
+    }
+
+    /** wait for the given time or until stop() **/
+    private void pause(long millis) {
+        if(millis <= 0)
+            return;
+        synchronized(wakeup) {
+            try {
+                if(running)
+                    wakeup.wait(millis);
+            }
+            catch(InterruptedException e) {
+                running = false;
+            }
+        }
+    }
+
+    /** append rows to the archive file before they are deleted **/
+    private void archive(List<ChatlogEntry> rows) throws IOException {
+        if(archiveFile == null)
+            return;
+        try(Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(archiveFile, true), StandardCharsets.UTF_8))) {
+            for(ChatlogEntry entry : rows) {
+                out.write(entry.toRecord());
+                out.write('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,525 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/***********************************************************************************
+ * Chatlog kept in append-only, memory-mapped segment files                        *
+ *                                                                                 *
+ * each segment is a fixed-size file mapped with FileChannel.map and filled with   *
+ * records; when one fills, it is sealed (forced to disk, with its sparse index    *
+ * saved next to it) and a new one is started; the active segment is forced on     *
+ * a group-commit interval instead of after every record                           *
+ *                                                                                 *
+ * record:  length:i32 crc32:i32 id:i64 time:i64 sender room message               *
+ *          (strings are byteLength:i32 UTF-8, with -1 for null; length and crc    *
+ *          cover everything after the crc; a zero length marks the end)           *
+ *                                                                                 *
+ * the sparse index holds the position and lowest id of every n-th record, so      *
+ * HISTORY reads start at the right block instead of scanning the segment          *
+ ***********************************************************************************/
+
+public class ChatlogSegmentStore implements ChatlogBackend {
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final int HEADER = 8; // length and crc
+    private static final int INDEX_MAGIC = 0x43494458; // "CIDX"
+
+    /** block start positions and lowest ids; appended by the writer, read by anyone **/
+    private static final class SparseIndex {
+        private volatile int[] positions = new int[64];
+        private volatile long[] minIds = new long[64];
+        private volatile int count; // published after the entry is filled in
+
+        void add(int position, long id) {
+            if(count == positions.length) {
+                positions = Arrays.copyOf(positions, count * 2);
+                minIds = Arrays.copyOf(minIds, count * 2);
+            }
+            positions[count] = position;
+            minIds[count] = id;
+            count = count + 1;
+        }
+
+        /** lower the newest block's lowest id (a hint for readers: they never skip the newest block) **/
+        void lowerLast(long id) {
+            if(id < minIds[count - 1])
+                minIds[count - 1] = id;
+        }
+    }
+
+    /** one segment file **/
+    private final class Segment {
+        final long number; // segments are numbered in the order they were started
+        final File file;
+        final SparseIndex index = new SparseIndex();
+        volatile ByteBuffer buffer; // mapped on first use for sealed segments
+        volatile int end; // position after the last complete record
+        volatile long minId = Long.MAX_VALUE, maxId, maxTime;
+        volatile int records;
+        volatile boolean sealed;
+
+        Segment(long number) {
+            this.number = number;
+            this.file = new File(directory, String.format("%020d", number) + SEGMENT_SUFFIX);
+        }
+
+        File indexFile() {
+            return new File(directory, String.format("%020d", number) + INDEX_SUFFIX);
+        }
+
+        /** a view of the mapped file with its own position **/
+        ByteBuffer view() throws IOException {
+            ByteBuffer mapped = buffer;
+            if(mapped == null) {
+                synchronized(this) {
+                    if(buffer == null)
+                        buffer = map(file, FileChannel.MapMode.READ_ONLY, file.length());
+                    mapped = buffer;
+                }
+            }
+            return mapped.duplicate();
+        }
+
+        /** account for a record just written (or found by a scan) at position **/
+        void added(int position, int next, long id, long time) {
+            if(records % indexInterval == 0)
+                index.add(position, id);
+            else
+                index.lowerLast(id);
+            minId = Math.min(minId, id);
+            maxId = Math.max(maxId, id);
+            maxTime = Math.max(maxTime, time);
+            records = records + 1;
+            end = next; // publishes the record to readers
+        }
+    }
+
+    private final File directory;
+    private final int segmentBytes;
+    private final long syncMillis;
+    private final int indexInterval;
+    private final List<Segment> segments = new CopyOnWriteArrayList<Segment>(); // oldest first
+    private volatile Segment active; // the segment being appended to
+    private ByteBuffer encoded = ByteBuffer.allocate(1024); // writer's record buffer, grown as needed
+    private final CRC32 crc = new CRC32(); // writer's checksum
+    private ScheduledExecutorService syncer; // group commit
+    private volatile int syncedEnd; // position of the active segment last forced to disk
+
+    // metrics
+    private final AtomicLong appends = new AtomicLong();
+    private final AtomicLong appendNanos = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+    private final AtomicLong syncNanos = new AtomicLong();
+    private final AtomicLong pages = new AtomicLong();
+    private final AtomicLong pageNanos = new AtomicLong();
+
+    ChatlogSegmentStore(ServerConfig config) {
+        directory = new File(config.logSegmentDir);
+        segmentBytes = Math.max(4096, config.logSegmentBytes);
+        syncMillis = Math.max(0, config.logSyncMillis);
+        indexInterval = Math.max(1, config.logIndexInterval);
+    }
+
+    /** load sealed segments from their saved indexes, scan only the active one, and start group commit **/
+    public void open(boolean reset) throws IOException {
+        if(!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("cannot create chatlog directory " + directory);
+        File[] files = directory.listFiles();
+        List<Long> numbers = new ArrayList<Long>();
+        for(File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            if(reset && (name.endsWith(SEGMENT_SUFFIX) || name.endsWith(INDEX_SUFFIX))) {
+                if(!file.delete())
+                    throw new IOException("cannot remove " + file);
+            }
+            else if(name.endsWith(SEGMENT_SUFFIX))
+                numbers.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+        }
+        Collections.sort(numbers);
+        for(int i = 0; i < numbers.size(); ++i) {
+            Segment segment = new Segment(numbers.get(i));
+            boolean last = i == numbers.size() - 1;
+            if(last || !loadIndex(segment))
+                scan(segment);
+            segment.sealed = !last;
+            segments.add(segment);
+        }
+        if(segments.isEmpty())
+            startSegment(1);
+        else
+            activate(segments.get(segments.size() - 1));
+        ServerLog.info("Chatlog segments opened: " + segments.size() + " in " + directory);
+
+        if(syncMillis > 0) {
+            syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "ChatlogSync");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            syncer.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    sync();
+                }
+            }, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public long lastId() {
+        long last = 0;
+        for(Segment segment : segments)
+            last = Math.max(last, segment.maxId);
+        return last;
+    }
+
+    /** write records into the active segment, rolling to a new one when it is full **/
+    public int append(List<ChatlogEntry> entries) throws IOException {
+        long start = System.nanoTime();
+        int rejected = 0;
+        for(ChatlogEntry entry : entries) {
+            encode(entry);
+            int length = encoded.remaining();
+            if(length > segmentBytes) {
+                ServerLog.warn("Chatlog record " + entry.id + " is larger than a segment, skipped");
+                ++rejected;
+                continue;
+            }
+            Segment segment = active;
+            if(segment.end + length > segmentBytes) {
+                seal(segment);
+                segment = startSegment(segment.number + 1);
+            }
+            int position = segment.end;
+            ByteBuffer out = segment.buffer.duplicate();
+            out.position(position);
+            out.put(encoded);
+            segment.added(position, position + length, entry.id, entry.time);
+        }
+        if(syncMillis == 0)
+            sync();
+        appends.incrementAndGet();
+        appendNanos.addAndGet(System.nanoTime() - start);
+        return rejected;
+    }
+
+    public List<ChatlogEntry> page(String room, long beforeId, int limit) throws IOException {
+        return find(room, 0, beforeId, limit);
+    }
+
+    public List<ChatlogEntry> since(String room, long afterId, int limit) throws IOException {
+        return find(room, afterId, Long.MAX_VALUE, limit);
+    }
+
+    /**
+     * walk the blocks of the sparse index from the newest back until the page is full, or until
+     * a block starts at or below afterId (older blocks hold nothing newer, except that a row
+     * spilled and written late lowers its block's id and so may end the walk early)
+     **/
+    private List<ChatlogEntry> find(String room, long afterId, long beforeId, int limit) throws IOException {
+        long start = System.nanoTime();
+        boolean reachedAfter = false;
+        List<ChatlogEntry> found = new ArrayList<ChatlogEntry>(); // newest blocks first
+        List<ChatlogEntry> block = new ArrayList<ChatlogEntry>();
+        Segment[] snapshot = segments.toArray(new Segment[0]); // retention may remove the oldest meanwhile
+        for(int s = snapshot.length - 1; s >= 0 && found.size() < limit && !reachedAfter; --s) {
+            Segment segment = snapshot[s];
+            boolean sealed = segment.sealed;
+            if(sealed && segment.minId >= beforeId)
+                continue;
+            if(sealed && segment.maxId <= afterId)
+                break;
+            int end = segment.end; // read before the index, so every block counted starts before it
+            SparseIndex index = segment.index;
+            int count = index.count;
+            int[] positions = index.positions;
+            long[] minIds = index.minIds;
+            ByteBuffer in = segment.view();
+            for(int b = count - 1; b >= 0 && found.size() < limit && !reachedAfter; --b) {
+                if((sealed || b < count - 1) && minIds[b] >= beforeId)
+                    continue;
+                int blockEnd = b + 1 < count ? positions[b + 1] : end;
+                block.clear();
+                for(int p = positions[b]; p < blockEnd; p += HEADER + in.getInt(p)) {
+                    ChatlogEntry entry = read(in, p);
+                    if(entry.id < beforeId && entry.id > afterId
+                            && (room == null ? entry.room != null : room.equals(entry.room)))
+                        block.add(entry);
+                }
+                reachedAfter = minIds[b] <= afterId;
+                for(int i = block.size() - 1; i >= 0; --i)
+                    found.add(block.get(i));
+            }
+        }
+        // ids are close to, but not strictly, in write order (late spilled rows), so sort before trimming
+        Collections.sort(found, new Comparator<ChatlogEntry>() {
+            public int compare(ChatlogEntry a, ChatlogEntry b) {
+                return Long.compare(b.id, a.id);
+            }
+        });
+        List<ChatlogEntry> page = new ArrayList<ChatlogEntry>(found.subList(0, Math.min(limit, found.size())));
+        Collections.reverse(page);
+        pages.incrementAndGet();
+        pageNanos.addAndGet(System.nanoTime() - start);
+        return page;
+    }
+
+    /**
+     * each segment covering some of the ids walks its sparse index from the newest block back,
+     * reading only blocks whose lowest id is at or below the highest id still wanted there, until
+     * all of them are found (an id not stored costs a walk to the start of its segment)
+     **/
+    public List<ChatlogEntry> get(Collection<Long> ids) throws IOException {
+        long start = System.nanoTime();
+        TreeSet<Long> wanted = new TreeSet<Long>(ids);
+        List<ChatlogEntry> found = new ArrayList<ChatlogEntry>(wanted.size());
+        Segment[] snapshot = segments.toArray(new Segment[0]); // retention may remove the oldest meanwhile
+        for(int s = snapshot.length - 1; s >= 0 && !wanted.isEmpty(); --s) {
+            Segment segment = snapshot[s];
+            boolean sealed = segment.sealed;
+            int end = segment.end; // read before the ids and the index, which cover every record before it
+            long minId = segment.minId, maxId = segment.maxId;
+            if(minId > maxId)
+                continue; // no records yet
+            NavigableSet<Long> here = wanted.subSet(minId, true, maxId, true); // removing from it removes from wanted
+            if(here.isEmpty())
+                continue;
+            SparseIndex index = segment.index;
+            int count = index.count;
+            int[] positions = index.positions;
+            long[] minIds = index.minIds;
+            ByteBuffer in = segment.view();
+            for(int b = count - 1; b >= 0 && !here.isEmpty(); --b) {
+                if((sealed || b < count - 1) && minIds[b] > here.last())
+                    continue;
+                int blockEnd = b + 1 < count ? positions[b + 1] : end;
+                for(int p = positions[b]; p < blockEnd; p += HEADER + in.getInt(p))
+                    if(here.remove(in.getLong(p + HEADER)))
+                        found.add(read(in, p));
+            }
+        }
+        Collections.sort(found, new Comparator<ChatlogEntry>() {
+            public int compare(ChatlogEntry a, ChatlogEntry b) {
+                return Long.compare(a.id, b.id);
+            }
+        });
+        pages.incrementAndGet();
+        pageNanos.addAndGet(System.nanoTime() - start);
+        return found;
+    }
+
+    /** every record of the oldest sealed segment, once even its newest record is past the cutoff **/
+    public List<ChatlogEntry> expired(long cutoff, int limit) throws IOException {
+        List<ChatlogEntry> rows = new ArrayList<ChatlogEntry>();
+        Segment oldest = segments.isEmpty() ? null : segments.get(0);
+        if(oldest == null || !oldest.sealed || oldest.maxTime >= cutoff)
+            return rows;
+        ByteBuffer in = oldest.view();
+        for(int p = 0; p < oldest.end; p += HEADER + in.getInt(p))
+            rows.add(read(in, p));
+        return rows;
+    }
+
+    /** delete the oldest segment's files (readers already holding its mapping can finish) **/
+    public int remove(List<ChatlogEntry> expired, long cutoff) throws IOException {
+        Segment oldest = segments.isEmpty() ? null : segments.get(0);
+        if(oldest == null || !oldest.sealed || oldest.maxTime >= cutoff)
+            return 0;
+        segments.remove(oldest);
+        if(!oldest.file.delete())
+            throw new IOException("cannot remove " + oldest.file);
+        oldest.indexFile().delete();
+        return oldest.records;
+    }
+
+    /** stop group commit and force what has been written **/
+    public void close() {
+        if(syncer != null)
+            syncer.shutdown();
+        sync();
+    }
+
+    public String stats() {
+        return "Chatlog segments: " + segments.size() + " segments, "
+                + appends.get() + " appends avg " + micros(appendNanos.get(), appends.get())
+                + ", " + syncs.get() + " syncs avg " + micros(syncNanos.get(), syncs.get())
+                + ", " + pages.get() + " pages avg " + micros(pageNanos.get(), pages.get());
+    }
+
+    private static String micros(long nanos, long count) {
+        return (count == 0 ? 0 : nanos / count / 1000) + " us";
+    }
+
+    /** force the active segment to disk if anything was written since the last force **/
+    private void sync() {
+        Segment segment = active;
+        if(segment == null)
+            return;
+        int end = segment.end;
+        if(end == syncedEnd)
+            return;
+        long start = System.nanoTime();
+        ((MappedByteBuffer) segment.buffer).force();
+        syncedEnd = end;
+        syncs.incrementAndGet();
+        syncNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    /** create and map a new, empty segment file **/
+    private Segment startSegment(long number) throws IOException {
+        Segment segment = new Segment(number);
+        segments.add(segment);
+        activate(segment);
+        return segment;
+    }
+
+    /** map a segment for writing and make it the active one **/
+    private void activate(Segment segment) throws IOException {
+        ByteBuffer mapped = map(segment.file, FileChannel.MapMode.READ_WRITE, segmentBytes);
+        // a record cut short by a crash would sit at end; clear it so it is not read back
+        if(segment.end + 4 <= segmentBytes && mapped.getInt(segment.end) != 0) {
+            for(int p = segment.end; p < segmentBytes; ++p)
+                mapped.put(p, (byte) 0);
+        }
+        segment.buffer = mapped;
+        syncedEnd = segment.end;
+        active = segment;
+    }
+
+    /** force a full segment to disk and save its sparse index next to it **/
+    private void seal(Segment segment) throws IOException {
+        ((MappedByteBuffer) segment.buffer).force();
+        SparseIndex index = segment.index;
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(segment.indexFile())))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(segment.end);
+            out.writeInt(segment.records);
+            out.writeLong(segment.minId);
+            out.writeLong(segment.maxId);
+            out.writeLong(segment.maxTime);
+            out.writeInt(index.count);
+            for(int i = 0; i < index.count; ++i) {
+                out.writeInt(index.positions[i]);
+                out.writeLong(index.minIds[i]);
+            }
+        }
+        segment.sealed = true;
+    }
+
+    /** load a sealed segment's saved index, returning false if it is missing or unreadable **/
+    private boolean loadIndex(Segment segment) {
+        File file = segment.indexFile();
+        if(!file.exists())
+            return false;
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if(in.readInt() != INDEX_MAGIC)
+                return false;
+            int end = in.readInt();
+            int records = in.readInt();
+            long minId = in.readLong(), maxId = in.readLong(), maxTime = in.readLong();
+            int count = in.readInt();
+            for(int i = 0; i < count; ++i)
+                segment.index.add(in.readInt(), in.readLong());
+            segment.end = end;
+            segment.records = records;
+            segment.minId = minId;
+            segment.maxId = maxId;
+            segment.maxTime = maxTime;
+            return true;
+        }
+        catch(IOException e) {
+            return false;
+        }
+    }
+
+    /** rebuild a segment's index by reading its records, stopping at the first incomplete one **/
+    private void scan(Segment segment) throws IOException {
+        ByteBuffer in = segment.view();
+        int p = 0;
+        while(p + HEADER <= in.capacity()) {
+            int length = in.getInt(p);
+            if(length <= 0 || p + HEADER + length > in.capacity() || !checksumMatches(in, p, length))
+                break;
+            ChatlogEntry entry = read(in, p);
+            segment.added(p, p + HEADER + length, entry.id, entry.time);
+            p += HEADER + length;
+        }
+        segment.buffer = null; // remapped for writing if it is the active segment
+    }
+
+    private static boolean checksumMatches(ByteBuffer in, int position, int length) {
+        byte[] body = new byte[length];
+        ByteBuffer view = in.duplicate();
+        view.position(position + HEADER);
+        view.get(body);
+        CRC32 check = new CRC32();
+        check.update(body, 0, length);
+        return (int) check.getValue() == in.getInt(position + 4);
+    }
+
+    /** encode one record into the writer's buffer, ready to copy into a segment **/
+    private void encode(ChatlogEntry entry) {
+        byte[] sender = bytes(entry.sender), room = bytes(entry.room), message = bytes(entry.message);
+        int length = 16 + 12 + length(sender) + length(room) + length(message);
+        if(encoded.capacity() < HEADER + length)
+            encoded = ByteBuffer.allocate(Math.max(HEADER + length, encoded.capacity() * 2));
+        encoded.clear();
+        encoded.putInt(length).putInt(0).putLong(entry.id).putLong(entry.time);
+        put(sender);
+        put(room);
+        put(message);
+        crc.reset();
+        crc.update(encoded.array(), HEADER, length);
+        encoded.putInt(4, (int) crc.getValue());
+        encoded.flip();
+    }
+
+    private static byte[] bytes(String s) {
+        return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    private void put(byte[] bytes) {
+        encoded.putInt(bytes == null ? -1 : bytes.length);
+        if(bytes != null)
+            encoded.put(bytes);
+    }
+
+    /** decode the record at position **/
+    private static ChatlogEntry read(ByteBuffer in, int position) {
+        ByteBuffer view = in.duplicate();
+        view.position(position + HEADER);
+        long id = view.getLong();
+        long time = view.getLong();
+        return new ChatlogEntry(id, time, string(view), string(view), string(view));
+    }
+
+    private static String string(ByteBuffer in) {
+        int length = in.getInt();
+        if(length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer map(File file, FileChannel.MapMode mode, long size) throws IOException {
+        try(FileChannel channel = mode == FileChannel.MapMode.READ_ONLY
+                ? FileChannel.open(file.toPath(), StandardOpenOption.READ)
+                : FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(mode, 0, size); // the mapping stays valid after the channel is closed
+        }
+    }
+}
@@ -0,0 +1,722 @@
+import java.io.IOException;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/***********************************************************************************
+ * All access to the Chatlog table in the embedded Derby database                  *
+ *                                                                                 *
+ * owns a small pool of connections, each caching its prepared statements, so      *
+ * no caller opens a connection or builds SQL text of its own; every value is      *
+ * bound as a parameter; time spent waiting for a connection and running           *
+ * statements is recorded; as a ChatlogBackend it reports SQL errors as            *
+ * IOExceptions                                                                    *
+ ***********************************************************************************/
+
+public class ChatlogStore implements ChatlogBackend {
+
+    private static final String DB_URL = "jdbc:derby:ChatlogDB;create=true";
+    static final int MAX_NAME = 128; // Sender and Room column widths
+    static final int MAX_MESSAGE = 32672; // Message column width (longest Derby VARCHAR)
+
+    private static final String INSERT_SQL =
+            "INSERT INTO Chatlog (Id, Posted, Sender, Room, Message) VALUES (?, ?, ?, ?, ?)";
+    private static final String PAGE_SQL =
+            "SELECT Id, Posted, Sender, Room, Message FROM Chatlog WHERE Room = ? AND Id < ? AND Id > ? ORDER BY Id DESC";
+    private static final String PAGE_ALL_SQL =
+            "SELECT Id, Posted, Sender, Room, Message FROM Chatlog WHERE Room IS NOT NULL AND Id < ? AND Id > ? ORDER BY Id DESC";
+    private static final int GET_BATCH = 16; // ids bound per lookup (a shorter list repeats its last id)
+    private static final String GET_SQL =
+            "SELECT Id, Posted, Sender, Room, Message FROM Chatlog WHERE Id IN (" + parameters(GET_BATCH) + ") ORDER BY Id";
+    private static final String MAX_ID_SQL = "SELECT MAX(Id) FROM Chatlog WHERE Id >= ?";
+    private static final String HIGH_WATER_SQL =
+            "UPDATE ChatlogMeta SET Value = ? WHERE Name = 'highWaterId' AND Value < ?";
+    private static final String EXPIRED_SQL = // the hint: with Posted unknown the optimizer would scan the table
+            "SELECT Id, Posted, Sender, Room, Message FROM Chatlog --DERBY-PROPERTIES index=ChatlogPosted\n"
+            + "WHERE Posted < ? ORDER BY Id";
+    private static final String DELETE_SQL = "DELETE FROM Chatlog WHERE Id >= ? AND Id <= ? AND Posted < ?";
+
+    // ChatlogMeta rows
+    private static final String SCHEMA_VERSION = "schemaVersion"; // layout of the Chatlog table
+    private static final String HIGH_WATER = "highWaterId"; // every id up to this one has been written
+
+    // version 1 rows: "HH:mm:ss <sender>: message" or "HH:mm:ss event"
+    private static final Pattern VERSION1_MESSAGE = Pattern.compile("\\d\\d:\\d\\d:\\d\\d <(.*?)>: (.*)", Pattern.DOTALL);
+    private static final Pattern VERSION1_TIME = Pattern.compile("^\\d\\d:\\d\\d:\\d\\d ");
+
+    /** work done with one pooled connection **/
+    interface Work<T> {
+        T run(PooledConnection connection) throws SQLException;
+    }
+
+    /** a pooled connection and the statements prepared on it **/
+    static final class PooledConnection {
+        final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+        long lastUsed = System.currentTimeMillis(); // when it was last returned to the pool
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        /** the cached statement for this SQL, prepared on first use **/
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if(statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            }
+            return statement;
+        }
+
+        void close() {
+            for(PreparedStatement statement : statements.values()) {
+                try {
+                    statement.close();
+                }
+                catch(SQLException e) {}
+            }
+            statements.clear();
+            try {
+                connection.close();
+            }
+            catch(SQLException e) {}
+        }
+    }
+
+    private final int poolSize; // most connections open at once
+    private final long waitMillis; // how long acquire() waits for a free connection
+    private final long validateIdleMillis; // connections idle longer than this are checked before use
+    private final int validationTimeout; // seconds allowed for a validity check
+    private final BlockingQueue<PooledConnection> idle; // open connections not in use
+    private final AtomicInteger open = new AtomicInteger(); // connections currently open (idle or in use)
+    private final int fetchSize; // rows fetched per round trip by queries
+
+    // metrics
+    private final AtomicLong acquires = new AtomicLong();
+    private final AtomicLong acquireWaitNanos = new AtomicLong();
+    private final AtomicLong maxAcquireWaitNanos = new AtomicLong();
+    private final AtomicLong executions = new AtomicLong();
+    private final AtomicLong executeNanos = new AtomicLong();
+    private final AtomicLong maxExecuteNanos = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong(); // connections closed because they failed validation
+
+    ChatlogStore(ServerConfig config) {
+        poolSize = Math.max(1, config.dbPoolSize);
+        waitMillis = Math.max(0, config.dbPoolWaitMillis);
+        validateIdleMillis = config.dbValidateIdleMillis;
+        validationTimeout = Math.max(1, config.dbValidationTimeoutSeconds);
+        fetchSize = Math.max(1, config.historyFetchSize);
+        idle = new ArrayBlockingQueue<PooledConnection>(poolSize);
+    }
+
+    /** drop the tables first if reset, then create or migrate them **/
+    public void open(boolean reset) throws IOException {
+        try {
+            if(reset)
+                dropSchema();
+            migrate();
+        }
+        catch(SQLException e) {
+            throw failure(e);
+        }
+    }
+
+    /** every id up to the high-water mark is known to be written, so only rows above it are looked at **/
+    public long lastId() throws IOException {
+        try {
+            long highWater = highWaterMark();
+            return Math.max(highWater, highestId(highWater));
+        }
+        catch(SQLException e) {
+            throw failure(e);
+        }
+    }
+
+    /** one JDBC batch in one transaction, falling back to row-by-row inserts if the batch is rejected **/
+    public int append(List<ChatlogEntry> entries) throws IOException {
+        try {
+            insertBatch(entries);
+            return 0;
+        }
+        catch(BatchUpdateException ex) {
+            // one bad row should not cost the whole batch
+            int rejected = 0;
+            for(ChatlogEntry entry : entries) {
+                try {
+                    insertRow(entry);
+                }
+                catch(SQLException e) {
+                    ServerLog.warn("Chatlog row " + entry.id + " rejected: " + e.getMessage());
+                    ++rejected;
+                }
+            }
+            return rejected;
+        }
+        catch(SQLException e) {
+            throw failure(e);
+        }
+    }
+
+    /** one page through the (Room, Id) index (or the Id index for every room) **/
+    public List<ChatlogEntry> page(String room, long beforeId, int limit) throws IOException {
+        try {
+            return selectPage(room, 0, beforeId, limit);
+        }
+        catch(SQLException e) {
+            throw failure(e);
+        }
+    }
+
+    public List<ChatlogEntry> since(String room, long afterId, int limit) throws IOException {
+        try {
+            return selectPage(room, afterId, Long.MAX_VALUE, limit);
+        }
+        catch(SQLException e) {
+            throw failure(e);
+        }
+    }
+
+    /** the rows with these ids through the primary key, GET_BATCH ids per statement **/
+    public List<ChatlogEntry> get(Collection<Long> ids) throws IOException {
+        try {
+            return selectIds(ids);
+        }
+        catch(SQLException e) {
+            throw failure(e);
+        }
+    }
+
+    /**
+     * the expired rows with the lowest ids, chosen by their post time: ids and post times do not
+     * always rise together (spilled rows are written late, lines relayed from another node keep
+     * the time they were posted there)
+     **/
+    public List<ChatlogEntry> expired(long cutoff, int limit) throws IOException {
+        try {
+            return selectExpired(cutoff, limit);
+        }
+        catch(SQLException e) {
+            throw failure(e);
+        }
+    }
+
+    /** one short delete of the id range the expired rows cover (rows in it that have not expired stay) **/
+    public int remove(List<ChatlogEntry> expired, long cutoff) throws IOException {
+        if(expired.isEmpty())
+            return 0;
+        try {
+            return deleteRange(expired.get(0).id, expired.get(expired.size() - 1).id, cutoff);
+        }
+        catch(SQLException e) {
+            throw failure(e);
+        }
+    }
+
+    /** "?, ?, ..." with count parameters **/
+    private static String parameters(int count) {
+        StringBuilder sb = new StringBuilder("?");
+        for(int i = 1; i < count; ++i)
+            sb.append(", ?");
+        return sb.toString();
+    }
+
+    private static IOException failure(SQLException e) {
+        return new IOException(e.getMessage(), e);
+    }
+
+    /** drop the Chatlog tables so the next migrate() starts an empty chatlog **/
+    void dropSchema() throws SQLException {
+        execute(new Work<Void>() {
+            public Void run(PooledConnection pooled) throws SQLException {
+                try(Statement statement = pooled.connection.createStatement()) {
+                    for(String table : new String[] { "Chatlog", "ChatlogMeta" }) {
+                        if(tableExists(pooled.connection, table)) {
+                            statement.execute("DROP TABLE " + table);
+                            ServerLog.info(table + " table dropped.");
+                        }
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * bring the Chatlog table to the current schema, keeping its rows:
+     *   none         create it
+     *   version 1    the original single Message CHAR(80) column; rows are copied into the new table
+     *   version 2    no index on Posted; it is added
+     *   version 3    current, nothing to do
+     * the version is kept in ChatlogMeta so later startups skip the checks
+     **/
+    void migrate() throws SQLException {
+        execute(new Work<Void>() {
+            public Void run(PooledConnection pooled) throws SQLException {
+                Connection connection = pooled.connection;
+                connection.setAutoCommit(false); // a failed migration leaves the old table as it was
+                try(Statement statement = connection.createStatement()) {
+                    if(!tableExists(connection, "ChatlogMeta")) {
+                        statement.execute("CREATE TABLE ChatlogMeta (Name VARCHAR(64) NOT NULL PRIMARY KEY, Value BIGINT NOT NULL)");
+                        statement.execute("INSERT INTO ChatlogMeta VALUES ('" + SCHEMA_VERSION + "', 0), ('" + HIGH_WATER + "', 0)");
+                    }
+                    long version = meta(connection, SCHEMA_VERSION);
+                    if(version == 0 && tableExists(connection, "Chatlog"))
+                        version = columnExists(connection, "Chatlog", "Id") ? 2 : 1;
+                    if(version == 2) {
+                        createPostedIndex(statement);
+                        ServerLog.info("Chatlog post times indexed for retention.");
+                    }
+                    else if(version < 2) {
+                        if(version == 1) {
+                            statement.execute("RENAME TABLE Chatlog TO ChatlogV1");
+                            ServerLog.info("Migrating Chatlog table to the current schema.");
+                        }
+                        createTable(statement);
+                        if(version == 1) {
+                            long last = copyVersion1(connection);
+                            statement.execute("DROP TABLE ChatlogV1");
+                            setMeta(connection, HIGH_WATER, last);
+                            ServerLog.info(last + " chatlog rows migrated.");
+                        }
+                        else
+                            ServerLog.info("Chatlog table created.");
+                    }
+                    if(version < 3)
+                        setMeta(connection, SCHEMA_VERSION, 3);
+                    connection.commit();
+                }
+                catch(SQLException e) {
+                    connection.rollback();
+                    throw e;
+                }
+                finally {
+                    connection.setAutoCommit(true);
+                }
+                return null;
+            }
+        });
+    }
+
+    private static void createTable(Statement statement) throws SQLException {
+        // Id is assigned by the server so a message has its id before the row is written;
+        // Room and Sender are NULL for server events.
+        statement.execute("CREATE TABLE Chatlog ("
+                + "Id BIGINT NOT NULL PRIMARY KEY, "
+                + "Posted TIMESTAMP NOT NULL, "
+                + "Sender VARCHAR(" + MAX_NAME + "), "
+                + "Room VARCHAR(" + MAX_NAME + "), "
+                + "Message VARCHAR(" + MAX_MESSAGE + ") NOT NULL)");
+        // HISTORY pages walk one room from the newest id backwards.
+        statement.execute("CREATE INDEX ChatlogRoomId ON Chatlog (Room, Id DESC)");
+        createPostedIndex(statement);
+    }
+
+    /** retention selects the rows posted before its cutoff **/
+    private static void createPostedIndex(Statement statement) throws SQLException {
+        statement.execute("CREATE INDEX ChatlogPosted ON Chatlog (Posted)");
+    }
+
+    /**
+     * copy "HH:mm:ss <sender>: message" and "HH:mm:ss event" rows from the version 1 table,
+     * numbering them in table order and stamping them with the migration time (version 1 kept
+     * no date); returns the last id used
+     **/
+    private long copyVersion1(Connection connection) throws SQLException {
+        long now = System.currentTimeMillis();
+        long id = 0;
+        try(Statement select = connection.createStatement();
+            PreparedStatement insert = connection.prepareStatement(INSERT_SQL)) {
+            select.setFetchSize(fetchSize);
+            try(ResultSet resultSet = select.executeQuery("SELECT Message FROM ChatlogV1")) {
+                while(resultSet.next()) {
+                    String line = resultSet.getString(1).trim();
+                    Matcher matcher = VERSION1_MESSAGE.matcher(line);
+                    ChatlogEntry entry = matcher.matches()
+                            ? new ChatlogEntry(++id, now, matcher.group(1), ChatlogEntry.DEFAULT_ROOM, matcher.group(2))
+                            : new ChatlogEntry(++id, now, null, null, VERSION1_TIME.matcher(line).replaceFirst(""));
+                    bind(insert, entry);
+                    insert.addBatch();
+                    if(id % 500 == 0)
+                        insert.executeBatch();
+                }
+            }
+            insert.executeBatch();
+        }
+        return id;
+    }
+
+    private static boolean tableExists(Connection connection, String table) throws SQLException {
+        try(ResultSet resultSet = connection.getMetaData().getTables(null, null, table.toUpperCase(), null)) {
+            return resultSet.next();
+        }
+    }
+
+    private static boolean columnExists(Connection connection, String table, String column) throws SQLException {
+        try(ResultSet resultSet = connection.getMetaData().getColumns(null, null, table.toUpperCase(), column.toUpperCase())) {
+            return resultSet.next();
+        }
+    }
+
+    private static long meta(Connection connection, String name) throws SQLException {
+        try(PreparedStatement statement = connection.prepareStatement("SELECT Value FROM ChatlogMeta WHERE Name = ?")) {
+            statement.setString(1, name);
+            try(ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : 0;
+            }
+        }
+    }
+
+    private static void setMeta(Connection connection, String name, long value) throws SQLException {
+        try(PreparedStatement statement = connection.prepareStatement("UPDATE ChatlogMeta SET Value = ? WHERE Name = ?")) {
+            statement.setLong(1, value);
+            statement.setString(2, name);
+            statement.executeUpdate();
+        }
+    }
+
+    /** the highest id the writer has recorded as stored **/
+    long highWaterMark() throws SQLException {
+        return execute(new Work<Long>() {
+            public Long run(PooledConnection pooled) throws SQLException {
+                return meta(pooled.connection, HIGH_WATER);
+            }
+        });
+    }
+
+    /**
+     * largest Id in the Chatlog table, looking only at ids from the high-water mark up
+     * (rows stored after the mark was last raised, e.g. before a crash); 0 if there are none
+     **/
+    long highestId(final long fromId) throws SQLException {
+        return execute(new Work<Long>() {
+            public Long run(PooledConnection pooled) throws SQLException {
+                PreparedStatement statement = pooled.prepare(MAX_ID_SQL);
+                statement.setLong(1, fromId);
+                try(ResultSet resultSet = statement.executeQuery()) {
+                    return resultSet.next() ? resultSet.getLong(1) : 0L;
+                }
+            }
+        });
+    }
+
+    /** up to limit of the newest messages of a room (every room if null) with ids between afterId and beforeId, oldest first **/
+    List<ChatlogEntry> selectPage(final String room, final long afterId, final long beforeId, final int limit) throws SQLException {
+        return execute(new Work<List<ChatlogEntry>>() {
+            public List<ChatlogEntry> run(PooledConnection pooled) throws SQLException {
+                PreparedStatement statement;
+                if(room == null) {
+                    statement = pooled.prepare(PAGE_ALL_SQL);
+                    statement.setLong(1, beforeId);
+                    statement.setLong(2, afterId);
+                }
+                else {
+                    statement = pooled.prepare(PAGE_SQL);
+                    statement.setString(1, room);
+                    statement.setLong(2, beforeId);
+                    statement.setLong(3, afterId);
+                }
+                statement.setMaxRows(limit); // stop after one page
+                statement.setFetchSize(Math.min(limit, fetchSize));
+                ArrayList<ChatlogEntry> page = new ArrayList<ChatlogEntry>(Math.min(limit, 1024));
+                try(ResultSet resultSet = statement.executeQuery()) {
+                    while(resultSet.next())
+                        page.add(read(resultSet));
+                }
+                Collections.reverse(page);
+                return page;
+            }
+        });
+    }
+
+    /** the rows with these ids, lowest id first, read with one connection **/
+    List<ChatlogEntry> selectIds(Collection<Long> ids) throws SQLException {
+        final long[] sorted = new long[ids.size()];
+        int n = 0;
+        for(long id : ids)
+            sorted[n++] = id;
+        Arrays.sort(sorted);
+        n = 0;
+        for(int i = 0; i < sorted.length; ++i)
+            if(n == 0 || sorted[i] != sorted[n - 1])
+                sorted[n++] = sorted[i];
+        final int count = n;
+        if(count == 0)
+            return new ArrayList<ChatlogEntry>();
+        return execute(new Work<List<ChatlogEntry>>() {
+            public List<ChatlogEntry> run(PooledConnection pooled) throws SQLException {
+                PreparedStatement statement = pooled.prepare(GET_SQL);
+                ArrayList<ChatlogEntry> rows = new ArrayList<ChatlogEntry>(count);
+                for(int from = 0; from < count; from += GET_BATCH) {
+                    int to = Math.min(count, from + GET_BATCH);
+                    for(int i = 0; i < GET_BATCH; ++i)
+                        statement.setLong(i + 1, sorted[Math.min(from + i, to - 1)]);
+                    try(ResultSet resultSet = statement.executeQuery()) {
+                        while(resultSet.next())
+                            rows.add(read(resultSet));
+                    }
+                }
+                return rows;
+            }
+        });
+    }
+
+    /**
+     * insert entries as one JDBC batch committed once, with the high-water mark; on failure nothing
+     * is kept (a BatchUpdateException means some rows were rejected)
+     **/
+    void insertBatch(final List<ChatlogEntry> entries) throws SQLException {
+        execute(new Work<Void>() {
+            public Void run(PooledConnection pooled) throws SQLException {
+                Connection connection = pooled.connection;
+                PreparedStatement statement = pooled.prepare(INSERT_SQL);
+                connection.setAutoCommit(false); // one commit per batch, not per row
+                try {
+                    for(ChatlogEntry entry : entries) {
+                        bind(statement, entry);
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                    long highest = 0;
+                    for(ChatlogEntry entry : entries)
+                        highest = Math.max(highest, entry.id);
+                    raiseHighWater(pooled, highest);
+                    connection.commit();
+                }
+                catch(SQLException e) {
+                    connection.rollback(); // so the row-by-row retry finds none of the batch stored
+                    throw e;
+                }
+                finally {
+                    statement.clearBatch();
+                    connection.setAutoCommit(true);
+                }
+                return null;
+            }
+        });
+    }
+
+    /** insert one entry **/
+    void insertRow(final ChatlogEntry entry) throws SQLException {
+        execute(new Work<Void>() {
+            public Void run(PooledConnection pooled) throws SQLException {
+                PreparedStatement statement = pooled.prepare(INSERT_SQL);
+                bind(statement, entry);
+                statement.executeUpdate();
+                raiseHighWater(pooled, entry.id);
+                return null;
+            }
+        });
+    }
+
+    /** record that rows up to id are stored (never lowers the mark, e.g. for spilled rows written late) **/
+    private static void raiseHighWater(PooledConnection pooled, long id) throws SQLException {
+        PreparedStatement statement = pooled.prepare(HIGH_WATER_SQL);
+        statement.setLong(1, id);
+        statement.setLong(2, id);
+        statement.executeUpdate();
+    }
+
+    /** up to limit of the rows posted before the cutoff, lowest ids first (for the retention job) **/
+    List<ChatlogEntry> selectExpired(final long cutoff, final int limit) throws SQLException {
+        return execute(new Work<List<ChatlogEntry>>() {
+            public List<ChatlogEntry> run(PooledConnection pooled) throws SQLException {
+                PreparedStatement statement = pooled.prepare(EXPIRED_SQL);
+                statement.setTimestamp(1, new Timestamp(cutoff));
+                statement.setMaxRows(limit);
+                statement.setFetchSize(Math.min(limit, fetchSize));
+                ArrayList<ChatlogEntry> rows = new ArrayList<ChatlogEntry>(limit);
+                try(ResultSet resultSet = statement.executeQuery()) {
+                    while(resultSet.next())
+                        rows.add(read(resultSet));
+                }
+                return rows;
+            }
+        });
+    }
+
+    /** delete the rows with ids in [firstId, lastId] posted before the cutoff; returns how many went **/
+    int deleteRange(final long firstId, final long lastId, final long cutoff) throws SQLException {
+        return execute(new Work<Integer>() {
+            public Integer run(PooledConnection pooled) throws SQLException {
+                PreparedStatement statement = pooled.prepare(DELETE_SQL);
+                statement.setLong(1, firstId);
+                statement.setLong(2, lastId);
+                statement.setTimestamp(3, new Timestamp(cutoff));
+                return statement.executeUpdate();
+            }
+        });
+    }
+
+    /** set the insert parameters for one entry, trimming text to the column widths **/
+    private static void bind(PreparedStatement statement, ChatlogEntry entry) throws SQLException {
+        statement.setLong(1, entry.id);
+        statement.setTimestamp(2, new Timestamp(entry.time));
+        statement.setString(3, truncate(entry.sender, MAX_NAME));
+        statement.setString(4, truncate(entry.room, MAX_NAME));
+        statement.setString(5, truncate(entry.message, MAX_MESSAGE));
+    }
+
+    private static String truncate(String s, int max) {
+        return s == null || s.length() <= max ? s : s.substring(0, max);
+    }
+
+    private static ChatlogEntry read(ResultSet resultSet) throws SQLException {
+        return new ChatlogEntry(resultSet.getLong(1), resultSet.getTimestamp(2).getTime(),
+                resultSet.getString(3), resultSet.getString(4), resultSet.getString(5));
+    }
+
+    /** run work on a pooled connection, timing it; a connection that fails is checked before reuse **/
+    <T> T execute(Work<T> work) throws SQLException {
+        PooledConnection pooled = acquire();
+        boolean failed = true;
+        long start = System.nanoTime();
+        try {
+            T result = work.run(pooled);
+            failed = false;
+            return result;
+        }
+        finally {
+            record(System.nanoTime() - start, executions, executeNanos, maxExecuteNanos);
+            release(pooled, failed);
+        }
+    }
+
+    /** take an idle connection, open a new one if the pool is not full, or wait for one to be released **/
+    private PooledConnection acquire() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            while(true) {
+                PooledConnection pooled = idle.poll();
+                if(pooled == null)
+                    pooled = connect();
+                if(pooled == null) {
+                    try {
+                        pooled = idle.poll(waitMillis, TimeUnit.MILLISECONDS);
+                    }
+                    catch(InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("interrupted waiting for a chatlog connection");
+                    }
+                    if(pooled == null)
+                        throw new SQLTransientConnectionException(
+                                "no chatlog connection free after " + waitMillis + " ms");
+                }
+                if(System.currentTimeMillis() - pooled.lastUsed <= validateIdleMillis || isValid(pooled))
+                    return pooled;
+                discard(pooled);
+            }
+        }
+        finally {
+            record(System.nanoTime() - start, acquires, acquireWaitNanos, maxAcquireWaitNanos);
+        }
+    }
+
+    /** open a new connection if the pool has room, otherwise return null **/
+    private PooledConnection connect() throws SQLException {
+        while(true) {
+            int count = open.get();
+            if(count >= poolSize)
+                return null;
+            if(open.compareAndSet(count, count + 1))
+                break;
+        }
+        try {
+            return new PooledConnection(DriverManager.getConnection(DB_URL));
+        }
+        catch(SQLException e) {
+            open.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /** return a connection to the pool (after a failure it is only kept if it still answers) **/
+    private void release(PooledConnection pooled, boolean failed) {
+        if(failed && !isValid(pooled)) {
+            discard(pooled);
+            return;
+        }
+        pooled.lastUsed = System.currentTimeMillis();
+        if(!idle.offer(pooled))
+            discard(pooled);
+    }
+
+    private boolean isValid(PooledConnection pooled) {
+        try {
+            return pooled.connection.isValid(validationTimeout);
+        }
+        catch(SQLException e) {
+            return false;
+        }
+    }
+
+    private void discard(PooledConnection pooled) {
+        discarded.incrementAndGet();
+        open.decrementAndGet();
+        pooled.close();
+    }
+
+    /** close every idle connection (connections in use are closed when they are released) **/
+    public void close() {
+        PooledConnection pooled;
+        while((pooled = idle.poll()) != null) {
+            open.decrementAndGet();
+            pooled.close();
+        }
+    }
+
+    private static void record(long nanos, AtomicLong count, AtomicLong total, AtomicLong max) {
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long previous;
+        while(nanos > (previous = max.get()) && !max.compareAndSet(previous, nanos)) {}
+    }
+
+    /** one line summary of connection waits and statement latency **/
+    public String stats() {
+        return "Chatlog store: " + open.get() + "/" + poolSize + " connections open, "
+                + discarded.get() + " discarded; "
+                + "connection wait avg " + micros(acquireWaitNanos.get(), acquires.get())
+                + " max " + maxAcquireWaitNanos.get() / 1000 + " us over " + acquires.get() + "; "
+                + "statement avg " + micros(executeNanos.get(), executions.get())
+                + " max " + maxExecuteNanos.get() / 1000 + " us over " + executions.get();
+    }
+
+    private static String micros(long nanos, long count) {
+        return (count == 0 ? 0 : nanos / count / 1000) + " us";
+    }
+
+    /** connections handed out **/
+    long getAcquireCount() {
+        return acquires.get();
+    }
+
+    /** total time callers waited for a connection **/
+    long getAcquireWaitNanos() {
+        return acquireWaitNanos.get();
+    }
+
+    /** longest wait for a connection **/
+    long getMaxAcquireWaitNanos() {
+        return maxAcquireWaitNanos.get();
+    }
+
+    /** statements (or statement groups) run **/
+    long getExecuteCount() {
+        return executions.get();
+    }
+
+    /** total time spent running statements **/
+    long getExecuteNanos() {
+        return executeNanos.get();
+    }
+
+    /** longest statement run **/
+    long getMaxExecuteNanos() {
+        return maxExecuteNanos.get();
+    }
+}
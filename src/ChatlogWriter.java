@@ -0,0 +1,223 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/***********************************************************************************
+ * Persists chatlog entries to the chatlog backend on a dedicated writer thread    *
+ *                                                                                 *
+ * entries are queued by the server and written to the backend in batches, so      *
+ * broadcasting never waits on a Derby commit or a segment file; each stored       *
+ * batch is then added to the search index                                         *
+ ***********************************************************************************/
+
+public class ChatlogWriter implements Runnable {
+
+    /* What append() does when the queue is full:
+    *
+    * BLOCK the caller waits for room in the queue
+    * DROP_OLDEST the oldest queued entry is discarded to make room
+    * SPILL the entry is appended to a spill file and written once the queue drains
+    */
+    enum Backpressure { BLOCK, DROP_OLDEST, SPILL }
+
+    private final BlockingQueue<ChatlogEntry> queue; // entries waiting to be written
+    private final int batchSize; // max rows per batch
+    private final long flushMillis; // max time an entry waits in a partial batch
+    private final Backpressure backpressure; // policy when queue is full
+    private final File spillFile; // overflow entries when policy is SPILL
+    private final Object spillLock = new Object(); // guards spillFile
+    private final AtomicLong dropped = new AtomicLong(); // entries discarded by DROP_OLDEST or errors
+    private volatile boolean running; // false once stop() is requested
+    private final ReadWriteLock accepting = new ReentrantReadWriteLock(); // append() holds it to read, stop() to write
+    private Thread writerThread;
+
+    private final ChatlogBackend store; // where entries are stored
+    private final ChatlogIndex index; // SEARCH's index of the stored entries
+
+    ChatlogWriter(ServerConfig config, ChatlogBackend store, ChatlogIndex index) {
+        this.store = store;
+        this.index = index;
+        queue = new ArrayBlockingQueue<ChatlogEntry>(config.logQueueCapacity);
+        batchSize = Math.max(1, config.logBatchSize);
+        flushMillis = Math.max(1, config.logFlushMillis);
+        backpressure = config.logBackpressure;
+        spillFile = new File(config.logSpillFile);
+    }
+
+    /** start the writer thread (any entries left in the spill file by a previous run are written first) **/
+    void start() {
+        running = true;
+        writerThread = new Thread(this, "ChatlogWriter");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /** queue an entry for the chatlog, applying the backpressure policy if the queue is full **/
+    boolean append(ChatlogEntry entry) {
+        accepting.readLock().lock();
+        try {
+            return running && enqueue(entry);
+        }
+        finally {
+            accepting.readLock().unlock();
+        }
+    }
+
+    /** the part of append() that runs while running is known to be true **/
+    private boolean enqueue(ChatlogEntry entry) {
+        if(queue.offer(entry))
+            return true;
+        switch(backpressure) {
+            case BLOCK:
+                try {
+                    queue.put(entry);
+                    return true;
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            case DROP_OLDEST:
+                // make room by discarding the oldest entries until this one fits
+                while(!queue.offer(entry)) {
+                    if(queue.poll() != null)
+                        dropped.incrementAndGet();
+                }
+                return true;
+            default:
+                spill(Collections.singletonList(entry));
+                return true;
+        }
+    }
+
+    /** stop accepting entries, then wait for everything already queued or spilled to be written **/
+    void stop() {
+        // once no append() is between its check and its offer, the queue only shrinks,
+        // so the writer cannot see it empty and exit while an accepted entry is still on its way
+        accepting.writeLock().lock();
+        try {
+            running = false;
+        }
+        finally {
+            accepting.writeLock().unlock();
+        }
+        if(writerThread == null)
+            return;
+        try {
+            writerThread.join();
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writerThread = null;
+    }
+
+    /** number of entries discarded because the queue was full or the database rejected them **/
+    long getDropped() {
+        return dropped.get();
+    }
+
+    /** number of entries currently waiting in the queue **/
+    int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * writer loop
+     *   collects entries into a batch and flushes it when it is full or its oldest entry
+     *   has waited flushMillis, then keeps going until stopped and fully drained
+     **/
+    public void run() {
+        List<ChatlogEntry> batch = new ArrayList<ChatlogEntry>(batchSize);
+        long deadline = 0; // time by which the current batch must be flushed
+        writeSpilled();
+        while(running || !queue.isEmpty()) {
+            ChatlogEntry entry;
+            try {
+                long wait = batch.isEmpty() ? flushMillis : Math.max(0, deadline - System.currentTimeMillis());
+                entry = queue.poll(wait, TimeUnit.MILLISECONDS);
+            }
+            catch(InterruptedException e) {
+                entry = null;
+            }
+            if(entry != null) {
+                if(batch.isEmpty())
+                    deadline = System.currentTimeMillis() + flushMillis;
+                batch.add(entry);
+                queue.drainTo(batch, batchSize - batch.size());
+            }
+            if(batch.size() >= batchSize || (!batch.isEmpty() && System.currentTimeMillis() >= deadline)) {
+                writeBatch(batch);
+                batch.clear();
+            }
+            if(queue.isEmpty())
+                writeSpilled();
+        }
+        if(!batch.isEmpty())
+            writeBatch(batch);
+        writeSpilled();
+    }
+
+    /** write one batch of entries (entries the backend rejects are counted as dropped) **/
+    private void writeBatch(List<ChatlogEntry> batch) {
+        try {
+            dropped.addAndGet(store.append(batch));
+        }
+        catch(IOException ex) {
+            ServerLog.error("Error writing to the chatlog: " + ex.getMessage());
+            if(backpressure == Backpressure.SPILL)
+                spill(batch);
+            else
+                dropped.addAndGet(batch.size());
+            return;
+        }
+        index.add(batch);
+    }
+
+    /** append overflow entries to the spill file, one record line each **/
+    private void spill(List<ChatlogEntry> entries) {
+        synchronized(spillLock) {
+            try(Writer out = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(spillFile, true), StandardCharsets.UTF_8))) {
+                for(ChatlogEntry entry : entries) {
+                    out.write(entry.toRecord());
+                    out.write('\n');
+                }
+            }
+            catch(IOException e) {
+                ServerLog.error("Error writing to chatlog spill file: " + e.getMessage());
+                dropped.addAndGet(entries.size());
+            }
+        }
+    }
+
+    /** move any entries in the spill file into the database and truncate it **/
+    private void writeSpilled() {
+        List<ChatlogEntry> entries = new ArrayList<ChatlogEntry>();
+        synchronized(spillLock) {
+            if(!spillFile.exists() || spillFile.length() == 0)
+                return;
+            try(BufferedReader in = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(spillFile), StandardCharsets.UTF_8))) {
+                String line;
+                while((line = in.readLine()) != null) {
+                    ChatlogEntry entry = ChatlogEntry.fromRecord(line);
+                    if(entry != null) // null for a partial line from a crash while spilling
+                        entries.add(entry);
+                }
+            }
+            catch(IOException e) {
+                ServerLog.error("Error reading chatlog spill file: " + e.getMessage());
+                return;
+            }
+            if(!spillFile.delete())
+                ServerLog.warn("Error removing chatlog spill file " + spillFile);
+        }
+        for(int i = 0; i < entries.size(); i += batchSize)
+            writeBatch(entries.subList(i, Math.min(entries.size(), i + batchSize)));
+    }
+}
@@ -0,0 +1,558 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/***********************************************************************************
+ * Links this server to the other nodes of a cluster                               *
+ *                                                                                 *
+ * every node dials each peer it is given and sends over that link only what its   *
+ * own clients did (chat lines, and who is in which room); nothing received is     *
+ * passed on, so a full mesh delivers every line to every node once, and each      *
+ * node fans it out to its own clients                                             *
+ *                                                                                 *
+ * link:    -> "PEER" version:u8 node:str incarnation:i64   <- lastSeen:i64        *
+ *          then frames  length:i32 count:u16 records  (empty once a second when   *
+ *          idle, so either side notices a dead link)                              *
+ * record:  seq:i64 kind:u8 fields   (str is byteLength:i32 UTF-8)                 *
+ *   CHAT      room sender text time:i64                                           *
+ *   JOIN      user room since                                                     *
+ *   LEAVE     user room                                                           *
+ *   MEMBERS   asOf:i64 count:i32 (user room since)...   every membership of       *
+ *             the sender up to record asOf, first on each link (with seq 0)       *
+ *                                                                                 *
+ * records are numbered per origin (node and incarnation) and kept in a ring that  *
+ * every link reads from at its own position, so a slow peer holds no queue of its *
+ * own and only misses records once it falls a whole ring behind; a receiver drops *
+ * any at or below the last it took from that origin and, when the link            *
+ * reconnects, answers with that number so the sender resumes after it (-1: a new  *
+ * origin, start with live records)                                                *
+ ***********************************************************************************/
+
+final class ClusterRelay {
+
+    private static final byte[] MAGIC = { 'P', 'E', 'E', 'R' };
+    private static final int VERSION = 1;
+    private static final int CHAT = 1, JOIN = 2, LEAVE = 3, MEMBERS = 4;
+    private static final long IDLE_MILLIS = 1000; // an idle link sends an empty frame this often
+    private static final int READ_TIMEOUT_MILLIS = 10000; // an inbound link silent this long is dead
+
+    /** what the relay needs from the server it runs in **/
+    interface Node {
+        /** a chat line a client of another node sent **/
+        void relayed(String room, String sender, String text, long time);
+
+        /** every local client's room memberships, for a peer that just connected **/
+        List<Member> members();
+    }
+
+    /** one user in one room, on this node or another **/
+    static final class Member {
+        final String user;
+        final String room;
+        final String since; // when the user connected
+        final String node; // where the user is connected
+
+        Member(String user, String room, String since, String node) {
+            this.user = user;
+            this.room = room;
+            this.since = since;
+            this.node = node;
+        }
+    }
+
+    /** one encoded record, shared by every link it is sent on **/
+    private static final class Record {
+        final long seq;
+        final byte[] bytes;
+
+        Record(long seq, byte[] bytes) {
+            this.seq = seq;
+            this.bytes = bytes;
+        }
+    }
+
+    private final ServerConfig config;
+    private final Node node;
+    private final ServerMetrics metrics;
+    private final String nodeId;
+    private final long incarnation = System.currentTimeMillis(); // tells a restarted node from the old one
+    private final Record[] ring; // recent records, read by every link (guarded by this)
+    private long lastSeq; // number of the last record published (guarded by this)
+    private final List<PeerLink> links = new ArrayList<PeerLink>();
+    private final ConcurrentHashMap<String, Long> lastSeen = new ConcurrentHashMap<String, Long>(); // origin -> last seq taken
+    private final ConcurrentHashMap<String, Long> membersAsOf = new ConcurrentHashMap<String, Long>(); // origin -> seq of its last MEMBERS
+    private final ConcurrentHashMap<String, Map<String, Member>> remote
+            = new ConcurrentHashMap<String, Map<String, Member>>(); // node -> user and room -> membership
+    private volatile boolean running;
+    private ServerSocket listener;
+    private final ConcurrentHashMap<Socket, Thread> inbound = new ConcurrentHashMap<Socket, Thread>(); // link -> its reader
+    private final ConcurrentHashMap<String, Socket> linkFrom = new ConcurrentHashMap<String, Socket>(); // node -> its current inbound link
+
+    ClusterRelay(ServerConfig config, Node node, ServerMetrics metrics) {
+        this.config = config;
+        this.node = node;
+        this.metrics = metrics;
+        this.nodeId = config.clusterNodeId.isEmpty() ? "node-" + config.clusterPort : config.clusterNodeId;
+        ring = new Record[Math.max(1, config.clusterReplayCapacity)];
+        for(String peer : config.clusterPeers.split(",")) {
+            peer = peer.trim();
+            if(peer.isEmpty())
+                continue;
+            int colon = peer.lastIndexOf(':');
+            if(colon <= 0)
+                throw new IllegalArgumentException("cluster peer " + peer + " is not host:port");
+            links.add(new PeerLink(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+        }
+    }
+
+    /** this node's name in the cluster **/
+    String nodeId() {
+        return nodeId;
+    }
+
+    /** listen for peers and start dialing them **/
+    void start() throws IOException {
+        running = true;
+        listener = new ServerSocket();
+        listener.bind(new InetSocketAddress(config.clusterPort));
+        daemon(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "ClusterAccept").start();
+        for(PeerLink link : links)
+            daemon(link, "ClusterLink-" + link.host + ":" + link.port).start();
+        ServerLog.info("Cluster node " + nodeId + " on port " + config.clusterPort + ", " + links.size() + " peers.");
+    }
+
+    /** close every link **/
+    void stop() {
+        running = false;
+        try {
+            if(listener != null)
+                listener.close();
+        }
+        catch(IOException e) {}
+        for(Socket socket : inbound.keySet())
+            closeQuietly(socket);
+        for(PeerLink link : links)
+            link.close();
+    }
+
+    /** a chat line a local client sent **/
+    void chat(ChatlogEntry entry) {
+        publish(CHAT, entry.room, entry.sender, entry.message, entry.time);
+    }
+
+    /** a local client joined a room **/
+    void joined(String user, String room, String since) {
+        publish(JOIN, user, room, since, 0);
+    }
+
+    /** a local client left a room (or went away) **/
+    void left(String user, String room) {
+        publish(LEAVE, user, room, null, 0);
+    }
+
+    /** users of a room connected to other nodes **/
+    List<Member> remoteMembers(String room) {
+        List<Member> members = new ArrayList<Member>();
+        for(Map<String, Member> memberships : remote.values())
+            for(Member member : memberships.values())
+                if(member.room.equals(room))
+                    members.add(member);
+        Collections.sort(members, new Comparator<Member>() {
+            public int compare(Member a, Member b) {
+                int byNode = a.node.compareTo(b.node);
+                return byNode != 0 ? byNode : a.user.compareTo(b.user);
+            }
+        });
+        return members;
+    }
+
+    /** number a record and put it in the ring for the links to send **/
+    private void publish(int kind, String a, String b, String c, long time) {
+        byte[] bytes = encode(kind, a, b, c, time);
+        synchronized(this) {
+            ++lastSeq;
+            ring[(int) (lastSeq % ring.length)] = new Record(lastSeq, bytes);
+            notifyAll();
+        }
+        metrics.clusterRelayed.increment();
+    }
+
+    /** a record without its seq, which is written in front of it when it is sent **/
+    private static byte[] encode(int kind, String a, String b, String c, long time) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(kind);
+            writeString(out, a);
+            writeString(out, b);
+            if(kind != LEAVE)
+                writeString(out, c);
+            if(kind == CHAT)
+                out.writeLong(time);
+            return bytes.toByteArray();
+        }
+        catch(IOException e) {
+            throw new UncheckedIOException(e); // a byte array does not throw
+        }
+    }
+
+    /** the MEMBERS record a link starts with: every local membership, as of the last record published **/
+    private synchronized Record members() {
+        try {
+            List<Member> members = node.members();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + members.size() * 32);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(MEMBERS);
+            out.writeLong(lastSeq);
+            out.writeInt(members.size());
+            for(Member member : members) {
+                writeString(out, member.user);
+                writeString(out, member.room);
+                writeString(out, member.since);
+            }
+            return new Record(0, bytes.toByteArray());
+        }
+        catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * wait for records after position (up to the flush time for more, once there are some) and
+     * collect up to batchBytes of them into batch; returns the new position, skipping ahead
+     * (and counting the gap) if the ring has already overwritten the next one; the batch is
+     * left empty if nothing came within IDLE_MILLIS
+     **/
+    private synchronized long next(PeerLink link, long position, List<Record> batch, long flushNanos)
+            throws InterruptedException {
+        long idleUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(IDLE_MILLIS);
+        long idle;
+        while(running && !link.closed && position >= lastSeq) {
+            if((idle = idleUntil - System.nanoTime()) <= 0)
+                return position;
+            TimeUnit.NANOSECONDS.timedWait(this, idle);
+        }
+        long deadline = System.nanoTime() + flushNanos;
+        long wait;
+        while(running && lastSeq - position < 256 && (wait = deadline - System.nanoTime()) > 0)
+            TimeUnit.NANOSECONDS.timedWait(this, wait);
+        if(lastSeq - position > ring.length) {
+            long missed = lastSeq - ring.length - position;
+            metrics.clusterGaps.add(missed);
+            ServerLog.warn("Cluster peer " + link.host + ":" + link.port + " missed " + missed
+                    + " records, it fell more than the replay ring behind.");
+            position = lastSeq - ring.length;
+        }
+        int bytes = 0;
+        while(position < lastSeq && bytes < config.clusterBatchBytes && batch.size() < 0xFFFF) {
+            Record record = ring[(int) (++position % ring.length)];
+            batch.add(record);
+            bytes += 8 + record.bytes.length;
+        }
+        return position;
+    }
+
+    /** accept links from peers, reading each on its own thread **/
+    private void accept() {
+        while(running) {
+            final Socket socket;
+            try {
+                socket = listener.accept();
+            }
+            catch(IOException e) {
+                if(running)
+                    ServerLog.warn("Cluster accept failed: " + e.getMessage());
+                continue;
+            }
+            Thread reader = daemon(new Runnable() {
+                public void run() {
+                    receive(socket);
+                }
+            }, "ClusterPeer-" + socket.getRemoteSocketAddress());
+            inbound.put(socket, reader);
+            reader.start();
+        }
+    }
+
+    /** handshake with a peer that dialed in, then take its records until the link closes **/
+    private void receive(Socket socket) {
+        String peer = null;
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 << 10));
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            int version = in.readUnsignedByte();
+            if(!Arrays.equals(magic, MAGIC) || version != VERSION)
+                throw new StreamCorruptedException("not a cluster peer (or another version)");
+            peer = readString(in);
+            String origin = peer + "/" + in.readLong();
+            retire(linkFrom.put(peer, socket)); // a link it dialed before this one is stale
+            Long seen = lastSeen.get(origin);
+            out.writeLong(seen == null ? -1 : seen);
+            out.flush();
+            ServerLog.info("Cluster peer " + peer + " linked from " + socket.getRemoteSocketAddress() + ".");
+            while(running) {
+                int length = in.readInt();
+                if(length < 2)
+                    throw new StreamCorruptedException("invalid cluster frame length " + length);
+                for(int count = in.readUnsignedShort(); count > 0; --count)
+                    take(peer, origin, in);
+            }
+        }
+        catch(EOFException | SocketException e) {
+            // the peer went away
+        }
+        catch(IOException e) {
+            ServerLog.warn("Cluster link from " + (peer == null ? socket.getRemoteSocketAddress() : peer)
+                    + " failed: " + e.getMessage());
+        }
+        finally {
+            inbound.remove(socket);
+            closeQuietly(socket);
+            if(peer != null && linkFrom.remove(peer, socket)) {
+                remote.remove(peer); // its users are gone until it links again
+                ServerLog.info("Cluster peer " + peer + " unlinked.");
+            }
+        }
+    }
+
+    /**
+     * close a peer's stale inbound link and wait for its reader to finish, so records it still had
+     * buffered are taken before lastSeen is read, and only one thread takes that peer's records
+     **/
+    private void retire(Socket stale) throws IOException {
+        if(stale == null)
+            return;
+        closeQuietly(stale);
+        Thread reader = inbound.get(stale);
+        if(reader == null)
+            return;
+        try {
+            reader.join(READ_TIMEOUT_MILLIS);
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("stopped waiting for the stale link from the same peer");
+        }
+        if(reader.isAlive())
+            throw new IOException("the stale link from the same peer is still being read");
+    }
+
+    /**
+     * read one record and apply it unless it was taken before; the record is read whole before it
+     * counts as taken, so a link that fails partway through one leaves it to be sent again
+     **/
+    private void take(String peer, String origin, DataInputStream in) throws IOException {
+        long seq = in.readLong();
+        int kind = in.readUnsignedByte();
+        String a = null, b = null, c = null;
+        long time = 0;
+        Map<String, Member> members = null;
+        switch(kind) {
+            case CHAT:
+                a = readString(in); // room
+                b = readString(in); // sender
+                c = readString(in); // text
+                time = in.readLong();
+                break;
+            case JOIN:
+                a = readString(in); // user
+                b = readString(in); // room
+                c = readString(in); // since
+                break;
+            case LEAVE:
+                a = readString(in); // user
+                b = readString(in); // room
+                break;
+            case MEMBERS:
+                time = in.readLong(); // asOf
+                members = new ConcurrentHashMap<String, Member>();
+                for(int count = in.readInt(); count > 0; --count) {
+                    String user = readString(in), room = readString(in), since = readString(in);
+                    members.put(user + '\u0000' + room, new Member(user, room, since, peer));
+                }
+                break;
+            default:
+                throw new StreamCorruptedException("unknown cluster record kind " + kind);
+        }
+        Long seen = lastSeen.get(origin);
+        boolean duplicate = seq != 0 && seen != null && seq <= seen;
+        if(seq != 0)
+            lastSeen.put(origin, duplicate ? seen : seq);
+        Long asOf = membersAsOf.get(origin);
+        boolean stale = duplicate || (asOf != null && seq <= asOf); // a room change MEMBERS already covered
+        switch(kind) {
+            case CHAT:
+                if(!duplicate)
+                    node.relayed(a, b, c, time);
+                break;
+            case JOIN:
+                if(!stale)
+                    memberships(peer).put(a + '\u0000' + b, new Member(a, b, c, peer));
+                break;
+            case LEAVE:
+                if(!stale)
+                    memberships(peer).remove(a + '\u0000' + b);
+                break;
+            case MEMBERS:
+                membersAsOf.put(origin, time);
+                remote.put(peer, members);
+                break;
+        }
+        if(duplicate)
+            metrics.clusterDuplicates.increment();
+        else
+            metrics.clusterReceived.increment();
+    }
+
+    private Map<String, Member> memberships(String peer) {
+        Map<String, Member> members = remote.get(peer);
+        if(members == null) {
+            members = new ConcurrentHashMap<String, Member>();
+            Map<String, Member> raced = remote.putIfAbsent(peer, members);
+            if(raced != null)
+                members = raced;
+        }
+        return members;
+    }
+
+    /**
+     * the link to one peer: dials it (again after any failure), then sends the ring's records
+     * from where the peer got to, in batches of one frame each
+     **/
+    private final class PeerLink implements Runnable {
+        final String host;
+        final int port;
+        private volatile Socket socket;
+        volatile boolean closed; // the current connection is being torn down
+
+        PeerLink(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        void close() {
+            closed = true;
+            closeQuietly(socket);
+        }
+
+        public void run() {
+            boolean warned = false;
+            while(running) {
+                closed = false;
+                try {
+                    link();
+                    warned = false;
+                }
+                catch(InterruptedException e) {
+                    return;
+                }
+                catch(IOException e) {
+                    if(running && !warned) // once per outage, not once per attempt
+                        ServerLog.warn("Cluster peer " + host + ":" + port + " unreachable: " + e.getMessage());
+                    warned = true;
+                }
+                finally {
+                    closeQuietly(socket);
+                }
+                try {
+                    Thread.sleep(Math.max(1, config.clusterReconnectMillis));
+                }
+                catch(InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /** one connection: handshake, MEMBERS, then batches of records until it fails **/
+        private void link() throws IOException, InterruptedException {
+            Socket s = new Socket();
+            socket = s;
+            s.connect(new InetSocketAddress(host, port), (int) Math.max(1000, config.clusterReconnectMillis));
+            s.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 64 << 10));
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            writeString(out, nodeId);
+            out.writeLong(incarnation);
+            out.flush();
+            long seen = in.readLong();
+            Record members;
+            long position;
+            synchronized(ClusterRelay.this) { // nothing published between the snapshot and where the link starts
+                members = members();
+                position = seen >= 0 ? Math.min(seen, lastSeq) : lastSeq;
+            }
+            ServerLog.info("Cluster peer " + host + ":" + port + " linked"
+                    + (seen >= 0 ? ", resuming after record " + seen : "") + ".");
+            List<Record> batch = new ArrayList<Record>();
+            batch.add(members);
+            long flushNanos = TimeUnit.MICROSECONDS.toNanos(config.clusterFlushMicros);
+            while(running && !closed) {
+                if(batch.isEmpty())
+                    position = next(this, position, batch, flushNanos);
+                int bytes = 0;
+                for(Record record : batch)
+                    bytes += 8 + record.bytes.length;
+                out.writeInt(2 + bytes);
+                out.writeShort(batch.size());
+                for(Record record : batch) {
+                    out.writeLong(record.seq);
+                    out.write(record.bytes);
+                }
+                out.flush();
+                if(!batch.isEmpty())
+                    metrics.clusterBatches.increment();
+                batch.clear();
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if(s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if(length < 0)
+            return null;
+        if(length > 1 << 20)
+            throw new StreamCorruptedException("invalid string length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            if(socket != null)
+                socket.close();
+        }
+        catch(IOException e) {}
+    }
+}
@@ -0,0 +1,117 @@
+import java.io.ObjectStreamConstants;
+import java.nio.ByteBuffer;
+
+/***********************************************************************************
+ * An outgoing message encoded once and shared by every recipient                  *
+ *                                                                                 *
+ * the bytes are exactly what ObjectOutputStream.writeObject(text + "\n") would    *
+ * send after a reset, so existing ObjectInputStream clients read them as the      *
+ * same String; because each frame starts with TC_RESET it never refers back to    *
+ * an earlier frame and the client's handle table never grows; the binary          *
+ * protocol encoding is built the first time a binary client needs it (control     *
+ * frames such as PING only make sense to binary clients); a stored chat line      *
+ * carries its chatlog id, which version 2 binary clients receive with it          *
+ ***********************************************************************************/
+
+final class Frame implements ObjectStreamConstants {
+
+    /** what a new ObjectOutputStream writes first; sent once per connection **/
+    static final byte[] STREAM_HEADER = {
+            (byte) (STREAM_MAGIC >>> 8), (byte) STREAM_MAGIC,
+            (byte) (STREAM_VERSION >>> 8), (byte) STREAM_VERSION };
+
+    final int type; // ChatMessage type binary clients receive (MESSAGE for chat text)
+    final String text; // message as shown to users (without the trailing newline)
+    final long sequence; // chatlog id of a stored chat line, 0 for anything else
+    final long created = System.nanoTime(); // for delivery latency metrics
+    private final byte[] legacy; // object stream encoding
+    private volatile byte[] binary; // ChatCodec encoding, built on first use
+    private volatile byte[] sequenced; // ChatCodec encoding with the sequence number, built on first use
+
+    private Frame(int type, long sequence, String text) {
+        this.type = type;
+        this.sequence = sequence;
+        this.text = text;
+        this.legacy = encodeLegacy(text + "\n");
+    }
+
+    /** encode a message for sending **/
+    static Frame of(String text) {
+        return new Frame(ChatMessage.MESSAGE, 0, text);
+    }
+
+    /** encode a stored chat line for sending **/
+    static Frame of(long sequence, String text) {
+        return new Frame(ChatMessage.MESSAGE, sequence, text);
+    }
+
+    /** a PING or PONG for a binary client **/
+    static Frame control(int type) {
+        return new Frame(type, 0, "");
+    }
+
+    /** encoded bytes for a connection's protocol (shared, do not modify) **/
+    byte[] bytes(ChatCodec.Protocol protocol) {
+        if(protocol == ChatCodec.Protocol.LEGACY)
+            return legacy;
+        byte[] encoded = binary;
+        if(encoded == null)
+            binary = encoded = ChatCodec.encode(type, text);
+        return encoded;
+    }
+
+    /** encoded bytes for a connection's protocol and negotiated binary version (shared, do not modify) **/
+    byte[] bytes(ChatCodec.Protocol protocol, int version) {
+        if(protocol == ChatCodec.Protocol.LEGACY || sequence == 0 || version < ChatCodec.SEQUENCED)
+            return bytes(protocol);
+        byte[] encoded = sequenced;
+        if(encoded == null)
+            sequenced = encoded = ChatCodec.encodeSequenced(type, sequence, text);
+        return encoded;
+    }
+
+    /** read-only view of the encoded bytes with its own position, for one connection's write queue **/
+    ByteBuffer buffer(ChatCodec.Protocol protocol, int version) {
+        return ByteBuffer.wrap(bytes(protocol, version)).asReadOnlyBuffer();
+    }
+
+    /** TC_RESET followed by the string as TC_STRING (or TC_LONGSTRING) in modified UTF-8 **/
+    private static byte[] encodeLegacy(String s) {
+        long utfLength = 0;
+        for(int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            utfLength += (c >= 0x0001 && c <= 0x007F) ? 1 : (c <= 0x07FF ? 2 : 3);
+        }
+        boolean isLong = utfLength > 0xFFFF;
+        int headerLength = 1 + (isLong ? 1 + 8 : 1 + 2);
+        byte[] out = new byte[headerLength + (int) utfLength];
+        int pos = 0;
+        out[pos++] = TC_RESET;
+        if(isLong) {
+            out[pos++] = TC_LONGSTRING;
+            for(int shift = 56; shift >= 0; shift -= 8)
+                out[pos++] = (byte) (utfLength >>> shift);
+        }
+        else {
+            out[pos++] = TC_STRING;
+            out[pos++] = (byte) (utfLength >>> 8);
+            out[pos++] = (byte) utfLength;
+        }
+        for(int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if(c >= 0x0001 && c <= 0x007F) {
+                out[pos++] = (byte) c;
+            }
+            else if(c <= 0x07FF) {
+                out[pos++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+                out[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+            else {
+                out[pos++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+                out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return out;
+    }
+}
@@ -0,0 +1,40 @@
+/***********************************************************************************
+ * Which page of chat history a HISTORY request asks for                           *
+ *                                                                                 *
+ * the request's message text selects the page:                                    *
+ *   ""                  the latest page                                           *
+ *   "N"                 the latest N messages                                     *
+ *   "before X"          the page of messages older than id X                      *
+ *   "before X N"        the N messages older than id X                            *
+ ***********************************************************************************/
+
+final class HistoryQuery {
+
+    final long beforeId; // only messages with a smaller id (Long.MAX_VALUE for the latest)
+    final int limit; // max messages in the page
+
+    HistoryQuery(long beforeId, int limit) {
+        this.beforeId = beforeId;
+        this.limit = limit;
+    }
+
+    /** parse a HISTORY request, falling back to the latest default-sized page on anything unreadable **/
+    static HistoryQuery parse(String text, int defaultLimit, int maxLimit) {
+        long beforeId = Long.MAX_VALUE;
+        int limit = defaultLimit;
+        String[] words = text == null ? new String[0] : text.trim().split("\\s+");
+        try {
+            int i = 0;
+            if(i < words.length && words[i].equalsIgnoreCase("before") && i + 1 < words.length) {
+                beforeId = Long.parseLong(words[i + 1]);
+                i += 2;
+            }
+            if(i < words.length && !words[i].isEmpty())
+                limit = Integer.parseInt(words[i]);
+        }
+        catch(NumberFormatException e) {
+            return new HistoryQuery(Long.MAX_VALUE, defaultLimit);
+        }
+        return new HistoryQuery(beforeId, Math.max(1, Math.min(limit, maxLimit)));
+    }
+}
@@ -0,0 +1,98 @@
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/***********************************************************************************
+ * Lock-free latency histogram for hot paths                                       *
+ *                                                                                 *
+ * each power of two of nanoseconds is split into 8 linear sub-buckets (values     *
+ * within 12.5% share a bucket), and every bucket is a striped LongAdder, so many  *
+ * threads can record at once without contending on one counter; readers take a    *
+ * snapshot of the counts and compute percentiles from it                          *
+ ***********************************************************************************/
+
+final class LatencyHistogram {
+
+    private static final int SUB_BITS = 3; // 2^3 sub-buckets per power of two
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder total = new LongAdder(); // sum of recorded nanos
+    private final LongAccumulator max = new LongAccumulator(new LongBinaryOperator() {
+        public long applyAsLong(long a, long b) {
+            return Math.max(a, b);
+        }
+    }, 0);
+
+    LatencyHistogram() {
+        for(int i = 0; i < BUCKETS; ++i)
+            counts[i] = new LongAdder();
+    }
+
+    /** add one measurement **/
+    void record(long nanos) {
+        if(nanos < 0)
+            nanos = 0;
+        counts[bucket(nanos)].increment();
+        total.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    /** current count of every bucket (weakly consistent while others record) **/
+    long[] snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        for(int i = 0; i < BUCKETS; ++i)
+            snapshot[i] = counts[i].sum();
+        return snapshot;
+    }
+
+    long getTotalNanos() {
+        return total.sum();
+    }
+
+    long getMaxNanos() {
+        return max.get();
+    }
+
+    /** the value below which the fraction p (0..1) of a snapshot's measurements fall, 0 if it is empty **/
+    static long percentile(long[] snapshot, double p) {
+        long count = 0;
+        for(long n : snapshot)
+            count += n;
+        if(count == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(p * count));
+        for(int i = 0; i < snapshot.length; ++i) {
+            rank -= snapshot[i];
+            if(rank <= 0)
+                return upperBound(i);
+        }
+        return upperBound(snapshot.length - 1);
+    }
+
+    /** counts recorded between two snapshots **/
+    static long[] since(long[] now, long[] before) {
+        long[] delta = new long[now.length];
+        for(int i = 0; i < now.length; ++i)
+            delta[i] = now[i] - (before == null ? 0 : before[i]);
+        return delta;
+    }
+
+    private static int bucket(long nanos) {
+        if(nanos < SUB)
+            return (int) nanos;
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB - 1);
+        return (exponent - SUB_BITS + 1) * SUB + sub;
+    }
+
+    /** largest value that falls in a bucket **/
+    private static long upperBound(int bucket) {
+        if(bucket < SUB)
+            return bucket;
+        int exponent = bucket / SUB + SUB_BITS - 1;
+        int sub = bucket % SUB;
+        return ((long) (SUB + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+}
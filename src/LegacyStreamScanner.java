@@ -0,0 +1,316 @@
+import java.io.ObjectStreamConstants;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/***********************************************************************************
+ * Finds complete objects in a partially received Java serialization stream        *
+ *                                                                                 *
+ * the NIO transport reads whatever bytes have arrived; this scanner walks the     *
+ * serialization grammar (without building any objects) to tell whether the next   *
+ * top-level object is complete, so ObjectInputStream is only ever handed whole    *
+ * objects and never blocks an event-loop thread                                   *
+ ***********************************************************************************/
+
+class LegacyStreamScanner implements ObjectStreamConstants {
+
+    /** thrown internally when the buffer ends in the middle of an object **/
+    private static final class Incomplete extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Incomplete() {
+            super(null, null, false, false);
+        }
+    }
+    private static final Incomplete INCOMPLETE = new Incomplete();
+
+    /** what the scanner remembers about a class descriptor so later references can be walked **/
+    private static final class ClassDesc {
+        String name; // class name (array classes start with '[')
+        byte flags; // SC_* flags
+        char[] fieldTypes; // one type code per serialized field
+        ClassDesc superDesc; // null at the top of the hierarchy
+    }
+
+    private List<Object> handles = new ArrayList<Object>(); // mirrors the reader's handle table
+    private boolean headerRead; // stream magic and version consumed
+    private ByteBuffer buf; // buffer being scanned
+    private int pos; // current scan position in buf
+    private List<Object> beforeReset; // handle table to restore if a reset is rolled back
+
+    /**
+     * length in bytes of the next complete top-level element starting at the buffer's
+     * position (the stream header counts as an element), or -1 if more bytes are needed
+     **/
+    int scan(ByteBuffer in) throws java.io.StreamCorruptedException {
+        buf = in;
+        pos = in.position();
+        int handleCount = handles.size();
+        beforeReset = null;
+        try {
+            if(!headerRead) {
+                need(4);
+                if(buf.getShort(pos) != STREAM_MAGIC || buf.getShort(pos + 2) != STREAM_VERSION)
+                    throw new java.io.StreamCorruptedException("invalid stream header");
+                headerRead = true;
+                return 4;
+            }
+            // readObject() consumes any resets in front of the object itself
+            while(peek() == TC_RESET) {
+                pos++;
+                reset();
+            }
+            object();
+            return pos - in.position();
+        }
+        catch(Incomplete e) {
+            // roll back anything recorded for the partial object
+            if(beforeReset != null)
+                handles = beforeReset;
+            while(handles.size() > handleCount)
+                handles.remove(handles.size() - 1);
+            return -1;
+        }
+        finally {
+            buf = null;
+        }
+    }
+
+    /** walk one object (any content item readObject can return) **/
+    private Object object() throws java.io.StreamCorruptedException {
+        byte tc = next();
+        switch(tc) {
+            case TC_NULL:
+                return null;
+            case TC_REFERENCE:
+                return reference();
+            case TC_STRING:
+                skip(u2());
+                return newHandle(null);
+            case TC_LONGSTRING:
+                skipLong(s8());
+                return newHandle(null);
+            case TC_CLASS:
+                classDesc();
+                return newHandle(null);
+            case TC_CLASSDESC:
+            case TC_PROXYCLASSDESC:
+                pos--;
+                return classDesc();
+            case TC_ENUM:
+                classDesc();
+                newHandle(null);
+                object(); // constant name
+                return null;
+            case TC_ARRAY:
+                array();
+                return null;
+            case TC_OBJECT:
+                newObject();
+                return null;
+            default:
+                throw new java.io.StreamCorruptedException(String.format("unsupported type code 0x%02X", tc));
+        }
+    }
+
+    /** walk a class descriptor and return what it describes (null for TC_NULL) **/
+    private ClassDesc classDesc() throws java.io.StreamCorruptedException {
+        byte tc = next();
+        switch(tc) {
+            case TC_NULL:
+                return null;
+            case TC_REFERENCE:
+                Object ref = reference();
+                if(!(ref instanceof ClassDesc))
+                    throw new java.io.StreamCorruptedException("reference is not a class descriptor");
+                return (ClassDesc) ref;
+            case TC_PROXYCLASSDESC: {
+                ClassDesc desc = new ClassDesc();
+                desc.flags = SC_SERIALIZABLE;
+                desc.fieldTypes = new char[0];
+                desc.name = "$Proxy";
+                newHandle(desc);
+                int interfaces = s4();
+                for(int i = 0; i < interfaces; ++i)
+                    skip(u2());
+                annotation();
+                desc.superDesc = classDesc();
+                return desc;
+            }
+            case TC_CLASSDESC: {
+                ClassDesc desc = new ClassDesc();
+                desc.name = utf();
+                skip(8); // serialVersionUID
+                newHandle(desc);
+                desc.flags = next();
+                int count = u2();
+                desc.fieldTypes = new char[count];
+                for(int i = 0; i < count; ++i) {
+                    desc.fieldTypes[i] = (char) next();
+                    skip(u2()); // field name
+                    if(desc.fieldTypes[i] == '[' || desc.fieldTypes[i] == 'L')
+                        object(); // field type name
+                }
+                annotation();
+                desc.superDesc = classDesc();
+                return desc;
+            }
+            default:
+                throw new java.io.StreamCorruptedException(String.format("invalid class descriptor 0x%02X", tc));
+        }
+    }
+
+    /** walk the data of a new (TC_OBJECT) instance, superclass data first **/
+    private void newObject() throws java.io.StreamCorruptedException {
+        ClassDesc desc = classDesc();
+        newHandle(null);
+        List<ClassDesc> hierarchy = new ArrayList<ClassDesc>();
+        for(ClassDesc d = desc; d != null; d = d.superDesc)
+            hierarchy.add(0, d);
+        for(ClassDesc d : hierarchy) {
+            if((d.flags & SC_EXTERNALIZABLE) != 0) {
+                if((d.flags & SC_BLOCK_DATA) == 0)
+                    throw new java.io.StreamCorruptedException("externalizable data without block mode");
+                annotation();
+            }
+            else if((d.flags & SC_SERIALIZABLE) != 0) {
+                for(char type : d.fieldTypes)
+                    value(type);
+                if((d.flags & SC_WRITE_METHOD) != 0)
+                    annotation();
+            }
+        }
+    }
+
+    /** walk an array instance **/
+    private void array() throws java.io.StreamCorruptedException {
+        ClassDesc desc = classDesc();
+        newHandle(null);
+        int length = s4();
+        char type = desc != null && desc.name.length() > 1 ? desc.name.charAt(1) : 'L';
+        int size = primitiveSize(type);
+        if(size > 0) {
+            skipLong((long) size * length);
+        }
+        else {
+            for(int i = 0; i < length; ++i)
+                object();
+        }
+    }
+
+    /** walk one serialized field value **/
+    private void value(char type) throws java.io.StreamCorruptedException {
+        int size = primitiveSize(type);
+        if(size > 0)
+            skip(size);
+        else
+            object();
+    }
+
+    /** walk block data and objects up to and including TC_ENDBLOCKDATA **/
+    private void annotation() throws java.io.StreamCorruptedException {
+        while(true) {
+            byte tc = peek();
+            if(tc == TC_ENDBLOCKDATA) {
+                pos++;
+                return;
+            }
+            if(tc == TC_BLOCKDATA) {
+                pos++;
+                skip(next() & 0xFF);
+            }
+            else if(tc == TC_BLOCKDATALONG) {
+                pos++;
+                skipLong(s4() & 0xFFFFFFFFL);
+            }
+            else if(tc == TC_RESET) {
+                pos++;
+                reset();
+            }
+            else {
+                object();
+            }
+        }
+    }
+
+    /** clear the handle table, keeping the old one in case the scan is rolled back **/
+    private void reset() {
+        if(beforeReset == null)
+            beforeReset = handles;
+        handles = new ArrayList<Object>();
+    }
+
+    private static int primitiveSize(char type) {
+        switch(type) {
+            case 'B': case 'Z': return 1;
+            case 'C': case 'S': return 2;
+            case 'I': case 'F': return 4;
+            case 'J': case 'D': return 8;
+            default: return 0;
+        }
+    }
+
+    private Object reference() throws java.io.StreamCorruptedException {
+        int index = s4() - baseWireHandle;
+        if(index < 0 || index >= handles.size())
+            throw new java.io.StreamCorruptedException("invalid handle " + index);
+        return handles.get(index);
+    }
+
+    private <T> T newHandle(T value) {
+        handles.add(value);
+        return value;
+    }
+
+    /* primitive readers that throw INCOMPLETE when the buffer runs out */
+
+    private void need(long n) {
+        if(buf.limit() - pos < n)
+            throw INCOMPLETE;
+    }
+    private byte peek() {
+        need(1);
+        return buf.get(pos);
+    }
+    private byte next() {
+        need(1);
+        return buf.get(pos++);
+    }
+    private int u2() {
+        need(2);
+        int v = buf.getShort(pos) & 0xFFFF;
+        pos += 2;
+        return v;
+    }
+    private int s4() {
+        need(4);
+        int v = buf.getInt(pos);
+        pos += 4;
+        return v;
+    }
+    private long s8() {
+        need(8);
+        long v = buf.getLong(pos);
+        pos += 8;
+        return v;
+    }
+    private void skip(int n) {
+        need(n);
+        pos += n;
+    }
+    private void skipLong(long n) throws java.io.StreamCorruptedException {
+        if(n < 0 || n > Integer.MAX_VALUE)
+            throw new java.io.StreamCorruptedException("invalid length " + n);
+        skip((int) n);
+    }
+    private String utf() {
+        int length = u2();
+        need(length);
+        byte[] bytes = new byte[length];
+        for(int i = 0; i < length; ++i)
+            bytes[i] = buf.get(pos + i);
+        pos += length;
+        // class names are plain ASCII in practice, modified UTF-8 only differs outside it
+        return new String(bytes, java.nio.charset.StandardCharsets.UTF_8);
+    }
+}
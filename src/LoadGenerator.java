@@ -0,0 +1,421 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+
+/***********************************************************************************
+ * Headless load generator and end-to-end throughput harness                       *
+ *                                                                                 *
+ * opens many client connections to a server on this machine, completes the        *
+ * username handshake on each (object stream or binary protocol), then has a few   *
+ * of them send MESSAGE traffic at a fixed total rate while every connection       *
+ * reads what the server broadcasts. Each message carries its sender, a per-sender *
+ * sequence number and its intended send time, so the receivers can report         *
+ * latency percentiles (measured from the intended time, so a stalled sender does  *
+ * not hide the delay) and lost, duplicated and out-of-order messages              *
+ *                                                                                 *
+ *   > java LoadGenerator [--port n] [--clients n] [--senders n] [--rate msgs/s]   *
+ *          [--duration s] [--protocol LEGACY|BINARY] [--readers n] [--drain s]    *
+ *          [--embedded]                                                           *
+ *                                                                                 *
+ * --embedded starts the server in this JVM (its settings from -Dchat.*, with the  *
+ * chat rate limit and per-source connection cap off unless given; a separate      *
+ * server applies its own); every connection is to the loopback address. Each      *
+ * connection needs a file descriptor here (and two with an embedded server), so   *
+ * raise ulimit -n for thousands of clients                                        *
+ ***********************************************************************************/
+
+public class LoadGenerator {
+
+    private static final String MARKER = "lg:"; // start of a load message: lg:sender:seq:sentNanos
+
+    private int port = 8700;
+    private int clients = 1000; // connections opened
+    private int senders = 10; // connections that send (all of them receive)
+    private int rate = 1000; // messages per second over all senders
+    private int durationSeconds = 30;
+    private ChatCodec.Protocol protocol = ChatCodec.Protocol.LEGACY;
+    private int readers = 2; // selector threads reading the connections
+    private int drainSeconds = 5; // longest wait for messages still in flight after sending stops
+    private boolean embedded;
+
+    private Connection[] connections;
+    private long[] sentBySender; // messages sent by each sender
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private volatile boolean reading = true;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.parse(args);
+        }
+        catch(IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println("Usage: > java LoadGenerator [--port n] [--clients n] [--senders n] [--rate msgs/s]"
+                    + " [--duration s] [--protocol LEGACY|BINARY] [--readers n] [--drain s] [--embedded]");
+            return;
+        }
+        generator.run();
+    }
+
+    private void parse(String[] args) {
+        for(int i = 0; i < args.length; ++i) {
+            String arg = args[i];
+            if(arg.equals("--embedded")) {
+                embedded = true;
+                continue;
+            }
+            if(i + 1 == args.length)
+                throw new IllegalArgumentException("Missing value for " + arg + ".");
+            String value = args[++i];
+            try {
+                switch(arg) {
+                    case "--port": port = Integer.parseInt(value); break;
+                    case "--clients": clients = Integer.parseInt(value); break;
+                    case "--senders": senders = Integer.parseInt(value); break;
+                    case "--rate": rate = Integer.parseInt(value); break;
+                    case "--duration": durationSeconds = Integer.parseInt(value); break;
+                    case "--protocol": protocol = ChatCodec.Protocol.valueOf(value.toUpperCase()); break;
+                    case "--readers": readers = Integer.parseInt(value); break;
+                    case "--drain": drainSeconds = Integer.parseInt(value); break;
+                    default: throw new IllegalArgumentException("Unknown option " + arg + ".");
+                }
+            }
+            catch(NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value " + value + " for " + arg + ".");
+            }
+        }
+        if(clients < 1 || senders < 1 || senders > clients || rate < 1 || readers < 1)
+            throw new IllegalArgumentException("Need at least one client, sender, reader and message per second,"
+                    + " and no more senders than clients.");
+    }
+
+    private void run() throws Exception {
+        Server server = null;
+        Thread serverThread = null;
+        if(embedded) {
+            ServerConfig config = ServerConfig.fromSystemProperties();
+            config.port = port;
+            config.consoleLevel = ServerLog.Level.WARN; // not a console line per message
+            if(System.getProperty("chat.rate.chatPerSecond") == null)
+                config.rateChatPerSecond = 0; // each sender runs far above a person's typing rate
+            if(System.getProperty("chat.net.maxConnectionsPerSource") == null)
+                config.maxConnectionsPerSource = 0; // every client is on the loopback address
+            final Server embeddedServer = server = new Server(config, null);
+            serverThread = new Thread(new Runnable() {
+                public void run() {
+                    embeddedServer.start();
+                }
+            }, "LoadGeneratorServer");
+            serverThread.start();
+            Thread.sleep(1000); // let the server open its chatlog and bind
+        }
+
+        // connect and log in every client, then hand them to the reader threads
+        long connectStart = System.nanoTime();
+        connections = new Connection[clients];
+        for(int i = 0; i < clients; ++i)
+            connections[i] = connect(i);
+        long connectNanos = System.nanoTime() - connectStart;
+        sentBySender = new long[senders];
+        ReadLoop[] readerThreads = new ReadLoop[readers];
+        for(int i = 0; i < readers; ++i)
+            readerThreads[i] = new ReadLoop("LoadGeneratorReader-" + i);
+        for(Connection connection : connections)
+            readerThreads[connection.index % readers].add(connection);
+        for(ReadLoop reader : readerThreads)
+            reader.start();
+        System.out.println(clients + " clients connected in " + connectNanos / 1000000 + " ms ("
+                + protocol + "), sending " + rate + " msg/s from " + senders + " senders for " + durationSeconds + " s");
+
+        long sent = send();
+
+        // wait for the broadcasts still in flight, then stop reading
+        long expected = sent * clients;
+        long drainEnd = System.nanoTime() + drainSeconds * 1000000000L;
+        while(received() < expected && System.nanoTime() < drainEnd)
+            Thread.sleep(50);
+        reading = false;
+        for(ReadLoop reader : readerThreads) {
+            reader.selector.wakeup();
+            reader.join();
+        }
+        report(sent, connectNanos);
+        if(server != null) {
+            long writes = server.getMetrics().getSocketWrites();
+            System.out.println(String.format("server writes:    %d (%.2f per delivery)", writes,
+                    (double) writes / Math.max(1, sent * clients)));
+        }
+
+        for(Connection connection : connections)
+            connection.channel.close();
+        if(server != null) {
+            server.stop();
+            serverThread.join(10000);
+        }
+        System.exit(0);
+    }
+
+    /** one client connection, read by a single ReadLoop thread **/
+    private final class Connection {
+        final int index;
+        final SocketChannel channel;
+        ByteBuffer in = ByteBuffer.allocate(64 << 10);
+        ByteArrayOutputStream objectBytes; // legacy: what objectOut wrote since the last send
+        ObjectOutputStream objectOut;
+        final BitSet[] seen = new BitSet[senders]; // sequence numbers received from each sender
+        final long[] highest = new long[senders]; // highest sequence number received from each sender
+        long received, duplicates, outOfOrder; // written by the reader thread only
+
+        Connection(int index, SocketChannel channel) {
+            this.index = index;
+            this.channel = channel;
+            for(int s = 0; s < senders; ++s) {
+                seen[s] = new BitSet();
+                highest[s] = -1;
+            }
+        }
+
+        /** send one MESSAGE (from the sending thread; the channel is non-blocking) **/
+        void send(String text) throws IOException {
+            send(ChatMessage.MESSAGE, text);
+        }
+
+        /** send one message (from the sending thread, or a PONG from the reading thread) **/
+        synchronized void send(int type, String text) throws IOException {
+            ByteBuffer out;
+            if(protocol == ChatCodec.Protocol.LEGACY) {
+                objectOut.writeObject(new ChatMessage(type, text));
+                objectOut.reset();
+                objectOut.flush();
+                out = ByteBuffer.wrap(objectBytes.toByteArray());
+                objectBytes.reset();
+            }
+            else
+                out = ByteBuffer.wrap(ChatCodec.encode(type, text));
+            while(out.hasRemaining()) {
+                if(channel.write(out) == 0)
+                    Thread.yield(); // the server is behind on reading this socket
+            }
+        }
+
+        /** record one received line if it is a load message **/
+        void receive(String line) {
+            int at = line.indexOf(MARKER);
+            if(at < 0)
+                return; // a notice or a message from someone else
+            String[] fields = line.substring(at + MARKER.length()).trim().split(":");
+            int sender = Integer.parseInt(fields[0]);
+            long seq = Long.parseLong(fields[1]);
+            latency.record(System.nanoTime() - Long.parseLong(fields[2]));
+            if(seen[sender].get((int) seq)) {
+                ++duplicates;
+                return;
+            }
+            seen[sender].set((int) seq);
+            ++received;
+            if(seq < highest[sender])
+                ++outOfOrder;
+            else
+                highest[sender] = seq;
+        }
+    }
+
+    /** open a connection and complete the handshake in blocking mode **/
+    private Connection connect(int index) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        channel.socket().setTcpNoDelay(true);
+        Connection connection = new Connection(index, channel);
+        String username = "load" + index;
+        if(protocol == ChatCodec.Protocol.LEGACY) {
+            connection.objectBytes = new ByteArrayOutputStream();
+            connection.objectOut = new ObjectOutputStream(connection.objectBytes); // stream header
+            connection.objectOut.writeObject(username);
+            connection.objectOut.flush();
+            writeFully(channel, ByteBuffer.wrap(connection.objectBytes.toByteArray()));
+            connection.objectBytes.reset();
+            readFully(channel, Frame.STREAM_HEADER.length);
+        }
+        else {
+            readFully(channel, Frame.STREAM_HEADER.length);
+            writeFully(channel, ByteBuffer.wrap(ChatCodec.encodeHello(ChatCodec.VERSION, username, 0)));
+            readFully(channel, ChatCodec.MAGIC.length + 1);
+        }
+        channel.configureBlocking(false);
+        return connection;
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer out) throws IOException {
+        while(out.hasRemaining())
+            channel.write(out);
+    }
+
+    private static void readFully(SocketChannel channel, int length) throws IOException {
+        ByteBuffer in = ByteBuffer.allocate(length);
+        while(in.hasRemaining())
+            if(channel.read(in) < 0)
+                throw new EOFException("server closed the connection during the handshake");
+    }
+
+    /**
+     * send at the configured rate, round-robin over the senders; each message is stamped with the
+     * time it was due rather than the time it went out, so falling behind shows up as latency
+     **/
+    private long send() throws IOException {
+        long interval = 1000000000L / rate;
+        long start = System.nanoTime();
+        long end = start + durationSeconds * 1000000000L;
+        long count = 0;
+        for(long due = start; due < end; due = start + count * interval) {
+            long wait = due - System.nanoTime();
+            if(wait > 0)
+                LockSupport.parkNanos(wait);
+            int sender = (int) (count % senders);
+            connections[sender].send(MARKER + sender + ":" + sentBySender[sender] + ":" + due);
+            ++sentBySender[sender];
+            ++count;
+        }
+        return count;
+    }
+
+    /** distinct load messages received so far (read racily while readers run) **/
+    private long received() {
+        long received = 0;
+        for(Connection connection : connections)
+            received += connection.received;
+        return received;
+    }
+
+    /** a selector thread reading its share of the connections **/
+    private final class ReadLoop extends Thread {
+        final Selector selector;
+        private final List<Connection> pending = new ArrayList<Connection>();
+
+        ReadLoop(String name) throws IOException {
+            super(name);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        void add(Connection connection) {
+            pending.add(connection);
+        }
+
+        public void run() {
+            try {
+                for(Connection connection : pending)
+                    connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                while(reading) {
+                    selector.select(100);
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while(keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            read(connection);
+                        }
+                        catch(IOException e) {
+                            System.out.println("load" + connection.index + " disconnected: " + e);
+                            key.cancel();
+                        }
+                    }
+                }
+                selector.close();
+            }
+            catch(IOException e) {
+                System.out.println(getName() + " failed: " + e);
+            }
+        }
+
+        private void read(Connection connection) throws IOException {
+            if(connection.channel.read(connection.in) < 0)
+                throw new EOFException();
+            ByteBuffer in = connection.in;
+            in.flip();
+            String line;
+            while((line = protocol == ChatCodec.Protocol.LEGACY ? nextLegacy(in) : nextBinary(in, connection)) != null)
+                connection.receive(line);
+            in.compact();
+            if(!in.hasRemaining()) { // one message larger than the buffer
+                ByteBuffer larger = ByteBuffer.allocate(in.capacity() * 2);
+                in.flip();
+                larger.put(in);
+                connection.in = larger;
+            }
+        }
+    }
+
+    /** the next string the server sent as an object (TC_RESET then TC_STRING or TC_LONGSTRING), null if incomplete **/
+    private static String nextLegacy(ByteBuffer in) throws IOException {
+        while(in.hasRemaining() && in.get(in.position()) == ObjectStreamConstants.TC_RESET)
+            in.get();
+        if(!in.hasRemaining())
+            return null;
+        int p = in.position();
+        int tag = in.get(p);
+        int header;
+        long length;
+        if(tag == ObjectStreamConstants.TC_STRING) {
+            if(in.remaining() < 3)
+                return null;
+            header = 3;
+            length = in.getShort(p + 1) & 0xFFFF;
+        }
+        else if(tag == ObjectStreamConstants.TC_LONGSTRING) {
+            if(in.remaining() < 9)
+                return null;
+            header = 9;
+            length = in.getLong(p + 1);
+        }
+        else
+            throw new StreamCorruptedException("unexpected object stream tag " + tag);
+        if(in.remaining() < header + length)
+            return null;
+        // modified UTF-8 only differs from UTF-8 for NUL and supplementary characters
+        String text = new String(in.array(), in.arrayOffset() + p + header, (int) length, StandardCharsets.UTF_8);
+        in.position(p + header + (int) length);
+        return text;
+    }
+
+    /** the text of the next binary frame, null if incomplete; the server's PINGs are answered on the way **/
+    private static String nextBinary(ByteBuffer in, Connection connection) throws IOException {
+        ChatMessage message;
+        while((message = ChatCodec.decode(in, Integer.MAX_VALUE)) != null && message.getType() == ChatMessage.PING)
+            connection.send(ChatMessage.PONG, "");
+        return message == null ? null : message.getMessage();
+    }
+
+    private void report(long sent, long connectNanos) {
+        long received = 0, duplicates = 0, outOfOrder = 0, lost = 0;
+        for(Connection connection : connections) {
+            received += connection.received;
+            duplicates += connection.duplicates;
+            outOfOrder += connection.outOfOrder;
+            for(int s = 0; s < senders; ++s)
+                lost += sentBySender[s] - connection.seen[s].cardinality();
+        }
+        long[] counts = latency.snapshot();
+        System.out.println();
+        System.out.println("==== " + clients + " clients, " + senders + " senders, " + rate + " msg/s for "
+                + durationSeconds + " s ====");
+        System.out.println("connect all:      " + connectNanos / 1000000 + " ms");
+        System.out.println("messages sent:    " + sent + " (" + sent / Math.max(1, durationSeconds) + "/s)");
+        System.out.println("deliveries:       " + received + " of " + sent * clients + " expected ("
+                + received / Math.max(1, durationSeconds) + "/s)");
+        System.out.println("lost:             " + lost);
+        System.out.println("duplicated:       " + duplicates);
+        System.out.println("out of order:     " + outOfOrder);
+        System.out.println("latency p50:      " + LatencyHistogram.percentile(counts, 0.5) / 1000 + " us");
+        System.out.println("latency p90:      " + LatencyHistogram.percentile(counts, 0.9) / 1000 + " us");
+        System.out.println("latency p99:      " + LatencyHistogram.percentile(counts, 0.99) / 1000 + " us");
+        System.out.println("latency p99.9:    " + LatencyHistogram.percentile(counts, 0.999) / 1000 + " us");
+        System.out.println("latency max:      " + latency.getMaxNanos() / 1000 + " us");
+    }
+}
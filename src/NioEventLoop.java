@@ -0,0 +1,176 @@
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/***********************************************************************************
+ * One selector thread of the NIO transport                                        *
+ *                                                                                 *
+ * owns a Selector and the channels registered with it; readiness events are       *
+ * passed to each channel's Handler and work from other threads is run between     *
+ * selects via execute(); delayed work (schedule()) bounds how long a select waits *
+ ***********************************************************************************/
+
+class NioEventLoop implements Runnable {
+
+    /** callbacks for a channel registered with an event loop (always run on the loop thread) **/
+    interface Handler {
+        void registered(SelectionKey key) throws IOException;
+        void readable(SelectionKey key) throws IOException;
+        void writable(SelectionKey key) throws IOException;
+        void failed(Exception e); // channel must be closed
+    }
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>(); // work from other threads
+    private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>(); // delayed work, loop thread only
+    private long timerSeq; // keeps timers with the same deadline in scheduling order
+    private final Thread thread;
+    private volatile boolean running;
+
+    NioEventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        running = true;
+        thread.start();
+    }
+
+    /** stop selecting and close the selector (channels are closed by their owners) **/
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /** run a task on the loop thread (immediately if already on it) **/
+    void execute(Runnable task) {
+        if(inEventLoop()) {
+            task.run();
+            return;
+        }
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /** run a task on the loop thread once the delay has passed (call from the loop thread) **/
+    void schedule(Runnable task, long delayNanos) {
+        timers.add(new Timer(System.nanoTime() + delayNanos, timerSeq++, task));
+    }
+
+    /** a scheduled task, ordered by deadline **/
+    private static final class Timer implements Comparable<Timer> {
+        final long deadline;
+        final long seq;
+        final Runnable task;
+
+        Timer(long deadline, long seq, Runnable task) {
+            this.deadline = deadline;
+            this.seq = seq;
+            this.task = task;
+        }
+
+        public int compareTo(Timer other) {
+            long order = deadline - other.deadline;
+            if(order == 0)
+                order = seq - other.seq;
+            return order < 0 ? -1 : order > 0 ? 1 : 0;
+        }
+    }
+
+    /** register a non-blocking channel for reads; the handler is attached to its key **/
+    void register(final SocketChannel channel, final Handler handler) {
+        execute(new Runnable() {
+            public void run() {
+                try {
+                    channel.configureBlocking(false);
+                    handler.registered(channel.register(selector, SelectionKey.OP_READ, handler));
+                }
+                catch(IOException e) {
+                    handler.failed(e);
+                }
+            }
+        });
+    }
+
+    /** add or remove write interest, leaving read interest as it is **/
+    static void setWriteInterest(SelectionKey key, boolean write) {
+        setInterest(key, SelectionKey.OP_WRITE, write);
+    }
+
+    /** add or remove read interest (removed while a client is throttled), leaving write interest as it is **/
+    static void setReadInterest(SelectionKey key, boolean read) {
+        setInterest(key, SelectionKey.OP_READ, read);
+    }
+
+    private static void setInterest(SelectionKey key, int op, boolean on) {
+        if(!key.isValid())
+            return;
+        int ops = on ? key.interestOps() | op : key.interestOps() & ~op;
+        if(key.interestOps() != ops)
+            key.interestOps(ops);
+    }
+
+    /** select loop **/
+    public void run() {
+        while(running) {
+            try {
+                Timer next = timers.peek();
+                if(next == null)
+                    selector.select();
+                else {
+                    long wait = TimeUnit.NANOSECONDS.toMillis(next.deadline - System.nanoTime());
+                    if(wait > 0)
+                        selector.select(wait);
+                    else
+                        selector.selectNow();
+                }
+            }
+            catch(IOException e) {
+                ServerLog.error("Selector failed: " + e);
+                break;
+            }
+            Runnable task;
+            while((task = tasks.poll()) != null)
+                task.run();
+            long now = System.nanoTime();
+            while(!timers.isEmpty() && timers.peek().deadline - now <= 0)
+                timers.poll().task.run();
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while(keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Handler handler = (Handler) key.attachment();
+                try {
+                    if(key.isValid() && key.isReadable())
+                        handler.readable(key);
+                    if(key.isValid() && key.isWritable())
+                        handler.writable(key);
+                }
+                catch(Exception e) {
+                    key.cancel();
+                    handler.failed(e);
+                }
+            }
+        }
+        try {
+            selector.close();
+        }
+        catch(IOException e) {}
+    }
+}
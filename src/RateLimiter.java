@@ -0,0 +1,74 @@
+/***********************************************************************************
+ * Per-connection token buckets, one for each kind of client request               *
+ *                                                                                 *
+ *   chat     MESSAGE, ROOM_MESSAGE and DIRECT (each is a broadcast or DM and a    *
+ *            chatlog write)                                                       *
+ *   history  HISTORY and SEARCH (chatlog queries)                                 *
+ *   control  USERLIST, JOIN and LEAVE                                             *
+ *                                                                                 *
+ * each bucket holds up to burst tokens and refills at its rate; LOGOUT, PING and  *
+ * PONG are never limited. A limiter belongs to one connection and is only used    *
+ * by the thread reading that connection, so it needs no synchronization           *
+ ***********************************************************************************/
+
+final class RateLimiter {
+
+    private final Bucket chat, history, control; // null when that kind is unlimited
+
+    RateLimiter(ServerConfig config) {
+        chat = Bucket.of(config.rateChatPerSecond, config.rateChatBurst);
+        history = Bucket.of(config.rateHistoryPerSecond, config.rateHistoryBurst);
+        control = Bucket.of(config.rateControlPerSecond, config.rateControlBurst);
+    }
+
+    /** take a token for a message of this type: 0 if it may be handled now, else the nanoseconds until it may **/
+    long delay(int type) {
+        Bucket bucket;
+        switch(type) {
+            case ChatMessage.MESSAGE:
+            case ChatMessage.ROOM_MESSAGE:
+            case ChatMessage.DIRECT:
+                bucket = chat;
+                break;
+            case ChatMessage.HISTORY:
+            case ChatMessage.SEARCH:
+                bucket = history;
+                break;
+            case ChatMessage.LOGOUT:
+            case ChatMessage.PING:
+            case ChatMessage.PONG:
+                return 0;
+            default:
+                bucket = control;
+        }
+        return bucket == null ? 0 : bucket.take();
+    }
+
+    private static final class Bucket {
+        private final double tokensPerNano;
+        private final double burst;
+        private double tokens;
+        private long refilled = System.nanoTime(); // when tokens was last brought up to date
+
+        private Bucket(int perSecond, int burst) {
+            tokensPerNano = perSecond / 1e9;
+            this.burst = Math.max(1, burst);
+            tokens = this.burst;
+        }
+
+        static Bucket of(int perSecond, int burst) {
+            return perSecond > 0 ? new Bucket(perSecond, burst) : null;
+        }
+
+        long take() {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - refilled) * tokensPerNano);
+            refilled = now;
+            if(tokens >= 1) {
+                --tokens;
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((1 - tokens) / tokensPerNano));
+        }
+    }
+}
@@ -0,0 +1,167 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/***********************************************************************************
+ * The most recent chat messages, kept in memory in front of the Chatlog table     *
+ *                                                                                 *
+ * a fixed-capacity ring: each message claims the next sequence number and is      *
+ * stored in slot (sequence % capacity), overwriting the oldest; readers take no   *
+ * locks, and leave a query to the chatlog when a slot it depends on is still      *
+ * being stored                                                                    *
+ ***********************************************************************************/
+
+final class RecentHistory {
+
+    /** a stored message and the sequence number it was stored under **/
+    private static final class Slot {
+        final long seq;
+        final ChatlogEntry entry;
+
+        Slot(long seq, ChatlogEntry entry) {
+            this.seq = seq;
+            this.entry = entry;
+        }
+    }
+
+    private final int capacity; // messages kept
+    private final AtomicReferenceArray<Slot> slots;
+    private static final int REORDER_WINDOW = 64; // ring slots whose ids may be out of order (concurrent broadcasts)
+
+    private final AtomicLong next = new AtomicLong(); // sequence number of the next message added
+    private volatile boolean warmComplete; // true if warm() loaded every stored message
+    private final AtomicLong hits = new AtomicLong(); // pages served from memory
+    private final AtomicLong misses = new AtomicLong(); // pages left to the database
+
+    RecentHistory(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.slots = new AtomicReferenceArray<Slot>(this.capacity);
+    }
+
+    /**
+     * fill the ring with stored messages (oldest first) before any are added; complete says whether
+     * they are the whole Chatlog, so a short history can be answered from memory
+     **/
+    void warm(List<ChatlogEntry> stored, boolean complete) {
+        for(ChatlogEntry entry : stored)
+            add(entry);
+        warmComplete = complete;
+    }
+
+    /** remember a message just broadcast **/
+    void add(ChatlogEntry entry) {
+        long seq = next.getAndIncrement();
+        slots.set((int) (seq % capacity), new Slot(seq, entry));
+    }
+
+    /**
+     * the page a history query asks for (oldest first), or null if the ring does not hold all of it
+     * and the database must be asked
+     *   the scan goes REORDER_WINDOW slots past the one that filled the page, since a message there
+     *   may still have a newer id than the oldest taken, and a slot claimed but not yet stored that
+     *   close to the messages below beforeId may hold one of the page's lines
+     **/
+    List<ChatlogEntry> page(String room, long beforeId, int limit) {
+        long end = next.get();
+        long start = Math.max(0, end - capacity);
+        List<ChatlogEntry> page = new ArrayList<ChatlogEntry>(Math.min(limit, capacity));
+        long top = -1; // ring position of the newest message below beforeId (in any room)
+        long unstored = -1; // ring position of the last slot seen claimed but not stored yet
+        long full = -1; // ring position of the message that filled the page
+        boolean overrun = false; // a writer lapped the ring while we were reading it
+        long seq;
+        for(seq = end - 1; seq >= start; --seq) {
+            if(full >= 0 && full - seq > REORDER_WINDOW)
+                break; // older messages all have older ids than the page holds
+            Slot slot = slots.get((int) (seq % capacity));
+            if(slot == null || slot.seq < seq) {
+                unstored = seq;
+                continue;
+            }
+            if(slot.seq > seq) {
+                overrun = true;
+                break;
+            }
+            ChatlogEntry entry = slot.entry;
+            if(entry.id >= beforeId)
+                continue;
+            if(top < 0)
+                top = seq;
+            if(room.equals(entry.room)) {
+                page.add(entry);
+                if(page.size() == limit)
+                    full = seq;
+            }
+        }
+        boolean settled = full >= 0 && full - seq > REORDER_WINDOW;
+        // short of that, the page is only the whole answer if nothing older was ever evicted
+        boolean whole = !overrun && warmComplete && end <= capacity;
+        boolean pending = unstored >= 0 && (top < 0 || unstored - top <= REORDER_WINDOW);
+        if(pending || !(settled || whole)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        Collections.sort(page, new Comparator<ChatlogEntry>() {
+            public int compare(ChatlogEntry a, ChatlogEntry b) {
+                return Long.compare(a.id, b.id);
+            }
+        });
+        return page.size() > limit ? new ArrayList<ChatlogEntry>(page.subList(page.size() - limit, page.size())) : page;
+    }
+
+    /**
+     * the newest messages of a room with ids above afterId (oldest first, at most limit), or null if
+     * the ring may have lost some of them and the chatlog must be asked
+     **/
+    List<ChatlogEntry> since(String room, long afterId, int limit) {
+        long end = next.get();
+        long start = Math.max(0, end - capacity);
+        List<ChatlogEntry> found = new ArrayList<ChatlogEntry>();
+        long reached = -1; // ring position of the first message at or below afterId (older ones hold nothing newer)
+        boolean overrun = false;
+        for(long seq = end - 1; seq >= start && found.size() < limit; --seq) {
+            if(reached >= 0 && reached - seq > REORDER_WINDOW)
+                break;
+            Slot slot = slots.get((int) (seq % capacity));
+            if(slot == null || slot.seq < seq)
+                continue;
+            if(slot.seq > seq) {
+                overrun = true;
+                break;
+            }
+            ChatlogEntry entry = slot.entry;
+            if(entry.id <= afterId) {
+                if(reached < 0)
+                    reached = seq;
+            }
+            else if(room.equals(entry.room))
+                found.add(entry);
+        }
+        if(found.size() < limit && (overrun || (reached < 0 && (!warmComplete || end > capacity)))) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        Collections.sort(found, new Comparator<ChatlogEntry>() {
+            public int compare(ChatlogEntry a, ChatlogEntry b) {
+                return Long.compare(a.id, b.id);
+            }
+        });
+        return found;
+    }
+
+    /** number of history pages served from memory **/
+    long getHits() {
+        return hits.get();
+    }
+
+    /** number of history pages that had to be read from the database **/
+    long getMisses() {
+        return misses.get();
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+}
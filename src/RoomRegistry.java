@@ -0,0 +1,75 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+/***********************************************************************************
+ * Named chat rooms and the members subscribed to each                             *
+ *                                                                                 *
+ * every room is a concurrent set, so a broadcast walks only that room's members   *
+ * without locking while others join and leave; a room is created by its first     *
+ * join and removed when its last member leaves (except the default room)          *
+ ***********************************************************************************/
+
+final class RoomRegistry<M> {
+
+    static final int MAX_NAME = 64; // longest room name accepted
+
+    private final ConcurrentHashMap<String, Set<M>> rooms = new ConcurrentHashMap<String, Set<M>>();
+    private final String defaultRoom; // never removed, even when empty
+
+    RoomRegistry(String defaultRoom) {
+        this.defaultRoom = defaultRoom;
+        rooms.put(defaultRoom, ConcurrentHashMap.<M>newKeySet());
+    }
+
+    /** whether a name can be used for a room: 1 to MAX_NAME characters, no spaces or control characters **/
+    static boolean isValidName(String name) {
+        if(name == null || name.isEmpty() || name.length() > MAX_NAME)
+            return false;
+        for(int i = 0; i < name.length(); ++i) {
+            char c = name.charAt(i);
+            if(Character.isWhitespace(c) || Character.isISOControl(c))
+                return false;
+        }
+        return true;
+    }
+
+    /** add a member to a room, creating the room if needed; false if it was already a member **/
+    boolean join(String room, final M member) {
+        final boolean[] added = new boolean[1];
+        rooms.compute(room, new BiFunction<String, Set<M>, Set<M>>() {
+            public Set<M> apply(String name, Set<M> members) {
+                if(members == null)
+                    members = ConcurrentHashMap.<M>newKeySet();
+                added[0] = members.add(member);
+                return members;
+            }
+        });
+        return added[0];
+    }
+
+    /** remove a member from a room, removing the room once it is empty; false if it was not a member **/
+    boolean leave(String room, final M member) {
+        final boolean[] removed = new boolean[1];
+        rooms.computeIfPresent(room, new BiFunction<String, Set<M>, Set<M>>() {
+            public Set<M> apply(String name, Set<M> members) {
+                removed[0] = members.remove(member);
+                return members.isEmpty() && !name.equals(defaultRoom) ? null : members;
+            }
+        });
+        return removed[0];
+    }
+
+    /** the current members of a room (a live, weakly consistent view; empty if there is no such room) **/
+    Set<M> members(String room) {
+        Set<M> members = rooms.get(room);
+        return members == null ? Collections.<M>emptySet() : members;
+    }
+
+    /** names of the rooms that currently exist **/
+    List<String> names() {
+        List<String> names = new ArrayList<String>(rooms.keySet());
+        Collections.sort(names);
+        return names;
+    }
+}
@@ -0,0 +1,42 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/***********************************************************************************
+ * What a SEARCH request asks for                                                  *
+ *                                                                                 *
+ * the request's message text holds the words to look for, optionally after a      *
+ * page number:                                                                    *
+ *   "deploy failed"         the best matches for either word                      *
+ *   "page N deploy failed"  the N-th page of those matches                        *
+ ***********************************************************************************/
+
+final class SearchQuery {
+
+    final List<String> words; // distinct lower-case words, empty if the request had none
+    final int page; // 1 for the best matches
+
+    SearchQuery(List<String> words, int page) {
+        this.words = words;
+        this.page = page;
+    }
+
+    /** parse a SEARCH request, keeping at most maxWords words and pages up to maxPage **/
+    static SearchQuery parse(String text, int maxWords, int maxPage) {
+        String rest = text == null ? "" : text.trim();
+        int page = 1;
+        String[] head = rest.split("\\s+", 3);
+        if(head.length >= 2 && head[0].equalsIgnoreCase("page")) {
+            try {
+                page = Integer.parseInt(head[1]);
+                rest = head.length == 3 ? head[2] : "";
+            }
+            catch(NumberFormatException e) {
+                // "page" is one of the words
+            }
+        }
+        List<String> words = new ArrayList<String>(ChatlogIndex.words(rest));
+        if(words.size() > maxWords)
+            words = words.subList(0, maxWords);
+        return new SearchQuery(words, Math.max(1, Math.min(page, maxPage)));
+    }
+}
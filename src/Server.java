@@ -1,116 +1,491 @@
 import java.io.*;
 import java.net.*;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.Date;
-import java.sql.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 
 /***********************************************************************************
- * Server can be executed using this class or the UI class                         *
- ***********************************************************************************
- *** WARNING: Console mode does not work correctly PLEASE USE UI VERSION ONLY!!! ***
+ * Server can be executed using this class (console/headless mode) or the UI class *
+ *                                                                                 *
+ * without the UI, chat lines and events go to the console through ServerLog, so   *
+ * console output never holds up a broadcast                                       *
  ***********************************************************************************/
 
 public class Server {
 
-    private static int connectionUID; // each connection receives a unique ID
-    private ArrayList<ClientThread> threadArray; // list of connected clients
-    private SimpleDateFormat sdf; // time
+    private static final AtomicInteger connectionUID = new AtomicInteger(); // each connection receives a unique ID
+    private final ConcurrentHashMap<Integer, ClientConnection> clients; // connected clients by UID
+    private final ConcurrentHashMap<String, ClientConnection> usernames; // connected clients by username (for DIRECT)
+    private final DateTimeFormatter sdf; // time (immutable, so shared by all client threads)
     private int port; // port number for socket connection to listen on
-    private boolean keepListening; // signal used to stop server or keep listening
+    private volatile boolean keepListening; // signal used to stop server or keep listening
     private ServerUI ui; // for use by UI
+    private ServerConfig config; // tunable server settings
+    private ChatlogBackend chatlogStore; // where the chatlog is stored (Derby or segment files)
+    private ChatlogWriter chatlogWriter; // batches chatlog rows into the database
+    private ChatlogRetention chatlogRetention; // removes rows past their retention age
+    private ChatlogIndex chatlogIndex; // words of the stored chat lines, for SEARCH
+    private final AtomicLong chatlogId = new AtomicLong(); // id of the last chatlog entry created
+    private final RecentHistory recentHistory; // latest chat messages, answers most HISTORY requests
+    private final RoomRegistry<ClientConnection> rooms; // members of each chat room
+    private ThreadFactory clientThreadFactory; // creates client handler threads (platform or virtual)
+    private ExecutorService dbExecutor; // platform threads that run blocking JDBC work for client handlers
+    private ExecutorService handshakeExecutor; // finishes blocking-transport logins off the accept thread
+    private ScheduledExecutorService handshakeTimer; // closes blocking-transport logins that run out of time
+    private final Map<InetAddress, Integer> sourceConnections = new HashMap<InetAddress, Integer>(); // open connections per address
+    private final ServerMetrics metrics; // hot-path counters and latencies (JMX, scrape port, event log)
+    private final TimerWheel<ClientConnection> liveness; // pings idle clients, evicts dead ones
+    private final ClusterRelay cluster; // links to the other nodes of a cluster (null when not clustered)
+
+    static final String USAGE = "Usage: > java Server [--config file] [--port n] [--backend DERBY|SEGMENTS]"
+            + " [--threads PLATFORM|VIRTUAL] [--transport BLOCKING|NIO]"
+            + " [--cluster-port n] [--node id] [--peers host:port,...] [portNumber]";
 
     /**
-     *  To run as a console application just open a console window and:
-     *   > java Server [portNumber]
+     *  To run as a console (headless) application just open a console window and:
+     *   > java Server [options] [portNumber]
      *
-     *  If no port number specified default (8700) is used
+     *  options:
+     *   --config file    read chat.* settings from a properties file
+     *   --port n         port to listen on (same as giving portNumber; default 8700)
+     *   --backend b      chatlog backend, DERBY or SEGMENTS
+     *   --threads t      client handler threads, PLATFORM or VIRTUAL
+     *   --transport t    connection engine, BLOCKING or NIO
+     *   --cluster-port n port other cluster nodes link to (none by default: not clustered)
+     *   --node id        this node's name in the cluster
+     *   --peers list     the other nodes' cluster ports, e.g. host1:8800,host2:8800
      *
-     *  TODO: Update client and server apps to support CLI (console-mode)
+     *  -Dchat.* system properties override the config file and options override both.
+     *  The server runs until the process is stopped (Ctrl-C or a TERM signal), which
+     *  closes the clients and writes out the chatlog before exiting.
      **/
     public static void main(String[] args) {
-
-        // start server on port 8700 unless a PortNumber is specified
-        int portNumber = 8700;
-        switch(args.length) {
-            case 1:
+        ServerConfig config;
+        try {
+            config = parseArgs(args);
+        }
+        catch(IllegalArgumentException | IOException e) {
+            System.out.println(e.getMessage());
+            System.out.println(USAGE);
+            return;
+        }
+        if(config == null) { // --help
+            System.out.println(USAGE);
+            return;
+        }
+        // create a server object and start it, stopping it cleanly when the process is told to exit
+        final Server server = new Server(config, null);
+        final Thread listener = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread("ServerShutdown") {
+            public void run() {
+                server.stop();
                 try {
-                    portNumber = Integer.parseInt(args[0]);
-                }
-                catch(Exception e) {
-                    System.out.println("Invalid port number.");
-                    System.out.println("Usage: > java Server [portNumber]");
-                    return;
+                    listener.join(10000);
                 }
-            case 0:
-                break;
-            default:
-                System.out.println("Usage: > java Server [portNumber]");
-                return;
-
-        }
-        // create a server object and start it
-        Server server = new Server(portNumber);
+                catch(InterruptedException e) {}
+                ServerLog.flush(1000);
+            }
+        });
         server.start();
+        ServerLog.flush(1000);
     } // end main
 
+    /** settings from the command line (null if help was asked for); the config file is read before the other options apply **/
+    static ServerConfig parseArgs(String[] args) throws IOException {
+        ServerConfig config = null;
+        for(int i = 0; i + 1 < args.length; ++i)
+            if(args[i].equals("--config"))
+                config = ServerConfig.fromFile(args[i + 1]);
+        if(config == null)
+            config = ServerConfig.fromSystemProperties();
+
+        for(int i = 0; i < args.length; ++i) {
+            String arg = args[i];
+            if(arg.equals("--help") || arg.equals("-h"))
+                return null;
+            if(!arg.startsWith("-")) {
+                config.port = portOption(arg);
+                continue;
+            }
+            if(i + 1 == args.length)
+                throw new IllegalArgumentException("Missing value for " + arg + ".");
+            String value = args[++i];
+            switch(arg) {
+                case "--config":
+                    break; // already read
+                case "--port":
+                    config.port = portOption(value);
+                    break;
+                case "--backend":
+                    config.logBackend = enumOption(ServerConfig.LogBackend.class, value);
+                    break;
+                case "--threads":
+                    config.threadModel = enumOption(ServerConfig.ThreadModel.class, value);
+                    break;
+                case "--transport":
+                    config.transport = enumOption(ServerConfig.Transport.class, value);
+                    break;
+                case "--cluster-port":
+                    config.clusterPort = portOption(value);
+                    break;
+                case "--node":
+                    config.clusterNodeId = value;
+                    break;
+                case "--peers":
+                    config.clusterPeers = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + arg + ".");
+            }
+        }
+        return config;
+    }
+
+    private static int portOption(String value) {
+        try {
+            int port = Integer.parseInt(value);
+            if(port >= 0 && port <= 65535)
+                return port;
+        }
+        catch(NumberFormatException e) {}
+        throw new IllegalArgumentException("Invalid port number.");
+    }
+
+    private static <E extends Enum<E>> E enumOption(Class<E> type, String value) {
+        try {
+            return Enum.valueOf(type, value.toUpperCase());
+        }
+        catch(IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid value " + value + ", expected one of "
+                    + Arrays.toString(type.getEnumConstants()) + ".");
+        }
+    }
+
     /** polymorphic server constructor to specify port number **/
     public Server(int port) {
         this(port, null);
     }
     /** polymorphic server constructor to specify port number **/
     public Server(int port, ServerUI ui) {
+        this(withPort(ServerConfig.fromSystemProperties(), port), ui);
+    }
+    /** polymorphic server constructor to specify all settings **/
+    public Server(ServerConfig config, ServerUI ui) {
         this.ui = ui; // to GUI or not to GUI
-        this.port = port; // specify port
-        sdf = new SimpleDateFormat("HH:mm:ss"); // specify date format
-        threadArray = new ArrayList<ClientThread>(); // client list
+        this.config = config;
+        ServerLog.configure(config);
+        this.port = config.port; // specify port
+        sdf = DateTimeFormatter.ofPattern("HH:mm:ss"); // specify date format
+        clients = new ConcurrentHashMap<Integer, ClientConnection>(); // client list
+        usernames = new ConcurrentHashMap<String, ClientConnection>();
+        metrics = new ServerMetrics(config, new ServerMetrics.Gauges() {
+            public int activeConnections() {
+                return clients.size();
+            }
+            public int maxQueueDepth() {
+                int max = 0;
+                for(ClientConnection client : clients.values())
+                    max = Math.max(max, client.outbound.size());
+                return max;
+            }
+            public long totalQueueDepth() {
+                long total = 0;
+                for(ClientConnection client : clients.values())
+                    total += client.outbound.size();
+                return total;
+            }
+        }, new ServerMetrics.Sink() {
+            public void summary(String line) {
+                notice(line);
+            }
+        });
+        chatlogStore = metrics.meter(ChatlogBackend.create(config));
+        chatlogIndex = new ChatlogIndex(config);
+        chatlogWriter = new ChatlogWriter(config, chatlogStore, chatlogIndex);
+        chatlogRetention = new ChatlogRetention(config, chatlogStore, chatlogIndex);
+        liveness = new TimerWheel<ClientConnection>("Liveness", config.heartbeatCheckMillis,
+                new TimerWheel.Check<ClientConnection>() {
+                    public boolean check(ClientConnection client, long now) {
+                        return checkLiveness(client, now);
+                    }
+                });
+        recentHistory = new RecentHistory(config.historyCacheSize);
+        rooms = new RoomRegistry<ClientConnection>(ChatlogEntry.DEFAULT_ROOM);
+        cluster = config.clusterPort <= 0 ? null : new ClusterRelay(config, new ClusterRelay.Node() {
+            public void relayed(String room, String sender, String text, long time) {
+                deliver(room, sender, text, time);
+            }
+            public List<ClusterRelay.Member> members() {
+                List<ClusterRelay.Member> members = new ArrayList<ClusterRelay.Member>();
+                for(String room : rooms.names())
+                    for(ClientConnection client : rooms.members(room))
+                        members.add(new ClusterRelay.Member(client.username, room, client.date, cluster.nodeId()));
+                return members;
+            }
+        }, metrics);
+    }
+
+    private static ServerConfig withPort(ServerConfig config, int port) {
+        config.port = port;
+        return config;
     }
 
     /** Start Server: create and open server socket, then wait for requests to connect **/
     public void start() {
         // create a Derby database for chatlog
-        System.out.println("Creating Chatlog Database");
+        ServerLog.info("Opening the chatlog (" + config.logBackend + ")");
         CreateChatlogDB();
+        chatlogIndex.start(chatlogStore, config.logStartup == ServerConfig.ChatlogStartup.RESET);
+        chatlogWriter.start();
+        chatlogRetention.start();
+        if(cluster != null) {
+            try {
+                cluster.start();
+            }
+            catch(IOException e) {
+                ServerLog.error("Error opening the cluster port " + config.clusterPort + ", running alone: " + e.getMessage());
+            }
+        }
+        metrics.start();
+        liveness.start();
+        clientThreadFactory = clientThreadFactory();
+        dbExecutor = Executors.newFixedThreadPool(Math.max(1, config.dbThreads), namedThreads("ChatlogQuery-"));
 
         keepListening = true;
         try
         {
-            ServerSocket serverSocket = new ServerSocket(port); // specify socket for server
-            while(keepListening) // wait for connections while true
-            {
-                display("Server waiting for Clients on port " + port + ".");
-                Socket socket = serverSocket.accept(); // accept connection
-                if(!keepListening) // break if false
-                    break;
-                ClientThread clientThread = new ClientThread(socket);  // make thread for new client
-                threadArray.add(clientThread); // save it in client list
-                clientThread.start(); // start thread
+            if(config.transport == ServerConfig.Transport.NIO)
+                listenNio();
+            else
+                listen();
+        }
+        catch (IOException e) {
+            String msg = sdf.format(LocalTime.now()) + " Error creating new ServerSocket: " + e + "\n";
+            display(msg); // send error message to console/ui
+        }
+        // write out any chatlog lines still queued before the server goes away
+        if(cluster != null)
+            cluster.stop();
+        metrics.stop();
+        liveness.stop();
+        dbExecutor.shutdown();
+        chatlogRetention.stop();
+        chatlogWriter.stop();
+        chatlogIndex.close();
+        chatlogStore.close();
+        ServerLog.info(chatlogStore.stats());
+        ServerLog.info(chatlogIndex.stats());
+        ServerLog.info("History cache: " + recentHistory.getHits() + " hits, "
+                + recentHistory.getMisses() + " misses (" + recentHistory.getCapacity() + " messages kept)");
+    }
+
+    /** number of HISTORY pages served from the in-memory cache **/
+    public long getHistoryCacheHits() {
+        return recentHistory.getHits();
+    }
+
+    /** number of HISTORY pages that had to be read from the database **/
+    public long getHistoryCacheMisses() {
+        return recentHistory.getMisses();
+    }
+
+    /** hot-path counters and latencies **/
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /** thread factory for client handlers: virtual threads when configured and the JVM has them (Java 21+) **/
+    private ThreadFactory clientThreadFactory() {
+        if(config.threadModel == ServerConfig.ThreadModel.VIRTUAL) {
+            try {
+                // Thread.ofVirtual().name("ClientThread-", 0).factory(), looked up reflectively so the server still builds for Java 8
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "ClientThread-", 0L);
+                return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
             }
-            // if keepListening is false close server and stop listening
+            catch(ReflectiveOperationException e) {
+                display("Virtual threads are not available on this JVM, using platform threads.");
+            }
+        }
+        return namedThreads("ClientThread-");
+    }
+
+    /** platform thread factory naming threads prefix0, prefix1, ... **/
+    private static ThreadFactory namedThreads(final String prefix) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                return new Thread(task, prefix + count.getAndIncrement());
+            }
+        };
+    }
+
+    /** blocking transport: one thread per connected client **/
+    private void listen() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(); // specify socket for server
+        if(config.socketReceiveBufferBytes > 0)
+            serverSocket.setReceiveBufferSize(config.socketReceiveBufferBytes); // inherited by accepted sockets
+        serverSocket.bind(new InetSocketAddress(port), config.listenBacklog);
+        // the accept loop only accepts; streams and username are read on a handshake thread
+        handshakeExecutor = new ThreadPoolExecutor(Math.max(1, config.handshakeThreads), Math.max(1, config.handshakeThreads),
+                0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, config.handshakeQueueCapacity)),
+                namedThreads("Handshake-"));
+        handshakeTimer = Executors.newSingleThreadScheduledExecutor(namedThreads("HandshakeTimer-"));
+        display("Server waiting for Clients on port " + port + ".");
+        while(keepListening) // wait for connections while true
+        {
+            Socket socket = serverSocket.accept(); // accept connection
+            if(!keepListening) // break if false
+                break;
+            final ClientThread clientThread = new ClientThread(socket);  // make handler for new client
+            if(!admitSource(clientThread, socket.getInetAddress()))
+                continue;
+            configure(socket);
             try {
-                serverSocket.close();
-                // then also close all active client threads in list
-                for(int i = 0; i < threadArray.size(); ++i) {
-                    ClientThread cThread = threadArray.get(i);
-                    try {
-                        cThread.sInputStream.close();
-                        cThread.sOutputStream.close();
-                        cThread.socket.close();
+                handshakeExecutor.execute(new Runnable() {
+                    public void run() {
+                        handshake(clientThread);
                     }
-                    catch(IOException ioE) {}
-                }
+                });
             }
-            catch(Exception e) {
-                display("Error closing the server and/or clients: " + e);
+            catch(RejectedExecutionException e) {
+                refuse(clientThread, "too many clients logging in");
             }
         }
-        catch (IOException e) {
-            String msg = sdf.format(new Date()) + " Error creating new ServerSocket: " + e + "\n";
-            display(msg); // send error message to console/ui
+        handshakeExecutor.shutdownNow();
+        handshakeTimer.shutdown(); // pending timeouts still close their connections
+        // if keepListening is false close server and stop listening
+        try {
+            serverSocket.close();
+            // then also close all active clients in list
+            closeAll();
+        }
+        catch(Exception e) {
+            display("Error closing the server and/or clients: " + e);
         }
     }
 
+    /** NIO transport: a few selector threads serve every connected client **/
+    private void listenNio() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open(); // accepts in blocking mode
+        if(config.socketReceiveBufferBytes > 0)
+            serverChannel.socket().setReceiveBufferSize(config.socketReceiveBufferBytes);
+        serverChannel.socket().bind(new InetSocketAddress(port), config.listenBacklog);
+        NioEventLoop[] eventLoops = new NioEventLoop[Math.max(1, config.nioThreads)];
+        for(int i = 0; i < eventLoops.length; ++i) {
+            eventLoops[i] = new NioEventLoop("NioEventLoop-" + i);
+            eventLoops[i].start();
+        }
+        int nextLoop = 0; // connections are spread over the loops round-robin
+        display("Server waiting for Clients on port " + port + " (NIO).");
+        while(keepListening) // wait for connections while true
+        {
+            SocketChannel channel = serverChannel.accept(); // accept connection
+            if(!keepListening) { // break if false
+                channel.close();
+                break;
+            }
+            NioEventLoop eventLoop = eventLoops[nextLoop++ % eventLoops.length];
+            NioClient client = new NioClient(channel, eventLoop); // logs in on its event loop
+            if(!admitSource(client, channel.socket().getInetAddress()))
+                continue;
+            configure(channel.socket());
+            eventLoop.register(channel, client);
+        }
+        // if keepListening is false close server and stop listening
+        try {
+            serverChannel.close();
+            closeAll();
+        }
+        catch(Exception e) {
+            display("Error closing the server and/or clients: " + e);
+        }
+        for(NioEventLoop eventLoop : eventLoops)
+            eventLoop.shutdown();
+    }
+
+
+    /**
+     * finish a blocking client's handshake within handshakeTimeoutMillis, then start serving it
+     * (runs on handshakeExecutor, so a client that never sends its name only holds up itself)
+     **/
+    private void handshake(final ClientThread client) {
+        ScheduledFuture<?> timeout = handshakeTimer.schedule(new Runnable() {
+            public void run() {
+                metrics.handshakeTimeouts.increment();
+                ServerLog.debug("Login from " + client.socket.getInetAddress() + " timed out.");
+                client.close(); // unblocks the handshake's read
+            }
+        }, config.handshakeTimeoutMillis, TimeUnit.MILLISECONDS);
+        boolean loggedIn = client.handshake();
+        if(!timeout.cancel(false) || !loggedIn || !keepListening) {
+            client.close();
+            return;
+        }
+        add(client); // save it in client list
+        client.start(clientThreadFactory); // start reader and writer threads
+    }
+
+    /**
+     * count a new connection against its address's maxConnectionsPerSource,
+     * refusing (and closing) it if that address already has as many open
+     **/
+    private boolean admitSource(ClientConnection client, InetAddress source) {
+        if(config.maxConnectionsPerSource <= 0 || source == null)
+            return true;
+        synchronized(sourceConnections) {
+            Integer open = sourceConnections.get(source);
+            if(open != null && open >= config.maxConnectionsPerSource) {
+                refuse(client, "too many connections from " + source);
+                return false;
+            }
+            sourceConnections.put(source, open == null ? 1 : open + 1);
+        }
+        client.source.set(source);
+        return true;
+    }
+
+    /** a connection from this address has closed **/
+    private void releaseSource(InetAddress source) {
+        synchronized(sourceConnections) {
+            Integer open = sourceConnections.get(source);
+            if(open == null || open <= 1)
+                sourceConnections.remove(source);
+            else
+                sourceConnections.put(source, open - 1);
+        }
+    }
+
+    /** close a connection before it logs in **/
+    private void refuse(ClientConnection client, String reason) {
+        metrics.connectionsRejected.increment();
+        ServerLog.debug("Connection refused, " + reason + ".");
+        client.close();
+    }
+
+    /** apply the configured socket options to an accepted client socket **/
+    private void configure(Socket socket) {
+        try {
+            socket.setTcpNoDelay(config.tcpNoDelay);
+            if(config.socketSendBufferBytes > 0)
+                socket.setSendBufferSize(config.socketSendBufferBytes);
+        }
+        catch(SocketException e) {
+            display("Could not set socket options: " + e);
+        }
+    }
 
     /** method called by UI to stop server **/
     protected void stop() {
@@ -124,172 +499,700 @@ public class Server {
 
     /** method to display event prompts to server (not for chat message) (*/
     private void display(String msg) {
-        String time = sdf.format(new Date()) + " " + msg + "";
-
-        // add message to chatlog database
-        try
-        {
-            // Create a named constant for the URL.
-            // NOTE: This value is specific for Java DB.
-            final String DB_URL = "jdbc:derby:ChatlogDB;create=true";
-
-            // Create a connection to the database.
-            Connection DbConnection = DriverManager.getConnection(DB_URL);
-
-            // Add to ChatTable
-            addToChatlogTable(DbConnection, time);
+        ChatlogEntry entry = new ChatlogEntry(chatlogId.incrementAndGet(), System.currentTimeMillis(), null, null, msg);
+        String time = entry.line();
 
-            // Close the connection.
-            DbConnection.close();
-        } catch (Exception e)
-        {
-            System.out.println("Error Creating the Chatlog Table");
-            System.out.println(e.getMessage());
-        }
+        // queue message for the chatlog database (written in batches by chatlogWriter)
+        chatlogWriter.append(entry);
 
         // msg to user
         if(ui == null)
-            System.out.println(time);
+            ServerLog.info(time);
         else
             ui.appendEvent(time + "\n");
     }
 
+    /** show a line in the event log (console or UI) without keeping it in the chatlog **/
+    private void notice(String msg) {
+        String line = sdf.format(LocalTime.now()) + " " + msg;
+        if(ui == null)
+            ServerLog.info(line);
+        else
+            ui.appendEvent(line + "\n");
+    }
+
     /**
-     * synchronized method used to broadcast and sync all chat messages with all clients
-     * ( message is added to the sender's clientThread message queue )
+     * lock-free method used to broadcast and sync a chat message with every member of its room
+     * ( message is added to each clientThread's outbound queue and written by its own writer )
      **/
-    private synchronized void broadcast(String message) {
-        String time = sdf.format(new Date()); // add timestamp to message
-        String messageFormat = time + " " + message;
-
-        // add message to chatlog database
-        try
-        {
-            // Create a named constant for the URL.
-            // NOTE: This value is specific for Java DB.
-            final String DB_URL = "jdbc:derby:ChatlogDB;create=true";
-
-            // Create a connection to the database.
-            Connection DbConnection = DriverManager.getConnection(DB_URL);
+    private void broadcast(String room, String sender, String message) {
+        ChatlogEntry entry = deliver(room, sender, message, System.currentTimeMillis());
+        if(cluster != null)
+            cluster.chat(entry); // the other nodes deliver it to their own clients
+    }
 
-            // Add to ChatTable
-            addToChatlogTable(DbConnection, messageFormat);
+    /** store a chat line (from a client here or on another node) and send it to this server's members of its room **/
+    private ChatlogEntry deliver(String room, String sender, String message, long time) {
+        long start = System.nanoTime();
+        ChatlogEntry entry = new ChatlogEntry(chatlogId.incrementAndGet(), time, sender, room, message);
+        String messageFormat = entry.line(); // add timestamp to message
 
-            // Close the connection.
-            DbConnection.close();
-        } catch (Exception e)
-        {
-            System.out.println("Error Creating the Chatlog Table");
-            System.out.println(e.getMessage());
-        }
+        // queue message for the chatlog database (written in batches by chatlogWriter)
+        chatlogWriter.append(entry);
+        recentHistory.add(entry);
 
         if(ui == null)
-            System.out.print(messageFormat); // display message on console or in UI
+            ServerLog.info(messageFormat); // display message on console or in UI
         else
             ui.appendRoom(messageFormat + "\n"); // append message to chat room log
 
-        // loop through client list in reverse order (easier to remove a client if not responsive)
-        for(int i = threadArray.size(); --i >= 0;) {
-            ClientThread clientThread = threadArray.get(i);
-            // if msg to client fails remove client from active list
-            if(!clientThread.sendMsg(messageFormat)) {
-                threadArray.remove(i);
-                display("Unresponsive client " + clientThread.username + " removed.");
+        fanOut(room, Frame.of(entry.id, messageFormat)); // the chatlog id is the line's sequence number
+        metrics.broadcasts.increment();
+        metrics.broadcastNanos.record(System.nanoTime() - start);
+        return entry;
+    }
+
+    /** tell the members of a room about a change in it (not kept in the chatlog) **/
+    private void roomNotice(String room, String notice) {
+        fanOut(room, Frame.of(new ChatlogEntry(0, System.currentTimeMillis(), null, room, "*** " + notice).line()));
+    }
+
+    /** enqueue a message encoded once for every member of a room, removing any that can no longer take it **/
+    private void fanOut(String room, Frame frame) {
+        for(ClientConnection client : rooms.members(room))
+            deliver(client, frame);
+    }
+
+    /** enqueue a frame for one client; if msg to client fails remove client from active list **/
+    private boolean deliver(ClientConnection client, Frame frame) {
+        if(client.send(frame))
+            return true;
+        boolean connected = clients.remove(client.id, client);
+        forget(client);
+        if(connected) {
+            metrics.connectionsClosed.increment();
+            display("Unresponsive client " + client.username + " removed.");
+        }
+        return false;
+    }
+
+    /**
+     * method used when a client has completed its handshake: it is indexed by id and by a
+     * unique username (a taken name gets a number added) and starts in the default room
+     **/
+    void add(ClientConnection client) {
+        if(client.username != null) {
+            String name = client.username;
+            for(int n = 2; usernames.putIfAbsent(name, client) != null; ++n)
+                name = client.username + "(" + n + ")";
+            if(!name.equals(client.username)) {
+                client.sendMsg("*** The name " + client.username + " is taken, you are " + name + ".");
+                client.username = name;
             }
         }
+        clients.put(client.id, client);
+        metrics.connectionsOpened.increment();
+        metrics.handshakeNanos.record(System.nanoTime() - client.accepted);
+        if(client.resumeAfter > 0)
+            client.holdLive(); // from before it can receive anything live
+        client.joinRoom(ChatlogEntry.DEFAULT_ROOM);
+        liveness.add(client);
+        if(client.resumeAfter > 0)
+            resume(client);
+    }
+
+    /**
+     * replay the lines of the default room a reconnecting client missed after its last seen
+     * sequence: from memory when the ring still holds them, otherwise from the chatlog (on
+     * dbExecutor) topped up with lines the writer has not stored yet
+     **/
+    private void resume(final ClientConnection client) {
+        final String room = ChatlogEntry.DEFAULT_ROOM;
+        final int limit = Math.max(1, Math.min(config.resumeMaxMessages, config.outboundQueueCapacity / 2));
+        List<ChatlogEntry> missed = recentHistory.since(room, client.resumeAfter, limit);
+        if(missed != null) {
+            client.replay(missed, limit);
+            return;
+        }
+        dbExecutor.execute(new Runnable() {
+            public void run() {
+                List<ChatlogEntry> missed;
+                try {
+                    missed = new ArrayList<ChatlogEntry>(chatlogStore.since(room, client.resumeAfter, limit));
+                }
+                catch(IOException e) {
+                    ServerLog.warn("Error reading the chatlog: " + e.getMessage());
+                    client.sendMsg("*** Missed messages are not available right now, use HISTORY.");
+                    client.replay(Collections.<ChatlogEntry>emptyList(), limit);
+                    return;
+                }
+                long stored = missed.isEmpty() ? client.resumeAfter : missed.get(missed.size() - 1).id;
+                List<ChatlogEntry> unwritten = recentHistory.since(room, stored, limit);
+                if(unwritten != null)
+                    missed.addAll(unwritten);
+                client.replay(missed.size() > limit ? missed.subList(missed.size() - limit, missed.size()) : missed, limit);
+            }
+        });
+    }
 
+    /** method used when clients logout from chatroom **/
+    void remove(int id) {
+        ClientConnection client = clients.remove(id);
+        if(client != null) {
+            metrics.connectionsClosed.increment();
+            liveness.remove(client);
+            forget(client);
+        }
     }
 
     /**
-     * synchronized method used to broadcast and sync all chat messages with all clients
-     * ( message is added to the sender's clientThread message queue )
+     * one client's turn on the liveness wheel: evict it if a write has been stuck or it has gone
+     * silent past the timeouts, ping it if it has been quiet; false once it is gone
      **/
-    private synchronized void clientCast(String message) {
-        //String messageFormat =  message + "\n";
+    private boolean checkLiveness(ClientConnection client, long now) {
+        if(client.closed)
+            return false;
+        long writing = client.writingSince;
+        if(config.writeTimeoutSeconds > 0 && writing != 0
+                && now - writing > TimeUnit.SECONDS.toNanos(config.writeTimeoutSeconds)) {
+            evict(client, "took no data for " + config.writeTimeoutSeconds + " s", metrics.evictedWriteTimeout);
+            return false;
+        }
+        // object stream clients cannot answer a PING, so they are only expected to stay active once they send one
+        if(client.protocol != ChatCodec.Protocol.BINARY && !client.heartbeats)
+            return true;
+        long silent = now - client.lastRead;
+        if(config.idleTimeoutSeconds > 0 && silent > TimeUnit.SECONDS.toNanos(config.idleTimeoutSeconds)) {
+            evict(client, "sent nothing for " + config.idleTimeoutSeconds + " s", metrics.evictedIdle);
+            return false;
+        }
+        long pingInterval = TimeUnit.SECONDS.toNanos(config.pingIntervalSeconds);
+        if(config.pingIntervalSeconds > 0 && client.protocol == ChatCodec.Protocol.BINARY
+                && silent > pingInterval && now - client.lastPing > pingInterval) {
+            client.lastPing = now;
+            metrics.pingsSent.increment();
+            client.send(Frame.control(ChatMessage.PING));
+        }
+        return true;
+    }
 
-        // add message to chatlog database
-        try
-        {
-            // Create a named constant for the URL.
-            // NOTE: This value is specific for Java DB.
-            final String DB_URL = "jdbc:derby:ChatlogDB;create=true";
+    /** remove a dead client so broadcasts stop paying for it **/
+    private void evict(ClientConnection client, String reason, LongAdder counter) {
+        counter.increment();
+        display(client.username + " evicted, it " + reason + ".");
+        remove(client.id);
+        client.close();
+    }
 
-            // Create a connection to the database.
-            Connection DbConnection = DriverManager.getConnection(DB_URL);
+    /** drop a departed client from the username index and its rooms **/
+    private void forget(ClientConnection client) {
+        if(client.username != null)
+            usernames.remove(client.username, client);
+        client.leaveRooms();
+    }
 
-            // Add to ChatTable
-            addToChatlogTable(DbConnection, message);
+    /** close every connected client when the server stops **/
+    private void closeAll() {
+        for(ClientConnection client : clients.values())
+            client.close();
+        clients.clear();
+        usernames.clear();
+    }
 
-            // Close the connection.
-            DbConnection.close();
-        } catch (Exception e)
-        {
-            System.out.println("Error Creating the Chatlog Table");
-            System.out.println(e.getMessage());
+    /** clients in the order they connected **/
+    private static List<ClientConnection> byConnectOrder(Collection<ClientConnection> clients) {
+        List<ClientConnection> list = new ArrayList<ClientConnection>(clients);
+        Collections.sort(list, new Comparator<ClientConnection>() {
+            public int compare(ClientConnection a, ClientConnection b) {
+                return Integer.compare(a.id, b.id);
+            }
+        });
+        return list;
+    }
+
+    /**
+     * state and message handling shared by every connected client, whichever transport
+     * carries its bytes
+     **/
+    abstract class ClientConnection {
+
+        int id; // UID for each client
+        final long accepted = System.nanoTime(); // when the connection was accepted
+        final AtomicReference<InetAddress> source = new AtomicReference<InetAddress>(); // address counted in sourceConnections
+        volatile String username; // username of the client (unique among connected clients)
+        String date; // date client connects
+        final BlockingQueue<Frame> outbound; // encoded messages waiting for this client's writer
+        final AtomicLong droppedMessages = new AtomicLong(); // messages lost to the slow-consumer policy
+        final RateLimiter limiter = new RateLimiter(config); // used by the thread reading this client only
+        final AtomicInteger pendingHistory = new AtomicInteger(); // HISTORY and SEARCH queries waiting on the chatlog
+        private boolean overLimit; // told about dropped messages since it was last within its limits
+        volatile long lastRead = System.nanoTime(); // when the client last sent anything
+        volatile long lastPing; // when the server last sent it a PING
+        volatile boolean heartbeats; // has sent a PING, so it is expected to keep the connection alive
+        volatile long writingSince; // when the pending write to its socket started (0 when none is pending)
+        int version = 1; // binary protocol version agreed at handshake
+        long resumeAfter; // sequence a reconnecting client last saw (from its hello), 0 for a new session
+        private final Object resumeLock = new Object();
+        private volatile List<Frame> heldLive; // live frames held back while missed ones are replayed, null once live
+        volatile boolean closed; // set once close() has been called
+        volatile ChatCodec.Protocol protocol = ChatCodec.Protocol.LEGACY; // wire format chosen at handshake
+        final Set<String> joinedRooms = ConcurrentHashMap.<String>newKeySet(); // rooms this client receives
+        volatile String currentRoom; // room plain MESSAGEs go to, null when in no room
+
+        ClientConnection() {
+            id = connectionUID.incrementAndGet(); // assign client a UID
+            outbound = new ArrayBlockingQueue<Frame>(Math.max(2, config.outboundQueueCapacity));
         }
 
-        if(ui == null)
-            System.out.print(message); // display message on console or in UI
-        else
-            //ui.appendRoom(message + "\n"); // append message to chat room log
+        /** method to queue a msg string for this client only, false if the client is gone **/
+        boolean sendMsg(String msg) {
+            return send(Frame.of(msg));
+        }
+
+        /**
+         * method to queue an encoded message for the client, false if the client is gone
+         *   when the queue is full (or deeper than slowConsumerQueueDepth) the configured
+         *   slow-consumer policy decides what happens
+         **/
+        boolean send(Frame frame) {
+            if(closed) {
+                metrics.sendFailures.increment();
+                return false;
+            }
+            if(heldLive != null) {
+                synchronized(resumeLock) {
+                    List<Frame> held = heldLive;
+                    if(held != null) {
+                        if(held.size() < config.outboundQueueCapacity)
+                            held.add(frame);
+                        else {
+                            droppedMessages.incrementAndGet();
+                            metrics.messagesDropped.increment();
+                        }
+                        return true;
+                    }
+                }
+            }
+            return enqueue(frame);
+        }
 
-        // loop through client list in reverse order (easier to remove a client if not responsive)
-        for(int i = threadArray.size(); --i >= 0;) {
-            ClientThread clientThread = threadArray.get(i);
-            // if msg to client fails remove client from active list
-            if(!clientThread.sendMsg(message)) {
-                threadArray.remove(i);
-                display("Unresponsive client " + clientThread.username + " removed.");
+        /** queue a frame, applying the slow-consumer policy; false if the client is gone **/
+        private boolean enqueue(Frame frame) {
+            int slowDepth = config.slowConsumerQueueDepth;
+            if((slowDepth > 0 && outbound.size() >= slowDepth) || !outbound.offer(frame)) {
+                metrics.slowConsumers.increment();
+                switch(config.slowConsumer) {
+                    case DROP:
+                        droppedMessages.incrementAndGet();
+                        metrics.messagesDropped.increment();
+                        return true;
+                    case COALESCE:
+                        // skip the backlog so the client catches up with live messages
+                        List<Frame> skipped = new ArrayList<Frame>();
+                        outbound.drainTo(skipped);
+                        int lost = skipped.size();
+                        outbound.offer(Frame.of("*** " + skipped.size() + " messages skipped, client too slow ***"));
+                        if(!outbound.offer(frame))
+                            ++lost;
+                        droppedMessages.addAndGet(lost);
+                        metrics.messagesDropped.add(lost);
+                        break;
+                    default:
+                        metrics.sendFailures.increment();
+                        close();
+                        return false;
+                }
             }
+            wakeWriter();
+            return true;
         }
 
-    }
+        /** hold live traffic back until replay() (called before the client joins any room) **/
+        void holdLive() {
+            heldLive = new ArrayList<Frame>();
+        }
 
-    /** synchronized method used when clients logout from chatroom **/
-    synchronized void remove(int id) {
-        // scan the client list for client UID
-        for(int i = 0; i < threadArray.size(); ++i) {
-            ClientThread clientThread = threadArray.get(i);
-            // if client UID is found in list, remove it
-            if(clientThread.id == id) {
-                threadArray.remove(i);
-                return;
+        /** send the replayed lines, then the live frames held meanwhile (less any replayed), and go live **/
+        void replay(List<ChatlogEntry> missed, int limit) {
+            synchronized(resumeLock) {
+                Set<Long> replayed = new HashSet<Long>();
+                if(missed.size() >= limit)
+                    enqueue(Frame.of("*** Only your last " + missed.size() + " missed messages are shown"
+                            + " (older messages: HISTORY before " + missed.get(0).id + ")"));
+                for(ChatlogEntry entry : missed) {
+                    replayed.add(entry.id);
+                    enqueue(Frame.of(entry.id, entry.line()));
+                }
+                for(Frame frame : heldLive)
+                    if(frame.sequence == 0 || !replayed.contains(frame.sequence))
+                        enqueue(frame);
+                heldLive = null;
+            }
+            metrics.resumes.increment();
+            metrics.resumeReplayed.add(missed.size());
+        }
+
+        /** join a room (if not already in it) and make it the current room; false if already a member **/
+        boolean joinRoom(String room) {
+            joinedRooms.add(room);
+            currentRoom = room;
+            if(!rooms.join(room, this))
+                return false;
+            if(cluster != null)
+                cluster.joined(username, room, date);
+            return true;
+        }
+
+        /** leave a room, falling back to the default (or any other joined) room if it was current **/
+        boolean leaveRoom(String room) {
+            if(!joinedRooms.remove(room))
+                return false;
+            rooms.leave(room, this);
+            if(cluster != null)
+                cluster.left(username, room);
+            if(room.equals(currentRoom)) {
+                Iterator<String> others = joinedRooms.iterator();
+                currentRoom = joinedRooms.contains(ChatlogEntry.DEFAULT_ROOM) ? ChatlogEntry.DEFAULT_ROOM
+                        : others.hasNext() ? others.next() : null;
+            }
+            return true;
+        }
+
+        /** leave every room (when the client goes away) **/
+        void leaveRooms() {
+            for(String room : joinedRooms) {
+                rooms.leave(room, this);
+                if(cluster != null)
+                    cluster.left(username, room);
+            }
+            joinedRooms.clear();
+            currentRoom = null;
+        }
+
+        /** give back this client's place in sourceConnections (once, when it closes) **/
+        void releaseSource() {
+            InetAddress counted = source.getAndSet(null);
+            if(counted != null)
+                Server.this.releaseSource(counted);
+        }
+
+        /** make sure the transport's writer will drain the outbound queue **/
+        abstract void wakeWriter();
+
+        /** close everything **/
+        abstract void close();
+
+        /**
+         * check a message against this client's rate limits before it is handled
+         *   returns 0 to handle it now, the nanoseconds to wait before asking again (THROTTLE),
+         *   or -1 if it was dropped or the client was disconnected
+         **/
+        long admit(ChatMessage cMessage) {
+            lastRead = System.nanoTime(); // anything received, even over a limit, shows the client is alive
+            long wait = limiter.delay(cMessage.getType());
+            if(wait == 0) {
+                overLimit = false;
+                return 0;
             }
+            switch(config.rateLimit) {
+                case THROTTLE:
+                    metrics.rateThrottled.increment();
+                    return wait;
+                case DROP:
+                    metrics.rateDropped.increment();
+                    if(!overLimit) {
+                        overLimit = true;
+                        sendMsg("*** You are sending too fast, messages are being dropped.");
+                    }
+                    return -1;
+                default:
+                    metrics.rateDisconnected.increment();
+                    display(username + " disconnected for sending too fast.");
+                    remove(id); // remove client UID from client list
+                    close();
+                    return -1;
+            }
+        }
+
+        /**
+         * respond to one message from the client
+         *   returns false once the client has logged out
+         **/
+        boolean handle(ChatMessage cMessage) {
+            metrics.messagesDecoded.increment();
+            String message = cMessage.getMessage(); // get message from ChatMessage object (assign to message string)
+            // USERLIST, HISTORY and SEARCH may name a room, otherwise they apply to the current one
+            String room = cMessage.getRoom() != null ? cMessage.getRoom() : currentRoom;
+            // type of response depends on type of message received
+            switch(cMessage.getType()) {
+                case ChatMessage.MESSAGE:
+                    if(currentRoom == null)
+                        sendMsg("*** You are not in a room, JOIN one to talk.");
+                    else
+                        broadcast(currentRoom, username, message);
+                    break;
+                case ChatMessage.ROOM_MESSAGE:
+                    if(cMessage.getRoom() == null || !joinedRooms.contains(cMessage.getRoom()))
+                        sendMsg("*** You are not in room " + cMessage.getRoom() + ".");
+                    else
+                        broadcast(cMessage.getRoom(), username, message);
+                    break;
+                case ChatMessage.JOIN:
+                    String joining = message == null || message.trim().isEmpty() ? cMessage.getRoom() : message.trim();
+                    if(!RoomRegistry.isValidName(joining)) {
+                        sendMsg("*** Room names are 1 to " + RoomRegistry.MAX_NAME + " characters without spaces.");
+                        break;
+                    }
+                    if(joinRoom(joining))
+                        roomNotice(joining, "<" + username + "> joined.");
+                    sendMsg("*** You are now talking in " + joining + " (" + rooms.members(joining).size() + " here).");
+                    break;
+                case ChatMessage.LEAVE:
+                    String leaving = message == null || message.trim().isEmpty() ? room : message.trim();
+                    if(leaving == null || !leaveRoom(leaving)) {
+                        sendMsg("*** You are not in room " + leaving + ".");
+                        break;
+                    }
+                    roomNotice(leaving, "<" + username + "> left.");
+                    sendMsg("*** You left " + leaving + (currentRoom == null
+                            ? ", JOIN a room to keep talking." : ", now talking in " + currentRoom + "."));
+                    break;
+                case ChatMessage.DIRECT:
+                    // one lookup, and only the recipient's and sender's queues are touched
+                    ClientConnection recipient = cMessage.getRecipient() == null ? null : usernames.get(cMessage.getRecipient());
+                    if(recipient == null) {
+                        sendMsg("*** No user named " + cMessage.getRecipient() + " is connected.");
+                        break;
+                    }
+                    Frame direct = Frame.of(sdf.format(LocalTime.now()) + " <" + username + "> -> <"
+                            + recipient.username + ">: " + message);
+                    if(!deliver(recipient, direct))
+                        sendMsg("*** " + recipient.username + " could not be reached.");
+                    else if(recipient != this)
+                        send(direct);
+                    break;
+                case ChatMessage.LOGOUT:
+                    display(username + " disconnected with a LOGOUT message.");
+                    return false;
+                case ChatMessage.PING:
+                    heartbeats = true;
+                    if(protocol == ChatCodec.Protocol.BINARY)
+                        send(Frame.control(ChatMessage.PONG));
+                    break;
+                case ChatMessage.PONG:
+                    break; // its arrival was the point
+                case ChatMessage.USERLIST:
+                    if(room == null) {
+                        sendMsg("*** You are not in a room.");
+                        break;
+                    }
+                    sendMsg("\n------------------------------------------------------------------------\n"
+                            + "List of the users in " + room + " at " + sdf.format(LocalTime.now()) + "\n");
+                    // scan current list of users in the room
+                    List<ClientConnection> connected = byConnectOrder(rooms.members(room));
+                    for(int i = 0; i < connected.size(); ++i) {
+                        ClientConnection client = connected.get(i);
+                        sendMsg((i + 1) + ") <" + client.username + ">: connected since " + client.date);
+                    }
+                    if(cluster != null) { // then the room's users on the other nodes
+                        List<ClusterRelay.Member> elsewhere = cluster.remoteMembers(room);
+                        for(int i = 0; i < elsewhere.size(); ++i) {
+                            ClusterRelay.Member member = elsewhere.get(i);
+                            sendMsg((connected.size() + i + 1) + ") <" + member.user + "> on " + member.node
+                                    + ": connected since " + member.since);
+                        }
+                    }
+                    sendMsg("------------------------------------------------------------------------\n");
+                    break;
+                case ChatMessage.HISTORY:
+                    if(room == null || !joinedRooms.contains(room)) {
+                        sendMsg("*** You are not in room " + room + ".");
+                        break;
+                    }
+                    final String historyRoom = room;
+                    // (a page never exceeds the outbound queue, so it cannot trip the slow-consumer policy)
+                    int maxPage = Math.max(1, Math.min(config.historyMaxPage, config.outboundQueueCapacity - 3));
+                    final HistoryQuery query = HistoryQuery.parse(message, config.historyPageSize, maxPage);
+                    // recent pages come straight from memory
+                    List<ChatlogEntry> page = recentHistory.page(historyRoom, query.beforeId, query.limit);
+                    if(page != null) {
+                        sendHistoryPage(this, historyRoom, page, query);
+                        break;
+                    }
+                    // a client may only have a few queries waiting, so one cannot fill the query queue
+                    if(pendingHistory.incrementAndGet() > Math.max(1, config.maxPendingHistory)) {
+                        pendingHistory.decrementAndGet();
+                        metrics.historyRejected.increment();
+                        sendMsg("*** Still fetching your earlier HISTORY, try again in a moment.");
+                        break;
+                    }
+                    // RETRIEVE INFO FROM DB HERE TO SHOW HISTORY
+                    // (runs on a platform thread: Derby synchronizes internally, so a virtual client
+                    //  thread would pin its carrier and an NIO event loop would stall)
+                    dbExecutor.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                showHistory(ClientConnection.this, historyRoom, query);
+                            }
+                            finally {
+                                pendingHistory.decrementAndGet();
+                            }
+                        }
+                    });
+                    break;
+                case ChatMessage.SEARCH:
+                    if(room == null || !joinedRooms.contains(room)) {
+                        sendMsg("*** You are not in room " + room + ".");
+                        break;
+                    }
+                    final String searchRoom = room;
+                    final SearchQuery search = SearchQuery.parse(message, config.searchMaxWords, config.searchMaxPages);
+                    if(search.words.isEmpty()) {
+                        sendMsg("*** SEARCH needs words to look for (\"page N words\" for later pages).");
+                        break;
+                    }
+                    if(pendingHistory.incrementAndGet() > Math.max(1, config.maxPendingHistory)) {
+                        pendingHistory.decrementAndGet();
+                        metrics.historyRejected.increment();
+                        sendMsg("*** Still running your earlier SEARCH, try again in a moment.");
+                        break;
+                    }
+                    // ranking is in memory, but the matching lines are read from the chatlog
+                    dbExecutor.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                showSearch(ClientConnection.this, searchRoom, search);
+                            }
+                            finally {
+                                pendingHistory.decrementAndGet();
+                            }
+                        }
+                    });
+                    break;
+            }
+            return true;
+        }
+    } // end clientConnection class
+
+    /** query one page of the chatlog table and send it to the requester (runs on dbExecutor) **/
+    private void showHistory(ClientConnection requester, String room, HistoryQuery query) {
+        try
+        {
+            sendHistoryPage(requester, room, chatlogStore.page(room, query.beforeId, query.limit), query);
+        } catch (IOException e)
+        {
+            ServerLog.warn("Error reading the chatlog: " + e.getMessage());
+            requester.sendMsg("Chat history is not available right now.");
+        }
+    }
+
+    /** rank one page of SEARCH results and send their lines, best first, to the requester (runs on dbExecutor) **/
+    private void showSearch(ClientConnection requester, String room, SearchQuery query) {
+        long start = System.nanoTime();
+        int pageSize = Math.max(1, Math.min(config.searchPageSize, config.outboundQueueCapacity - 3));
+        ChatlogIndex.Result result = chatlogIndex.search(room, query.words, (query.page - 1) * pageSize, pageSize);
+        if(result == null) {
+            requester.sendMsg("*** Search is not ready, try again in a moment.");
+            return;
+        }
+        Map<Long, ChatlogEntry> lines = new HashMap<Long, ChatlogEntry>();
+        try {
+            for(ChatlogEntry entry : chatlogStore.get(result.ids))
+                lines.put(entry.id, entry);
+        }
+        catch(IOException e) {
+            ServerLog.warn("Error reading the chatlog: " + e.getMessage());
+            requester.sendMsg("Search is not available right now.");
+            return;
         }
+        List<ChatlogEntry> found = new ArrayList<ChatlogEntry>(result.ids.size());
+        for(long id : result.ids) {
+            ChatlogEntry entry = lines.get(id);
+            if(entry != null && room.equals(entry.room)) // else removed by retention since it was ranked
+                found.add(entry);
+        }
+        String words = String.join(" ", query.words);
+        requester.sendMsg("\n------------------------------------------------------------------------"
+                + "\nSearch results for \"" + words + "\" in " + room + " (page " + query.page + ")...\n");
+        for(ChatlogEntry entry : found)
+            requester.sendMsg(entry.line());
+        if(found.isEmpty())
+            requester.sendMsg("(no matches)");
+        if(result.more)
+            requester.sendMsg("(more matches: SEARCH page " + (query.page + 1) + " " + words + ")");
+        requester.sendMsg("\n------------------------------------------------------------------------");
+        metrics.searchNanos.record(System.nanoTime() - start);
     }
 
-    /** an instance of this thread will run for each connected client **/
-    class ClientThread extends Thread {
+    /**
+     * an instance of this handler will run on its own (platform or virtual) thread for each
+     * connected client, with a second thread writing its outbound queue to the socket
+     **/
+    class ClientThread extends ClientConnection implements Runnable {
 
         Socket socket; // socket to listen
-        ObjectInputStream sInputStream; // incoming message stream
-        ObjectOutputStream sOutputStream; // outgoing message stream
-        int id; // UID for each client
-        String username; // username of the client
+        ObjectInputStream sInputStream; // incoming message stream (legacy clients)
+        ChatCodec.StreamDecoder binaryInput; // incoming message stream (binary clients)
+        OutputStream sOutputStream; // outgoing message stream (pre-encoded frames, buffered and flushed per batch)
         ChatMessage cMessage; // message received
-        String date; // date client connects
+        private Thread writerThread; // drains outbound into sOutputStream
 
         // constructor
         ClientThread(Socket socket) {
-            id = ++connectionUID; // assign clientThread a UID
             this.socket = socket; // specify this socket
+        }
 
-            System.out.println("Creating object I/O streams for new clientThread");
+        /** set up the streams and read the username, false if the client went away or was closed **/
+        boolean handshake() {
+            ServerLog.debug("Creating object I/O streams for new clientThread");
             // open streams for new user and assign username
             try
             {
-                sOutputStream = new ObjectOutputStream(socket.getOutputStream());
-                sInputStream = new ObjectInputStream(socket.getInputStream());
-                username = (String) sInputStream.readObject(); // read username from inputStream
+                sOutputStream = new BufferedOutputStream(socket.getOutputStream(), Math.max(1024, config.writeBatchBytes));
+                sOutputStream.write(Frame.STREAM_HEADER); // every client is greeted as an object stream
+                sOutputStream.flush();
+                // the first four bytes back tell a legacy object stream from a binary hello
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                byte[] magic = new byte[4];
+                in.mark(magic.length);
+                in.readFully(magic);
+                in.reset();
+                protocol = ChatCodec.detect(ByteBuffer.wrap(magic));
+                if(protocol == ChatCodec.Protocol.LEGACY) {
+                    sInputStream = new ObjectInputStream(in);
+                    username = (String) sInputStream.readObject(); // read username from inputStream
+                }
+                else {
+                    ChatCodec.Hello hello = ChatCodec.readHello(in);
+                    username = hello.username;
+                    version = hello.version;
+                    resumeAfter = hello.lastSeen;
+                    sOutputStream.write(ChatCodec.encodeHelloReply(hello.version));
+                    sOutputStream.flush();
+                    binaryInput = new ChatCodec.StreamDecoder(in, config.maxFrameBytes);
+                }
                 display("<" + username + "> just connected."); // prompt when a new user connects to chat
                 //clientCast("<" + username + "> just connected.");
             }
             catch (IOException e) {
-                display("Error creating new I/O streams: " + e);
-                return;
+                if(!closed)
+                    display("Error creating new I/O streams: " + e);
+                return false;
             }
             catch (ClassNotFoundException e) {} // required
             date = new Date().toString() + "\n"; // time & date of client connection
+            return username != null;
+        }
+
+        /** start the reader (this) and writer threads **/
+        void start(ThreadFactory threads) {
+            writerThread = threads.newThread(new Runnable() {
+                public void run() {
+                    writeLoop();
+                }
+            });
+            writerThread.start();
+            threads.newThread(this).start();
         }
 
         /**
@@ -299,249 +1202,424 @@ public class Server {
         public void run() {
             boolean keepGoing = true; // continue until
             while(keepGoing) {
-                // read string (ChatMessage object)
+                // read string (ChatMessage object or binary frame)
                 try {
-                    cMessage = (ChatMessage) sInputStream.readObject();
+                    if(binaryInput != null)
+                        cMessage = binaryInput.read();
+                    else
+                        cMessage = (ChatMessage) sInputStream.readObject();
                 }
                 catch (IOException ioe) {
-                    display(username + " Exception reading Streams: " + ioe);
+                    if(!closed)
+                        display(username + " Exception reading Streams: " + ioe);
                     break;
                 }
                 catch(ClassNotFoundException e) { break; } // required
-                String message = cMessage.getMessage(); // get message from ChatMessage object (assign to message string)
-                // type of response depends on type of message received
-                switch(cMessage.getType()) {
-                    case ChatMessage.MESSAGE:
-                        broadcast("<" + username + ">: " + message);
-                        break;
-                    case ChatMessage.LOGOUT:
-                        display(username + " disconnected with a LOGOUT message.");
-                        keepGoing = false;
-                        break;
-                    case ChatMessage.USERLIST:
-                        sendMsg("\n------------------------------------------------------------------------\n"
-                                + "List of the users currently connected at " + sdf.format(new Date()) + "\n");
-                        // scan current list of users connected
-                        for(int i = 0; i < threadArray.size(); ++i) {
-                            ClientThread clientThread = threadArray.get(i);
-                            sendMsg((i + 1) + ") <" + clientThread.username + ">: connected since " + clientThread.date);
-                        }
-                        sendMsg("------------------------------------------------------------------------\n");
-                        break;
-                    case ChatMessage.HISTORY:
-                        // RETRIEVE INFO FROM DB HERE TO SHOW HISTORY
-                        try
-                        {
-                            // Create a named constant for the URL.
-                            // NOTE: This value is specific for Java DB.
-                            final String DB_URL = "jdbc:derby:ChatlogDB;create=true";
-
-                            // Create a connection to the database.
-                            Connection DbConnection = DriverManager.getConnection(DB_URL);
-
-                            // Reference Tables and print
-                            viewChatlogTable(DbConnection);
-
-                            // Close the connection.
-                            DbConnection.close();
-                        } catch (Exception e)
-                        {
-                            System.out.println("Error Creating the Chatlog Table");
-                            System.out.println(e.getMessage());
-                        }
-
+                // over its rate limit: THROTTLE stops reading (so TCP pushes back on the client) until allowed
+                long wait;
+                while((wait = admit(cMessage)) > 0)
+                    LockSupport.parkNanos(wait);
+                if(wait < 0) {
+                    if(closed)
+                        break; // disconnected
+                    continue; // dropped
                 }
+                keepGoing = handle(cMessage);
             } // end while(keepGoing), proceed to remove disconnect client
             remove(id); // remove clientThread UID from client list
             close(); // close clientThread streams & socket
         } // end clientThread
 
-        /** close everything **/
-        private void close() {
-            // close the connection (inputStream, outputStream, & socket, )
+        /**
+         * write queued messages to the output stream until the client is closed; after the first
+         * message of a batch, whatever else is queued within writeCoalesceMicros (up to
+         * writeBatchBytes) is buffered with it and the batch goes to the socket in one flush
+         **/
+        private void writeLoop() {
+            List<Frame> batch = new ArrayList<Frame>();
+            long window = config.writeCoalesceMicros * 1000L;
+            int budget = Math.max(1, config.writeBatchBytes);
             try {
-                if(sOutputStream != null) sOutputStream.close();
+                while(!closed) {
+                    Frame frame = outbound.take();
+                    writingSince = System.nanoTime();
+                    long deadline = writingSince + window;
+                    int bytes = 0;
+                    while(frame != null) {
+                        byte[] encoded = frame.bytes(protocol, version);
+                        sOutputStream.write(encoded);
+                        batch.add(frame);
+                        bytes += encoded.length;
+                        if(bytes >= budget)
+                            break;
+                        frame = outbound.poll();
+                        if(frame == null && window > 0) {
+                            long wait = deadline - System.nanoTime();
+                            if(wait > 0)
+                                frame = outbound.poll(wait, TimeUnit.NANOSECONDS);
+                        }
+                    }
+                    sOutputStream.flush();
+                    writingSince = 0;
+                    metrics.socketWrites.increment();
+                    long now = System.nanoTime();
+                    for(Frame sent : batch)
+                        metrics.deliveryNanos.record(now - sent.created);
+                    batch.clear();
+                }
             }
-            catch(Exception e) {}
-            try {
-                if(sInputStream != null) sInputStream.close();
+            catch(InterruptedException e) {
+                // closed
             }
-            catch(Exception e) {}
-            try {
-                if(socket != null) socket.close();
+            // a failed write means the client is gone, so stop sending to it
+            catch(IOException e) {
+                if(!closed) {
+                    metrics.evictedWriteFailed.increment();
+                    display("Error sending message to " + username);
+                    display("\n" + e.toString());
+                }
+                remove(id);
+                close();
             }
-            catch (Exception e) {}
         }
 
-        /** method to send a msg string via client thread to respective output stream **/
-        private boolean sendMsg(String msg) {
-            // if client not connected call close method
-            if(!socket.isConnected()) {
-                close();
-                return false;
-            }
-            // if client connected write message via output stream
+        void wakeWriter() {
+            // writerThread is blocked in outbound.take()
+        }
+
+        /** close everything **/
+        void close() {
+            closed = true;
+            if(writerThread != null && writerThread != Thread.currentThread())
+                writerThread.interrupt();
+            // close the socket first: it fails a write blocked on a client that stopped reading, which
+            // holds sOutputStream's lock, so that stream is never closed here (the socket releases it)
             try {
-                sOutputStream.writeObject(msg + "\n");
+                if(socket != null) socket.close();
             }
-            // inform user of any errors but don't abort
-            catch(IOException e) {
-                display("Error sending message to " + username);
-                display("\n" + e.toString());
+            catch (Exception e) {}
+            try {
+                if(sInputStream != null) sInputStream.close();
             }
-            return true;
+            catch(Exception e) {}
+            releaseSource();
         }
     } // end clientThread class
 
-
     /**
-     * Creates a database for storing Chatlog information and Userlist
-     */
-    public void CreateChatlogDB()
-    {
-        try
-        {
-            // Create a named constant for the URL.
-            // NOTE: This value is specific for Java DB.
-            final String DB_URL = "jdbc:derby:ChatlogDB;create=true";
-
-            // Create a connection to the database.
-            Connection DbConnection = DriverManager.getConnection(DB_URL);
-
-            // If the DB already exists, drop the tables.
-            dropTables(DbConnection);
-
-            // Build the Chatlog table.
-            buildChatlogTable(DbConnection);
+     * an instance of this client is served by one of the NIO event loops
+     *   reads are non-blocking; bytes are only decoded once a whole object has arrived and
+     *   queued frames are shared (never copied) into a write buffer flushed when the socket is writable
+     **/
+    class NioClient extends ClientConnection implements NioEventLoop.Handler {
+
+        private final SocketChannel channel;
+        private final NioEventLoop eventLoop; // loop this client is registered with
+        private SelectionKey key; // set once registered
+        private ByteBuffer readBuffer = ByteBuffer.allocate(8192); // bytes received but not yet decoded
+        private final LegacyStreamScanner scanner = new LegacyStreamScanner(); // finds whole objects
+        private final FrameInput frameInput = new FrameInput(); // feeds whole objects to sInputStream
+        private ObjectInputStream sInputStream; // created once the stream header has arrived
+        private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<ByteBuffer>(); // bytes not yet written
+        private long pendingBytes; // total bytes in writeQueue
+        private boolean negotiated; // protocol detected from the client's first bytes
+        private ChatMessage held; // decoded but over its rate limit; reading is paused until it is handled
+        private final AtomicBoolean flushScheduled = new AtomicBoolean(); // a flushTask is already queued
+
+        /** flushes the outbound queue on the event loop **/
+        private final Runnable flushTask = new Runnable() {
+            public void run() {
+                flushScheduled.set(false);
+                try {
+                    flush();
+                }
+                catch(IOException e) {
+                    failed(e);
+                }
+            }
+        };
 
-            // Build the Customer table.
-            //buildUserlistTable(DbConnection);
+        /** handles the held message once its rate limit allows, then resumes reading (event loop) **/
+        private final Runnable resumeTask = new Runnable() {
+            public void run() {
+                if(closed)
+                    return;
+                ChatMessage message = held;
+                held = null;
+                try {
+                    if(!dispatch(message))
+                        return; // still over the limit
+                    decodeBuffered(); // what arrived before reading was paused
+                    if(held == null && !closed)
+                        NioEventLoop.setReadInterest(key, true);
+                }
+                catch(IOException e) {
+                    failed(e);
+                }
+            }
+        };
 
-            // Reference Tables and print
-            //viewUserTable(DbConnection);
+        NioClient(SocketChannel channel, NioEventLoop eventLoop) throws IOException {
+            this.channel = channel;
+            this.eventLoop = eventLoop;
+            queueWrite(ByteBuffer.wrap(Frame.STREAM_HEADER).asReadOnlyBuffer());
+        }
 
-            // Close the connection.
-            DbConnection.close();
-        } catch (Exception e)
-        {
-            System.out.println("Error Creating the Chatlog Table");
-            System.out.println(e.getMessage());
+        public void registered(SelectionKey key) throws IOException {
+            this.key = key;
+            flush(); // stream header
+            eventLoop.schedule(new Runnable() {
+                public void run() {
+                    if(username == null && !closed) {
+                        metrics.handshakeTimeouts.increment();
+                        ServerLog.debug("Login from " + channel.socket().getInetAddress() + " timed out.");
+                        close();
+                    }
+                }
+            }, TimeUnit.MILLISECONDS.toNanos(config.handshakeTimeoutMillis));
         }
-    } // end create ChatlogDB()
 
+        public void readable(SelectionKey key) throws IOException {
+            if(channel.read(readBuffer) < 0)
+                throw new EOFException();
+            decodeBuffered();
+            // an object larger than the buffer needs a bigger buffer, within limits
+            // (unless the buffer is only full because reading is paused)
+            if(held == null && !readBuffer.hasRemaining()) {
+                if(readBuffer.capacity() >= config.maxFrameBytes)
+                    throw new StreamCorruptedException("message larger than " + config.maxFrameBytes + " bytes");
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(config.maxFrameBytes, readBuffer.capacity() * 2));
+                readBuffer.flip();
+                larger.put(readBuffer);
+                readBuffer = larger;
+            }
+        }
 
+        public void writable(SelectionKey key) throws IOException {
+            flush();
+        }
 
-    /** dropTables method drops any existing tables in case the database already exists. **/
-    public void dropTables(Connection conn)
-    {
-        System.out.println("Checking for existing tables.");
-        try
-        {
-            Statement stmt = conn.createStatement();    // Get a Statement object.
-            try
-            {
+        public void failed(Exception e) {
+            if(!closed)
+                display(username + " Exception reading Streams: " + e);
+            remove(id); // remove client UID from client list
+            close();
+        }
 
-                stmt.execute("DROP TABLE Chatlog");      // Drop the Chatlog table.
-                System.out.println("Chatlog table dropped.");
-            } catch (SQLException ex)
-            {
-                // No need to report an error.
-                // The table simply did not exist.
+        /** decode the complete elements in readBuffer, stopping if one is held over its rate limit **/
+        private void decodeBuffered() throws IOException {
+            readBuffer.flip();
+            try {
+                while(!closed && held == null && decodeNext()) {}
+            }
+            finally {
+                readBuffer.compact();
             }
-        } catch (SQLException ex)
-        {
-            System.out.println("ERROR: " + ex.getMessage());
-            ex.printStackTrace();
         }
-    }
-
-    /** buildChatlogTable method creates the Chatlog table **/
-    public void buildChatlogTable(Connection DbConnection)
-    {
-        try
-        {
-            Statement statement = DbConnection.createStatement();    // Get a Statement object.
-            // Create the table.
-            statement.execute("CREATE TABLE Chatlog (" + "Message CHAR(80) " + ")");
-
 
-            /* * THIS SECTION WAS USED TO TEST DATABASE IMPLEMENTATION * */
+        /** decode the next complete element in readBuffer, false if more bytes are needed **/
+        private boolean decodeNext() throws IOException {
+            if(!negotiated) {
+                // the first four bytes tell a legacy object stream from a binary hello
+                ChatCodec.Protocol detected = ChatCodec.detect(readBuffer);
+                if(detected == null)
+                    return false;
+                protocol = detected;
+                negotiated = true;
+                return true;
+            }
+            if(protocol == ChatCodec.Protocol.LEGACY) {
+                int length = scanner.scan(readBuffer);
+                if(length < 0)
+                    return false;
+                ByteBuffer element = readBuffer.slice();
+                element.limit(length);
+                readBuffer.position(readBuffer.position() + length);
+                decodeLegacy(element);
+                return true;
+            }
+            if(username == null) {
+                ChatCodec.Hello hello = ChatCodec.decodeHello(readBuffer);
+                if(hello == null)
+                    return false;
+                version = hello.version;
+                resumeAfter = hello.lastSeen;
+                queueWrite(ByteBuffer.wrap(ChatCodec.encodeHelloReply(hello.version)));
+                flush();
+                login(hello.username);
+                return true;
+            }
+            ChatMessage cMessage = ChatCodec.decode(readBuffer, config.maxFrameBytes);
+            if(cMessage == null)
+                return false;
+            dispatch(cMessage);
+            return true;
+        }
 
-            // Insert row #1.
-            //statement.execute("INSERT INTO Chatlog VALUES ( " +
-            //        "'12:51:43 <User1023>: Message history number 1')");
+        /** the first element is the stream header, then the username, then ChatMessages **/
+        private void decodeLegacy(ByteBuffer element) throws IOException {
+            frameInput.feed(element);
+            if(sInputStream == null) {
+                sInputStream = new ObjectInputStream(frameInput);
+                return;
+            }
+            Object object;
+            try {
+                object = sInputStream.readObject();
+            }
+            catch(ClassNotFoundException e) {
+                throw new InvalidClassException(e.getMessage());
+            }
+            if(username == null)
+                login((String) object); // read username from the first object
+            else
+                dispatch((ChatMessage) object);
+        }
 
-            // Insert row #1.
-            //statement.execute("INSERT INTO Chatlog VALUES ( " +
-            //        "'12:52:12 <User5192>: Message history number 2')");
+        private void login(String name) {
+            username = name;
+            date = new Date().toString() + "\n"; // time & date of client connection
+            display("<" + username + "> just connected."); // prompt when a new user connects to chat
+            add(this); // save it in client list
+        }
 
-            // Insert row #2.
-            //statement.execute("INSERT INTO Chatlog VALUES ( " +
-            //        "'13:00:10 <User4581>: Message history number 3')");
+        /**
+         * handle a message if its rate limit allows (or drop it); false if it is held back,
+         * in which case reading stops until resumeTask handles it
+         **/
+        private boolean dispatch(ChatMessage cMessage) {
+            long wait = admit(cMessage);
+            if(wait > 0) {
+                held = cMessage;
+                NioEventLoop.setReadInterest(key, false); // TCP pushes back on the client meanwhile
+                eventLoop.schedule(resumeTask, wait);
+                return false;
+            }
+            if(wait == 0 && !handle(cMessage)) {
+                remove(id); // remove client UID from client list
+                close();
+            }
+            return true;
+        }
 
+        void wakeWriter() {
+            if(flushScheduled.compareAndSet(false, true))
+                eventLoop.execute(flushTask);
+        }
 
-            System.out.println("Chatlog table created.");
-        } catch (SQLException ex)
-        {
-            System.out.println("ERROR: " + ex.getMessage());
+        private void queueWrite(ByteBuffer buffer) {
+            writeQueue.add(buffer);
+            pendingBytes += buffer.remaining();
         }
-    }
 
-    /** addToChatlogTable method adds A row to the Chatlog table. **/
-    public void addToChatlogTable(Connection DbConnection, String msg)
-    {
-        try
-        {
-            Statement statement = DbConnection.createStatement();    // Get a Statement object.
+        /**
+         * move queued frames into the write buffer (up to nioMaxPendingBytes) and write it with
+         * a gathering write, waiting for OP_WRITE if the socket is full (event loop only)
+         **/
+        private void flush() throws IOException {
+            if(key == null || closed)
+                return; // not registered yet, flushed once it is
+            while(true) {
+                Frame frame;
+                while(pendingBytes < config.nioMaxPendingBytes && (frame = outbound.poll()) != null) {
+                    queueWrite(frame.buffer(protocol, version));
+                    metrics.deliveryNanos.record(System.nanoTime() - frame.created);
+                }
+                if(writeQueue.isEmpty())
+                    break;
+                long written;
+                try {
+                    written = channel.write(writeQueue.toArray(new ByteBuffer[writeQueue.size()])); // one gathering write
+                }
+                catch(IOException e) {
+                    metrics.evictedWriteFailed.increment(); // failed() removes it
+                    throw e;
+                }
+                metrics.socketWrites.increment();
+                while(!writeQueue.isEmpty() && !writeQueue.peek().hasRemaining())
+                    pendingBytes -= writeQueue.poll().limit();
+                if(!writeQueue.isEmpty()) {
+                    if(written > 0 || writingSince == 0)
+                        writingSince = System.nanoTime(); // the write timeout counts from the last progress
+                    break; // socket is full
+                }
+            }
+            if(writeQueue.isEmpty())
+                writingSince = 0;
+            NioEventLoop.setWriteInterest(key, !writeQueue.isEmpty());
+        }
 
-            String messageFormat = "'" + msg + "'";
+        /** close everything **/
+        void close() {
+            closed = true;
+            try {
+                channel.close();
+            }
+            catch(IOException e) {}
+            releaseSource();
+        }
+    } // end nioClient class
 
-            // Insert row content
-            statement.execute("INSERT INTO Chatlog VALUES ( " + "'" + msg + "')");
-            //statement.execute("INSERT INTO Chatlog VALUES ( " + "'13:00:10 <User4581>: Message history number 3')");
+    /** InputStream over the single complete object currently being decoded **/
+    private static class FrameInput extends InputStream {
+        private ByteBuffer current = ByteBuffer.allocate(0);
 
-            System.out.println("Chat message added to Chatlog table.");
-        } catch (SQLException ex)
-        {
-            System.out.println("ERROR: " + ex.getMessage());
+        void feed(ByteBuffer element) {
+            current = element;
+        }
+        public int read() {
+            return current.hasRemaining() ? current.get() & 0xFF : -1;
+        }
+        public int read(byte[] b, int off, int len) {
+            if(len == 0)
+                return 0;
+            if(!current.hasRemaining())
+                return -1;
+            len = Math.min(len, current.remaining());
+            current.get(b, off, len);
+            return len;
+        }
+        public int available() {
+            return current.remaining();
         }
     }
 
-    /** viewChatlogTable method queries the derby database for all chat history **/
-    public void viewChatlogTable(Connection DbConnection) {
 
-        System.out.println("Checking for existing tables.");
+    /**
+     * Creates a database for storing Chatlog information and Userlist
+     */
+    public void CreateChatlogDB()
+    {
         try
         {
-            // Get a Statement object.
-            Statement statement = DbConnection.createStatement();
-            try
-            {
-                // Print the chatlog table.
-                ResultSet resultSet = statement.executeQuery(
-                        "SELECT * FROM Chatlog");
-                clientCast("\n------------------------------------------------------------------------"
-                        + "\nPrinting chatlog history...\n");
-                System.out.println("\nPrinting chatlog table...");
-                while (resultSet.next()) {
-                    clientCast(resultSet.getString("Message")
-                    );
-
-                }
-                clientCast("\n------------------------------------------------------------------------");
-                System.out.println("Done printing chatlog table.");
-            } catch (SQLException ex)
-            {
-                System.err.println("Exception: " + ex.getMessage());
-                // No need to report an error.
-                // The table simply did not exist.
-            }
-        } catch (SQLException ex)
+            // If the DB already exists keep its history (unless a reset was asked for),
+            // creating or migrating the Chatlog table as needed.
+            ServerLog.debug("Checking for existing tables.");
+            chatlogStore.open(config.logStartup == ServerConfig.ChatlogStartup.RESET);
+
+            // Continue numbering after the last row already stored.
+            chatlogId.set(chatlogStore.lastId());
+            ServerLog.info("Chatlog continues after id " + chatlogId.get() + ".");
+
+            // Load the latest messages into the history cache
+            // (fewer rows than the cache holds means the cache has the whole history).
+            List<ChatlogEntry> latest = chatlogStore.page(null, Long.MAX_VALUE, recentHistory.getCapacity());
+            recentHistory.warm(latest, latest.size() < recentHistory.getCapacity());
+        } catch (IOException e)
         {
-            System.out.println("ERROR: " + ex.getMessage());
-            ex.printStackTrace();
+            ServerLog.error("Error opening the chatlog: " + e.getMessage());
         }
+    } // end create ChatlogDB()
 
+    /** send a page of history (oldest first) to one client, with the cursor for the next older page **/
+    private void sendHistoryPage(ClientConnection requester, String room, List<ChatlogEntry> page, HistoryQuery query) {
+        requester.sendMsg("\n------------------------------------------------------------------------"
+                + "\nPrinting chatlog history of " + room + "...\n");
+        for(ChatlogEntry entry : page)
+            requester.sendMsg(entry.line());
+        if(page.size() == query.limit)
+            requester.sendMsg("(older messages: HISTORY before " + page.get(0).id + ")");
+        requester.sendMsg("\n------------------------------------------------------------------------");
     }
 
 } // end server class
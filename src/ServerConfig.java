@@ -0,0 +1,402 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Properties;
+
+/***********************************************************************************
+ * Holds the tunable settings used by the Server and its helper components         *
+ *                                                                                 *
+ * every setting has a default and can be overridden with a -Dchat.* system        *
+ * property when the server is launched, or with the same chat.* key in a          *
+ * properties file given to the console server (system properties win)             *
+ ***********************************************************************************/
+
+public class ServerConfig {
+
+    /* How client connections are served:
+    *
+    * BLOCKING one thread per client doing blocking object stream reads and writes
+    * NIO a few selector threads doing non-blocking reads and buffered writes
+    */
+    enum Transport { BLOCKING, NIO }
+
+    /* Threads used for BLOCKING transport client handlers:
+    *
+    * PLATFORM an ordinary thread per client
+    * VIRTUAL a virtual thread per client (Java 21+, falls back to PLATFORM on older JVMs)
+    */
+    enum ThreadModel { PLATFORM, VIRTUAL }
+
+    /* What happens when a client's outbound queue is full:
+    *
+    * DROP the new message is not sent to that client
+    * DISCONNECT the client is closed and removed
+    * COALESCE the queued backlog is replaced by a "messages skipped" notice
+    */
+    enum SlowConsumer { DROP, DISCONNECT, COALESCE }
+
+    /* What happens to a client message that arrives faster than its rate limit:
+    *
+    * THROTTLE the client is not read again until the message is allowed (TCP pushes back on the client)
+    * DROP the message is discarded and the client told once per run of drops
+    * DISCONNECT the client is closed and removed
+    */
+    enum RateLimit { THROTTLE, DROP, DISCONNECT }
+
+    /* What happens to the stored chatlog when the server starts:
+    *
+    * KEEP the Chatlog table is kept (and migrated to the current schema if needed)
+    * RESET the Chatlog table is dropped and created empty
+    */
+    enum ChatlogStartup { KEEP, RESET }
+
+    /* Where the chatlog is stored:
+    *
+    * DERBY one row per entry in the embedded Derby database
+    * SEGMENTS length-prefixed records in memory-mapped, append-only segment files
+    */
+    enum LogBackend { DERBY, SEGMENTS }
+
+    int port = 8700; // port number for socket connection to listen on
+    Transport transport = Transport.BLOCKING; // connection engine
+    ThreadModel threadModel = ThreadModel.PLATFORM; // client handler threads
+    int dbThreads = 2; // platform threads running chatlog queries for client handlers
+    int outboundQueueCapacity = 1024; // messages queued per client before the slow-consumer policy applies
+    int slowConsumerQueueDepth = 0; // queue depth at which the policy applies early (0 for only when full)
+    SlowConsumer slowConsumer = SlowConsumer.DISCONNECT; // policy for clients that fall behind
+    int maxFrameBytes = 1 << 20; // largest single message accepted from a client
+
+    /* Chatlog connection pool settings:
+    *
+    * dbPoolSize                   most Derby connections open at once (query threads plus the writer)
+    * dbPoolWaitMillis             how long a caller waits for a free connection before failing
+    * dbValidateIdleMillis         connections idle longer than this are validated before reuse
+    * dbValidationTimeoutSeconds   time allowed for that validity check
+    */
+    int dbPoolSize = 4;
+    long dbPoolWaitMillis = 5000;
+    long dbValidateIdleMillis = 30000;
+    int dbValidationTimeoutSeconds = 2;
+
+    /* per-client rate limits (token buckets; a rate of 0 is unlimited):
+    *
+    * rateChatPerSecond / rateChatBurst        MESSAGE, ROOM_MESSAGE and DIRECT
+    * rateHistoryPerSecond / rateHistoryBurst  HISTORY
+    * rateControlPerSecond / rateControlBurst  USERLIST, JOIN and LEAVE
+    * rateLimit                                what happens to a message over its limit (THROTTLE, DROP, DISCONNECT)
+    * maxPendingHistory                        HISTORY queries one client may have waiting on the chatlog
+    */
+    int rateChatPerSecond = 20;
+    int rateChatBurst = 40;
+    int rateHistoryPerSecond = 2;
+    int rateHistoryBurst = 5;
+    int rateControlPerSecond = 10;
+    int rateControlBurst = 20;
+    RateLimit rateLimit = RateLimit.THROTTLE;
+    int maxPendingHistory = 2;
+
+    /* connection setup settings:
+    *
+    * listenBacklog            connections the OS queues until the server accepts them
+    * handshakeThreads         threads finishing blocking-transport handshakes (streams and username)
+    * handshakeQueueCapacity   accepted connections waiting for a handshake thread before more are refused
+    * handshakeTimeoutMillis   time a new client has to send its username before it is closed
+    * maxConnectionsPerSource  connections open at once from one address (0 for no limit)
+    */
+    int listenBacklog = 1024;
+    int handshakeThreads = 8;
+    int handshakeQueueCapacity = 1024;
+    int handshakeTimeoutMillis = 5000;
+    int maxConnectionsPerSource = 256;
+
+    /* liveness settings (checked by one timer wheel for all clients):
+    *
+    * heartbeatCheckMillis  how often each client's activity is looked at
+    * pingIntervalSeconds   a binary client silent this long is sent a PING (0 for never)
+    * idleTimeoutSeconds    a client silent this long is evicted (0 for never); applies to binary
+    *                       clients and to object stream clients that have sent a PING
+    * writeTimeoutSeconds   a client whose socket takes no data for this long is evicted (0 for never)
+    */
+    int heartbeatCheckMillis = 2000;
+    int pingIntervalSeconds = 30;
+    int idleTimeoutSeconds = 90;
+    int writeTimeoutSeconds = 30;
+
+    /* socket settings:
+    *
+    * tcpNoDelay                disable Nagle's algorithm on client sockets (writes are already batched)
+    * socketSendBufferBytes     SO_SNDBUF for client sockets (0 for the OS default)
+    * socketReceiveBufferBytes  SO_RCVBUF for client sockets (0 for the OS default)
+    * writeBatchBytes           most bytes gathered for one client before they are flushed
+    * writeCoalesceMicros       how long a client writer waits for more messages before flushing
+    *                           (0 to only take what is already queued)
+    */
+    boolean tcpNoDelay = true;
+    int socketSendBufferBytes = 0;
+    int socketReceiveBufferBytes = 0;
+    int writeBatchBytes = 64 << 10;
+    int writeCoalesceMicros = 0;
+
+    /* HISTORY settings:
+    *
+    * historyPageSize   messages in a page when the request does not say
+    * historyMaxPage    most messages one request may ask for
+    * historyFetchSize  rows fetched from Derby per round trip
+    * historyCacheSize  latest messages kept in memory to answer HISTORY without Derby
+    */
+    int historyPageSize = 50;
+    int historyMaxPage = 500;
+    int historyFetchSize = 100;
+    int historyCacheSize = 1000;
+
+    /* resume settings:
+    *
+    * resumeMaxMessages  most missed messages replayed to a reconnecting client (older ones are left to HISTORY)
+    */
+    int resumeMaxMessages = 500;
+
+    /* SEARCH settings:
+    *
+    * searchIndexDir  directory holding the search index (next to the chatlog)
+    * searchPageSize  results in one SEARCH page
+    * searchMaxPages  deepest page a SEARCH may ask for
+    * searchMaxWords  words of a query that are looked up (the rest are ignored)
+    */
+    String searchIndexDir = "ChatlogIndex";
+    int searchPageSize = 10;
+    int searchMaxPages = 20;
+    int searchMaxWords = 8;
+
+    /* cluster settings:
+    *
+    * clusterPort             port the other nodes link to (0: this server is not part of a cluster)
+    * clusterNodeId           this node's name in the cluster (empty: "node-" and the cluster port)
+    * clusterPeers            host:port of every other node's cluster port, comma-separated
+    * clusterBatchBytes       most record bytes sent to a peer in one frame
+    * clusterFlushMicros      how long a link waits for more records to fill a batch (0: send what is queued)
+    * clusterReplayCapacity   recent records kept for peers that are behind or reconnecting (older ones are missed)
+    * clusterReconnectMillis  time between attempts to reach a peer
+    */
+    int clusterPort = 0;
+    String clusterNodeId = "";
+    String clusterPeers = "";
+    int clusterBatchBytes = 64 << 10;
+    int clusterFlushMicros = 500;
+    int clusterReplayCapacity = 65536;
+    long clusterReconnectMillis = 1000;
+
+    /* NIO transport settings:
+    *
+    * nioThreads          number of selector (event-loop) threads
+    * nioMaxPendingBytes  encoded bytes buffered per client ahead of the socket
+    */
+    int nioThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+    long nioMaxPendingBytes = 256L << 10;
+
+    /* chatlog writer settings:
+    *
+    * logQueueCapacity  max chatlog lines waiting to be written
+    * logBatchSize      max rows sent to Derby in one batch
+    * logFlushMillis    max time a queued line waits before its batch is flushed
+    * logBackpressure   what to do when the queue is full (BLOCK, DROP_OLDEST, SPILL)
+    * logSpillFile      file used to hold overflow lines when backpressure is SPILL
+    * logBackend        where entries are stored (DERBY, SEGMENTS)
+    * logStartup        what happens to stored entries at startup (KEEP, RESET)
+    */
+    int logQueueCapacity = 10000;
+    int logBatchSize = 200;
+    long logFlushMillis = 50;
+    ChatlogWriter.Backpressure logBackpressure = ChatlogWriter.Backpressure.BLOCK;
+    String logSpillFile = "ChatlogSpill.txt";
+    LogBackend logBackend = LogBackend.DERBY;
+    ChatlogStartup logStartup = ChatlogStartup.KEEP;
+
+    /* segment backend settings:
+    *
+    * logSegmentDir        directory holding the segment files
+    * logSegmentBytes      size of each memory-mapped segment file
+    * logSyncMillis        group-commit interval: written records are forced to disk this often
+    * logIndexInterval     records between entries of the sparse offset index
+    */
+    String logSegmentDir = "ChatlogSegments";
+    int logSegmentBytes = 64 << 20;
+    long logSyncMillis = 100;
+    int logIndexInterval = 64;
+
+    /* chatlog retention settings:
+    *
+    * logRetentionHours            rows older than this are removed (0 keeps everything)
+    * logRetentionBatchSize        max rows removed per transaction
+    * logRetentionIntervalMinutes  time between retention passes
+    * logRetentionPauseMillis      time between batches, so live inserts are not starved
+    * logArchiveFile               file the removed rows are appended to (empty to just delete them)
+    */
+    int logRetentionHours = 0;
+    int logRetentionBatchSize = 500;
+    int logRetentionIntervalMinutes = 60;
+    long logRetentionPauseMillis = 20;
+    String logArchiveFile = "";
+
+    /* server GUI settings:
+    *
+    * uiMaxLines       lines kept in each GUI log, oldest trimmed first
+    * uiQueueCapacity  lines waiting for the GUI before further lines are dropped
+    * uiFrameMillis    how often queued lines are rendered
+    */
+    int uiMaxLines = 5000;
+    int uiQueueCapacity = 10000;
+    int uiFrameMillis = 100;
+
+    /* console (headless) settings:
+    *
+    * consoleLevel          lowest level of diagnostics printed (DEBUG, INFO, WARN, ERROR)
+    * consoleQueueCapacity  lines waiting for the console before further lines are dropped
+    */
+    ServerLog.Level consoleLevel = ServerLog.Level.INFO;
+    int consoleQueueCapacity = 10000;
+
+    /* metrics settings:
+    *
+    * metricsJmx              register the ServerMetrics MBean with the platform MBean server
+    * metricsPort             local port serving plain-text metrics at /metrics (0 for none)
+    * metricsIntervalSeconds  how often rates are computed and a summary goes to the event log (0 for never)
+    */
+    boolean metricsJmx = true;
+    int metricsPort = 0;
+    int metricsIntervalSeconds = 60;
+
+    /** default settings overridden by any -Dchat.* system properties **/
+    static ServerConfig fromSystemProperties() {
+        return fromProperties(System.getProperties());
+    }
+
+    /**
+     * default settings overridden by the chat.* entries of a properties file,
+     * which are in turn overridden by any -Dchat.* system properties
+     **/
+    static ServerConfig fromFile(String file) throws IOException {
+        Properties properties = new Properties();
+        try(Reader in = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            properties.load(in);
+        }
+        properties.putAll(System.getProperties());
+        return fromProperties(properties);
+    }
+
+    /** default settings overridden by the chat.* entries present in properties **/
+    static ServerConfig fromProperties(Properties properties) {
+        ServerConfig config = new ServerConfig();
+        config.port = intValue(properties, "chat.port", config.port);
+        config.transport = enumValue(properties, "chat.transport", config.transport);
+        config.threadModel = enumValue(properties, "chat.threadModel", config.threadModel);
+        config.dbThreads = intValue(properties, "chat.db.threads", config.dbThreads);
+        config.dbPoolSize = intValue(properties, "chat.db.poolSize", config.dbPoolSize);
+        config.dbPoolWaitMillis = longValue(properties, "chat.db.poolWaitMillis", config.dbPoolWaitMillis);
+        config.dbValidateIdleMillis = longValue(properties, "chat.db.validateIdleMillis", config.dbValidateIdleMillis);
+        config.dbValidationTimeoutSeconds = intValue(properties, "chat.db.validationTimeoutSeconds", config.dbValidationTimeoutSeconds);
+        config.outboundQueueCapacity = intValue(properties, "chat.outboundQueueCapacity", config.outboundQueueCapacity);
+        config.slowConsumer = enumValue(properties, "chat.slowConsumer", config.slowConsumer);
+        config.slowConsumerQueueDepth = intValue(properties, "chat.slowConsumerQueueDepth", config.slowConsumerQueueDepth);
+        config.rateChatPerSecond = intValue(properties, "chat.rate.chatPerSecond", config.rateChatPerSecond);
+        config.rateChatBurst = intValue(properties, "chat.rate.chatBurst", config.rateChatBurst);
+        config.rateHistoryPerSecond = intValue(properties, "chat.rate.historyPerSecond", config.rateHistoryPerSecond);
+        config.rateHistoryBurst = intValue(properties, "chat.rate.historyBurst", config.rateHistoryBurst);
+        config.rateControlPerSecond = intValue(properties, "chat.rate.controlPerSecond", config.rateControlPerSecond);
+        config.rateControlBurst = intValue(properties, "chat.rate.controlBurst", config.rateControlBurst);
+        config.rateLimit = enumValue(properties, "chat.rate.limit", config.rateLimit);
+        config.maxPendingHistory = intValue(properties, "chat.history.maxPending", config.maxPendingHistory);
+        config.maxFrameBytes = intValue(properties, "chat.maxFrameBytes", config.maxFrameBytes);
+        config.listenBacklog = intValue(properties, "chat.net.listenBacklog", config.listenBacklog);
+        config.handshakeThreads = intValue(properties, "chat.handshake.threads", config.handshakeThreads);
+        config.handshakeQueueCapacity = intValue(properties, "chat.handshake.queueCapacity", config.handshakeQueueCapacity);
+        config.handshakeTimeoutMillis = intValue(properties, "chat.handshake.timeoutMillis", config.handshakeTimeoutMillis);
+        config.maxConnectionsPerSource = intValue(properties, "chat.net.maxConnectionsPerSource", config.maxConnectionsPerSource);
+        config.heartbeatCheckMillis = intValue(properties, "chat.heartbeat.checkMillis", config.heartbeatCheckMillis);
+        config.pingIntervalSeconds = intValue(properties, "chat.heartbeat.pingIntervalSeconds", config.pingIntervalSeconds);
+        config.idleTimeoutSeconds = intValue(properties, "chat.heartbeat.idleTimeoutSeconds", config.idleTimeoutSeconds);
+        config.writeTimeoutSeconds = intValue(properties, "chat.heartbeat.writeTimeoutSeconds", config.writeTimeoutSeconds);
+        config.tcpNoDelay = Boolean.parseBoolean(properties.getProperty("chat.net.tcpNoDelay", String.valueOf(config.tcpNoDelay)));
+        config.socketSendBufferBytes = intValue(properties, "chat.net.sendBufferBytes", config.socketSendBufferBytes);
+        config.socketReceiveBufferBytes = intValue(properties, "chat.net.receiveBufferBytes", config.socketReceiveBufferBytes);
+        config.writeBatchBytes = intValue(properties, "chat.net.writeBatchBytes", config.writeBatchBytes);
+        config.writeCoalesceMicros = intValue(properties, "chat.net.writeCoalesceMicros", config.writeCoalesceMicros);
+        config.historyPageSize = intValue(properties, "chat.history.pageSize", config.historyPageSize);
+        config.historyMaxPage = intValue(properties, "chat.history.maxPage", config.historyMaxPage);
+        config.historyFetchSize = intValue(properties, "chat.history.fetchSize", config.historyFetchSize);
+        config.historyCacheSize = intValue(properties, "chat.history.cacheSize", config.historyCacheSize);
+        config.resumeMaxMessages = intValue(properties, "chat.resume.maxMessages", config.resumeMaxMessages);
+        config.searchIndexDir = properties.getProperty("chat.search.indexDir", config.searchIndexDir);
+        config.searchPageSize = intValue(properties, "chat.search.pageSize", config.searchPageSize);
+        config.searchMaxPages = intValue(properties, "chat.search.maxPages", config.searchMaxPages);
+        config.searchMaxWords = intValue(properties, "chat.search.maxWords", config.searchMaxWords);
+        config.clusterPort = intValue(properties, "chat.cluster.port", config.clusterPort);
+        config.clusterNodeId = properties.getProperty("chat.cluster.nodeId", config.clusterNodeId);
+        config.clusterPeers = properties.getProperty("chat.cluster.peers", config.clusterPeers);
+        config.clusterBatchBytes = intValue(properties, "chat.cluster.batchBytes", config.clusterBatchBytes);
+        config.clusterFlushMicros = intValue(properties, "chat.cluster.flushMicros", config.clusterFlushMicros);
+        config.clusterReplayCapacity = intValue(properties, "chat.cluster.replayCapacity", config.clusterReplayCapacity);
+        config.clusterReconnectMillis = longValue(properties, "chat.cluster.reconnectMillis", config.clusterReconnectMillis);
+        config.nioThreads = intValue(properties, "chat.nio.threads", config.nioThreads);
+        config.nioMaxPendingBytes = longValue(properties, "chat.nio.maxPendingBytes", config.nioMaxPendingBytes);
+        config.logQueueCapacity = intValue(properties, "chat.log.queueCapacity", config.logQueueCapacity);
+        config.logBatchSize = intValue(properties, "chat.log.batchSize", config.logBatchSize);
+        config.logFlushMillis = longValue(properties, "chat.log.flushMillis", config.logFlushMillis);
+        config.logBackpressure = enumValue(properties, "chat.log.backpressure", config.logBackpressure);
+        config.logSpillFile = properties.getProperty("chat.log.spillFile", config.logSpillFile);
+        config.logBackend = enumValue(properties, "chat.log.backend", config.logBackend);
+        config.logSegmentDir = properties.getProperty("chat.log.segmentDir", config.logSegmentDir);
+        config.logSegmentBytes = intValue(properties, "chat.log.segmentBytes", config.logSegmentBytes);
+        config.logSyncMillis = longValue(properties, "chat.log.syncMillis", config.logSyncMillis);
+        config.logIndexInterval = intValue(properties, "chat.log.indexInterval", config.logIndexInterval);
+        config.logStartup = enumValue(properties, "chat.log.startup", config.logStartup);
+        config.logRetentionHours = intValue(properties, "chat.log.retentionHours", config.logRetentionHours);
+        config.logRetentionBatchSize = intValue(properties, "chat.log.retentionBatchSize", config.logRetentionBatchSize);
+        config.logRetentionIntervalMinutes = intValue(properties, "chat.log.retentionIntervalMinutes", config.logRetentionIntervalMinutes);
+        config.logRetentionPauseMillis = longValue(properties, "chat.log.retentionPauseMillis", config.logRetentionPauseMillis);
+        config.logArchiveFile = properties.getProperty("chat.log.archiveFile", config.logArchiveFile);
+        config.uiMaxLines = intValue(properties, "chat.ui.maxLines", config.uiMaxLines);
+        config.uiQueueCapacity = intValue(properties, "chat.ui.queueCapacity", config.uiQueueCapacity);
+        config.uiFrameMillis = intValue(properties, "chat.ui.frameMillis", config.uiFrameMillis);
+        config.consoleLevel = enumValue(properties, "chat.console.level", config.consoleLevel);
+        config.consoleQueueCapacity = intValue(properties, "chat.console.queueCapacity", config.consoleQueueCapacity);
+        config.metricsJmx = Boolean.parseBoolean(properties.getProperty("chat.metrics.jmx", String.valueOf(config.metricsJmx)));
+        config.metricsPort = intValue(properties, "chat.metrics.port", config.metricsPort);
+        config.metricsIntervalSeconds = intValue(properties, "chat.metrics.intervalSeconds", config.metricsIntervalSeconds);
+        return config;
+    }
+
+    /** a number setting, kept at its default when absent or not a number (as Integer.getInteger does) **/
+    private static int intValue(Properties properties, String key, int value) {
+        String text = properties.getProperty(key);
+        try {
+            return text == null ? value : Integer.decode(text.trim());
+        }
+        catch(NumberFormatException e) {
+            return value;
+        }
+    }
+    private static long longValue(Properties properties, String key, long value) {
+        String text = properties.getProperty(key);
+        try {
+            return text == null ? value : Long.decode(text.trim());
+        }
+        catch(NumberFormatException e) {
+            return value;
+        }
+    }
+
+    /** a choice setting, kept at its default when absent, or with a warning when it is not one of the choices **/
+    private static <E extends Enum<E>> E enumValue(Properties properties, String key, E value) {
+        String text = properties.getProperty(key);
+        if(text == null)
+            return value;
+        try {
+            return Enum.valueOf(value.getDeclaringClass(), text.trim().toUpperCase());
+        }
+        catch(IllegalArgumentException e) {
+            ServerLog.warn("Invalid value " + text + " for " + key + ", expected one of "
+                    + Arrays.toString(value.getDeclaringClass().getEnumConstants()) + "; using " + value + ".");
+            return value;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***********************************************************************************
+ * Asynchronous, level-filtered console log for server diagnostics                 *
+ *                                                                                 *
+ * callers only filter by level and offer the line to a bounded queue, so console  *
+ * I/O never runs on a client, broadcast or database thread; one daemon thread     *
+ * prints the queue. When the console cannot keep up lines are dropped (and the    *
+ * count reported) rather than making callers wait                                 *
+ ***********************************************************************************/
+
+final class ServerLog implements Runnable {
+
+    /* Message levels, lowest first; lines below the configured level are discarded
+    *
+    * DEBUG connection-level detail
+    * INFO chat lines, events and startup/shutdown summaries
+    * WARN something failed but the server carries on
+    * ERROR a component stopped working
+    */
+    enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static volatile Level threshold = Level.INFO;
+    private static final Object STOP = new Object(); // queued to end a replaced instance's thread
+    private static volatile ServerLog instance = new ServerLog(10000, System.out);
+
+    private final int capacity; // most lines queued before further lines are dropped
+    private final ArrayBlockingQueue<Object> queue; // lines, or a latch released once everything before it is printed
+    private final AtomicLong dropped = new AtomicLong(); // lines lost to a full queue since the last one printed
+    private final PrintStream out;
+
+    private ServerLog(int capacity, PrintStream out) {
+        this.capacity = Math.max(1, capacity);
+        queue = new ArrayBlockingQueue<Object>(this.capacity);
+        this.out = out;
+        Thread thread = new Thread(this, "ServerLog");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** apply the console settings (lines already queued are still printed) **/
+    static void configure(ServerConfig config) {
+        threshold = config.consoleLevel;
+        if(Math.max(1, config.consoleQueueCapacity) != instance.capacity) {
+            ServerLog old = instance;
+            instance = new ServerLog(config.consoleQueueCapacity, old.out);
+            old.flushQueue(1000);
+            old.queue.offer(STOP);
+        }
+    }
+
+    static boolean isEnabled(Level level) {
+        return level.compareTo(threshold) >= 0;
+    }
+
+    static void debug(String line) {
+        log(Level.DEBUG, line);
+    }
+    static void info(String line) {
+        log(Level.INFO, line);
+    }
+    static void warn(String line) {
+        log(Level.WARN, line);
+    }
+    static void error(String line) {
+        log(Level.ERROR, line);
+    }
+
+    /** queue a line if its level is enabled, without ever blocking **/
+    static void log(Level level, String line) {
+        if(!isEnabled(level))
+            return;
+        ServerLog log = instance;
+        if(!log.queue.offer(level == Level.INFO ? line : level + ": " + line))
+            log.dropped.incrementAndGet();
+    }
+
+    /** wait up to millis for the lines queued so far to be printed (used at shutdown) **/
+    static void flush(long millis) {
+        instance.flushQueue(millis);
+    }
+
+    private void flushQueue(long millis) {
+        CountDownLatch printed = new CountDownLatch(1);
+        try {
+            if(queue.offer(printed, millis, TimeUnit.MILLISECONDS))
+                printed.await(millis, TimeUnit.MILLISECONDS);
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** print queued lines until the JVM exits (or this instance is replaced) **/
+    public void run() {
+        while(true) {
+            Object item;
+            try {
+                item = queue.take();
+            }
+            catch(InterruptedException e) {
+                return;
+            }
+            long lost = dropped.getAndSet(0);
+            if(lost > 0)
+                out.println("WARN: " + lost + " log lines dropped, the console fell behind");
+            if(item == STOP)
+                return;
+            if(item instanceof CountDownLatch) {
+                out.flush();
+                ((CountDownLatch) item).countDown();
+            }
+            else
+                out.println((String) item);
+        }
+    }
+}
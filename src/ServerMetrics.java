@@ -0,0 +1,427 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/***********************************************************************************
+ * Counters and latency histograms for the server's hot paths                      *
+ *                                                                                 *
+ * counters are striped LongAdders, so client, writer and query threads update     *
+ * them without contending; gauges (connections, queue depths) are read from the   *
+ * server only when someone asks. The numbers are published three ways:            *
+ *   - as a JMX MBean (ServerMetricsMBean)                                         *
+ *   - as "name value" text lines at http://127.0.0.1:<metricsPort>/metrics        *
+ *   - as a one-line summary in the event log every metricsIntervalSeconds         *
+ ***********************************************************************************/
+
+public class ServerMetrics implements ServerMetricsMBean {
+
+    /** values only the server knows, read when metrics are published **/
+    interface Gauges {
+        int activeConnections();
+        int maxQueueDepth(); // deepest single client outbound queue
+        long totalQueueDepth(); // frames queued for all clients
+    }
+
+    /** where the periodic summary goes **/
+    interface Sink {
+        void summary(String line);
+    }
+
+    final LongAdder messagesDecoded = new LongAdder(); // ChatMessages read from clients
+    final LongAdder broadcasts = new LongAdder(); // chat messages fanned out to a room
+    final LongAdder sendFailures = new LongAdder(); // sends refused because the client was gone or closed
+    final LongAdder messagesDropped = new LongAdder(); // frames lost to the DROP or COALESCE policy
+    final LongAdder connectionsOpened = new LongAdder();
+    final LongAdder connectionsClosed = new LongAdder();
+    final LongAdder connectionsRejected = new LongAdder(); // refused before login (per-source cap or handshake queue full)
+    final LongAdder handshakeTimeouts = new LongAdder(); // closed for not logging in within handshakeTimeoutMillis
+    final LongAdder pingsSent = new LongAdder(); // PINGs sent to quiet binary clients
+    final LongAdder evictedIdle = new LongAdder(); // clients removed for sending nothing within idleTimeoutSeconds
+    final LongAdder evictedWriteTimeout = new LongAdder(); // clients removed for a write stuck past writeTimeoutSeconds
+    final LongAdder evictedWriteFailed = new LongAdder(); // clients removed because a write to them failed
+    final LongAdder socketWrites = new LongAdder(); // flushes (blocking) or gathering writes (NIO) to client sockets
+    final LongAdder slowConsumers = new LongAdder(); // times the slow-consumer policy was applied to a client
+    final LongAdder rateThrottled = new LongAdder(); // client messages delayed by their rate limit
+    final LongAdder rateDropped = new LongAdder(); // client messages discarded by their rate limit
+    final LongAdder rateDisconnected = new LongAdder(); // clients closed for exceeding a rate limit
+    final LongAdder resumes = new LongAdder(); // reconnecting clients sent what they missed
+    final LongAdder clusterRelayed = new LongAdder(); // local chat lines and room changes sent to the cluster
+    final LongAdder clusterReceived = new LongAdder(); // records taken from other nodes
+    final LongAdder clusterDuplicates = new LongAdder(); // records from other nodes already taken (replayed twice)
+    final LongAdder clusterGaps = new LongAdder(); // records a reconnecting peer missed that were no longer kept
+    final LongAdder clusterBatches = new LongAdder(); // frames sent to peers (each carries one or more records)
+    final LongAdder resumeReplayed = new LongAdder(); // missed messages replayed to them
+    final LongAdder historyRejected = new LongAdder(); // HISTORY refused while the client had maxPendingHistory waiting
+    final LatencyHistogram broadcastNanos = new LatencyHistogram(); // broadcast(): chatlog queue + fan-out
+    final LatencyHistogram handshakeNanos = new LatencyHistogram(); // connection accepted until logged in
+    final LatencyHistogram deliveryNanos = new LatencyHistogram(); // frame created until handed to the socket
+    final LatencyHistogram chatlogAppendNanos = new LatencyHistogram(); // one writer batch stored
+    final LatencyHistogram chatlogPageNanos = new LatencyHistogram(); // one HISTORY page or resume gap read from storage
+    final LatencyHistogram searchNanos = new LatencyHistogram(); // one SEARCH ranked and its lines read
+
+    private final ServerConfig config;
+    private final Gauges gauges;
+    private final Sink sink;
+    private ScheduledExecutorService sampler; // rolls the interval window and writes the summary
+    private HttpServer scrapeServer;
+    private ObjectName objectName;
+
+    // last interval (written by the sampler thread only)
+    private volatile double messagesPerSecond;
+    private volatile long[] broadcastWindow = new long[0], deliveryWindow = new long[0];
+    private long lastDecoded, lastBroadcasts, lastSampleNanos;
+    private long[] lastBroadcastCounts, lastDeliveryCounts;
+
+    ServerMetrics(ServerConfig config, Gauges gauges, Sink sink) {
+        this.config = config;
+        this.gauges = gauges;
+        this.sink = sink;
+    }
+
+    /** register the MBean, open the scrape port and start the sampler, as configured **/
+    void start() {
+        if(config.metricsJmx) {
+            try {
+                objectName = new ObjectName("chat:type=Server,port=" + config.port);
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            }
+            catch(Exception e) {
+                objectName = null;
+                ServerLog.warn("Metrics MBean not registered: " + e);
+            }
+        }
+        if(config.metricsPort > 0) {
+            try {
+                scrapeServer = HttpServer.create(
+                        new InetSocketAddress(InetAddress.getLoopbackAddress(), config.metricsPort), 0);
+                scrapeServer.createContext("/metrics", new HttpHandler() {
+                    public void handle(HttpExchange exchange) throws IOException {
+                        byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                        exchange.sendResponseHeaders(200, body.length);
+                        try(OutputStream out = exchange.getResponseBody()) {
+                            out.write(body);
+                        }
+                    }
+                });
+                scrapeServer.start(); // on the server's own dispatcher thread
+                ServerLog.info("Metrics at http://127.0.0.1:" + config.metricsPort + "/metrics");
+            }
+            catch(IOException e) {
+                scrapeServer = null;
+                ServerLog.warn("Metrics port " + config.metricsPort + " not opened: " + e);
+            }
+        }
+        lastSampleNanos = System.nanoTime();
+        if(config.metricsIntervalSeconds > 0) {
+            sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "ServerMetrics");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            sampler.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    sample();
+                }
+            }, config.metricsIntervalSeconds, config.metricsIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    void stop() {
+        if(sampler != null)
+            sampler.shutdownNow();
+        if(scrapeServer != null)
+            scrapeServer.stop(0);
+        if(objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            }
+            catch(Exception e) {}
+        }
+    }
+
+    /** roll the interval window and write the summary line **/
+    private void sample() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-9, (now - lastSampleNanos) / 1e9);
+        long decoded = messagesDecoded.sum();
+        long sent = broadcasts.sum();
+        messagesPerSecond = (decoded - lastDecoded) / seconds;
+        double broadcastsPerSecond = (sent - lastBroadcasts) / seconds;
+        long[] broadcastCounts = broadcastNanos.snapshot();
+        long[] deliveryCounts = deliveryNanos.snapshot();
+        broadcastWindow = LatencyHistogram.since(broadcastCounts, lastBroadcastCounts);
+        deliveryWindow = LatencyHistogram.since(deliveryCounts, lastDeliveryCounts);
+        lastSampleNanos = now;
+        lastDecoded = decoded;
+        lastBroadcasts = sent;
+        lastBroadcastCounts = broadcastCounts;
+        lastDeliveryCounts = deliveryCounts;
+
+        sink.summary(String.format("Metrics: %.1f msg/s in, %.1f broadcasts/s, broadcast p99 %d us, delivery p99 %d us, "
+                        + "%d clients (+%d/-%d total, %d refused, %d login timeouts), queues max %d total %d, %d send failures, %d dropped, "
+                        + "evicted %d idle/%d write timeout/%d write failed, %d slow consumer, rate limited %d throttled/%d dropped/%d disconnected, %d history rejected, "
+                        + "%d resumes (%d replayed), cluster %d relayed/%d received in %d batches",
+                messagesPerSecond, broadcastsPerSecond,
+                micros(LatencyHistogram.percentile(broadcastWindow, 0.99)),
+                micros(LatencyHistogram.percentile(deliveryWindow, 0.99)),
+                gauges.activeConnections(), connectionsOpened.sum(), connectionsClosed.sum(),
+                connectionsRejected.sum(), handshakeTimeouts.sum(),
+                gauges.maxQueueDepth(), gauges.totalQueueDepth(), sendFailures.sum(), messagesDropped.sum(),
+                evictedIdle.sum(), evictedWriteTimeout.sum(), evictedWriteFailed.sum(), slowConsumers.sum(), rateThrottled.sum(), rateDropped.sum(), rateDisconnected.sum(), historyRejected.sum(),
+                resumes.sum(), resumeReplayed.sum(), clusterRelayed.sum(), clusterReceived.sum(), clusterBatches.sum()));
+    }
+
+    /** every metric as "name value" lines (histograms as cumulative count, sum, max and percentiles) **/
+    String scrape() {
+        StringBuilder sb = new StringBuilder();
+        line(sb, "chat_messages_decoded_total", messagesDecoded.sum());
+        line(sb, "chat_messages_per_second", messagesPerSecond);
+        line(sb, "chat_broadcasts_total", broadcasts.sum());
+        line(sb, "chat_send_failures_total", sendFailures.sum());
+        line(sb, "chat_messages_dropped_total", messagesDropped.sum());
+        line(sb, "chat_connections_active", gauges.activeConnections());
+        line(sb, "chat_connections_opened_total", connectionsOpened.sum());
+        line(sb, "chat_connections_closed_total", connectionsClosed.sum());
+        line(sb, "chat_connections_rejected_total", connectionsRejected.sum());
+        line(sb, "chat_handshake_timeouts_total", handshakeTimeouts.sum());
+        line(sb, "chat_socket_writes_total", socketWrites.sum());
+        line(sb, "chat_pings_sent_total", pingsSent.sum());
+        line(sb, "chat_evicted_idle_total", evictedIdle.sum());
+        line(sb, "chat_evicted_write_timeout_total", evictedWriteTimeout.sum());
+        line(sb, "chat_evicted_write_failed_total", evictedWriteFailed.sum());
+        line(sb, "chat_slow_consumer_total", slowConsumers.sum());
+        line(sb, "chat_rate_throttled_total", rateThrottled.sum());
+        line(sb, "chat_rate_dropped_total", rateDropped.sum());
+        line(sb, "chat_rate_disconnected_total", rateDisconnected.sum());
+        line(sb, "chat_history_rejected_total", historyRejected.sum());
+        line(sb, "chat_resumes_total", resumes.sum());
+        line(sb, "chat_resume_replayed_total", resumeReplayed.sum());
+        line(sb, "chat_cluster_relayed_total", clusterRelayed.sum());
+        line(sb, "chat_cluster_received_total", clusterReceived.sum());
+        line(sb, "chat_cluster_duplicates_total", clusterDuplicates.sum());
+        line(sb, "chat_cluster_gaps_total", clusterGaps.sum());
+        line(sb, "chat_cluster_batches_total", clusterBatches.sum());
+        line(sb, "chat_outbound_queue_depth_max", gauges.maxQueueDepth());
+        line(sb, "chat_outbound_queue_depth_total", gauges.totalQueueDepth());
+        histogram(sb, "chat_broadcast_latency", broadcastNanos);
+        histogram(sb, "chat_handshake_latency", handshakeNanos);
+        histogram(sb, "chat_delivery_latency", deliveryNanos);
+        histogram(sb, "chat_chatlog_append_latency", chatlogAppendNanos);
+        histogram(sb, "chat_chatlog_page_latency", chatlogPageNanos);
+        histogram(sb, "chat_search_latency", searchNanos);
+        return sb.toString();
+    }
+
+    private static void line(StringBuilder sb, String name, Object value) {
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void histogram(StringBuilder sb, String name, LatencyHistogram histogram) {
+        long[] counts = histogram.snapshot();
+        long count = 0;
+        for(long n : counts)
+            count += n;
+        line(sb, name + "_count", count);
+        line(sb, name + "_seconds_sum", histogram.getTotalNanos() / 1e9);
+        line(sb, name + "_seconds_max", histogram.getMaxNanos() / 1e9);
+        for(double p : new double[] { 0.5, 0.9, 0.99, 0.999 })
+            line(sb, name + "_seconds{quantile=\"" + p + "\"}",
+                    Math.min(histogram.getMaxNanos(), LatencyHistogram.percentile(counts, p)) / 1e9);
+    }
+
+    private static long micros(long nanos) {
+        return nanos / 1000;
+    }
+
+    /** the chatlog backend with its append and page calls timed into this registry **/
+    ChatlogBackend meter(final ChatlogBackend backend) {
+        return new ChatlogBackend() {
+            public void open(boolean reset) throws IOException {
+                backend.open(reset);
+            }
+            public long lastId() throws IOException {
+                return backend.lastId();
+            }
+            public int append(List<ChatlogEntry> entries) throws IOException {
+                long start = System.nanoTime();
+                try {
+                    return backend.append(entries);
+                }
+                finally {
+                    chatlogAppendNanos.record(System.nanoTime() - start);
+                }
+            }
+            public List<ChatlogEntry> page(String room, long beforeId, int limit) throws IOException {
+                long start = System.nanoTime();
+                try {
+                    return backend.page(room, beforeId, limit);
+                }
+                finally {
+                    chatlogPageNanos.record(System.nanoTime() - start);
+                }
+            }
+            public List<ChatlogEntry> since(String room, long afterId, int limit) throws IOException {
+                long start = System.nanoTime();
+                try {
+                    return backend.since(room, afterId, limit);
+                }
+                finally {
+                    chatlogPageNanos.record(System.nanoTime() - start);
+                }
+            }
+            public List<ChatlogEntry> get(Collection<Long> ids) throws IOException {
+                long start = System.nanoTime();
+                try {
+                    return backend.get(ids);
+                }
+                finally {
+                    chatlogPageNanos.record(System.nanoTime() - start);
+                }
+            }
+            public List<ChatlogEntry> expired(long cutoff, int limit) throws IOException {
+                return backend.expired(cutoff, limit);
+            }
+            public int remove(List<ChatlogEntry> expired, long cutoff) throws IOException {
+                return backend.remove(expired, cutoff);
+            }
+            public void close() {
+                backend.close();
+            }
+            public String stats() {
+                return backend.stats();
+            }
+        };
+    }
+
+    // MBean attributes
+
+    public long getMessagesDecoded() {
+        return messagesDecoded.sum();
+    }
+    public double getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+    public long getBroadcasts() {
+        return broadcasts.sum();
+    }
+    public long getBroadcastLatencyP50Micros() {
+        return micros(LatencyHistogram.percentile(broadcastWindow, 0.5));
+    }
+    public long getBroadcastLatencyP99Micros() {
+        return micros(LatencyHistogram.percentile(broadcastWindow, 0.99));
+    }
+    public long getDeliveryLatencyP50Micros() {
+        return micros(LatencyHistogram.percentile(deliveryWindow, 0.5));
+    }
+    public long getDeliveryLatencyP99Micros() {
+        return micros(LatencyHistogram.percentile(deliveryWindow, 0.99));
+    }
+    public long getDeliveryLatencyMaxMicros() {
+        return micros(deliveryNanos.getMaxNanos());
+    }
+    public int getOutboundQueueDepthMax() {
+        return gauges.maxQueueDepth();
+    }
+    public long getOutboundQueueDepthTotal() {
+        return gauges.totalQueueDepth();
+    }
+    public long getSendFailures() {
+        return sendFailures.sum();
+    }
+    public long getMessagesDropped() {
+        return messagesDropped.sum();
+    }
+    public long getChatlogAppendP99Micros() {
+        return micros(LatencyHistogram.percentile(chatlogAppendNanos.snapshot(), 0.99));
+    }
+    public long getChatlogPageP99Micros() {
+        return micros(LatencyHistogram.percentile(chatlogPageNanos.snapshot(), 0.99));
+    }
+    public long getSearchP99Micros() {
+        return micros(LatencyHistogram.percentile(searchNanos.snapshot(), 0.99));
+    }
+    public int getActiveConnections() {
+        return gauges.activeConnections();
+    }
+    public long getConnectionsOpened() {
+        return connectionsOpened.sum();
+    }
+    public long getConnectionsClosed() {
+        return connectionsClosed.sum();
+    }
+    public long getConnectionsRejected() {
+        return connectionsRejected.sum();
+    }
+    public long getHandshakeTimeouts() {
+        return handshakeTimeouts.sum();
+    }
+    public long getHandshakeP99Micros() {
+        return micros(LatencyHistogram.percentile(handshakeNanos.snapshot(), 0.99));
+    }
+    public long getSocketWrites() {
+        return socketWrites.sum();
+    }
+    public long getPingsSent() {
+        return pingsSent.sum();
+    }
+    public long getEvictedIdle() {
+        return evictedIdle.sum();
+    }
+    public long getEvictedWriteTimeout() {
+        return evictedWriteTimeout.sum();
+    }
+    public long getEvictedWriteFailed() {
+        return evictedWriteFailed.sum();
+    }
+    public long getSlowConsumers() {
+        return slowConsumers.sum();
+    }
+    public long getRateThrottled() {
+        return rateThrottled.sum();
+    }
+    public long getRateDropped() {
+        return rateDropped.sum();
+    }
+    public long getRateDisconnected() {
+        return rateDisconnected.sum();
+    }
+    public long getHistoryRejected() {
+        return historyRejected.sum();
+    }
+    public long getResumes() {
+        return resumes.sum();
+    }
+    public long getResumeReplayed() {
+        return resumeReplayed.sum();
+    }
+    public long getClusterRelayed() {
+        return clusterRelayed.sum();
+    }
+    public long getClusterReceived() {
+        return clusterReceived.sum();
+    }
+    public long getClusterDuplicates() {
+        return clusterDuplicates.sum();
+    }
+    public long getClusterGaps() {
+        return clusterGaps.sum();
+    }
+    public long getClusterBatches() {
+        return clusterBatches.sum();
+    }
+}
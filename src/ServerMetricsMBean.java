@@ -0,0 +1,48 @@
+/***********************************************************************************
+ * JMX view of ServerMetrics (registered as chat:type=Server,port=<port>)          *
+ *                                                                                 *
+ * counters are totals since the server started; rates and the windowed            *
+ * percentiles cover the last metrics interval                                     *
+ ***********************************************************************************/
+
+public interface ServerMetricsMBean {
+
+    long getMessagesDecoded();
+    double getMessagesPerSecond();
+    long getBroadcasts();
+    long getBroadcastLatencyP50Micros();
+    long getBroadcastLatencyP99Micros();
+    long getDeliveryLatencyP50Micros();
+    long getDeliveryLatencyP99Micros();
+    long getDeliveryLatencyMaxMicros();
+    int getOutboundQueueDepthMax();
+    long getOutboundQueueDepthTotal();
+    long getSendFailures();
+    long getMessagesDropped();
+    long getChatlogAppendP99Micros();
+    long getChatlogPageP99Micros();
+    long getSearchP99Micros();
+    int getActiveConnections();
+    long getConnectionsOpened();
+    long getConnectionsClosed();
+    long getConnectionsRejected();
+    long getHandshakeTimeouts();
+    long getHandshakeP99Micros();
+    long getSocketWrites();
+    long getPingsSent();
+    long getEvictedIdle();
+    long getEvictedWriteTimeout();
+    long getEvictedWriteFailed();
+    long getSlowConsumers();
+    long getRateThrottled();
+    long getRateDropped();
+    long getRateDisconnected();
+    long getHistoryRejected();
+    long getResumes();
+    long getResumeReplayed();
+    long getClusterRelayed();
+    long getClusterReceived();
+    long getClusterDuplicates();
+    long getClusterGaps();
+    long getClusterBatches();
+}
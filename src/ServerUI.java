@@ -20,6 +20,7 @@ public class ServerUI extends JFrame implements ActionListener, WindowListener {
 
     private JButton stopStart;      // stop & start button
     private JTextArea chat, event;  // JTextArea for chat room
+    private UiLogSink chatLog, eventLog; // batched, off-thread feeds into chat and event
     private JTextField tPortNumber; // port number
     private Server server;          // server
 
@@ -47,14 +48,17 @@ public class ServerUI extends JFrame implements ActionListener, WindowListener {
 
         // construct chat room layout
         JPanel centerPanel = new JPanel(new GridLayout(2,1));
+        ServerConfig config = ServerConfig.fromSystemProperties();
         chat = new JTextArea(60,45);
         chat.setEditable(false);
+        chatLog = new UiLogSink(chat, config.uiMaxLines, config.uiQueueCapacity, config.uiFrameMillis);
         appendRoom("------------------------------------------------------------------------\n"
                 + "                                                            Chat room\n"
                 + "------------------------------------------------------------------------\n");
         centerPanel.add(new JScrollPane(chat));
         event = new JTextArea(60,45);
         event.setEditable(false);
+        eventLog = new UiLogSink(event, config.uiMaxLines, config.uiQueueCapacity, config.uiFrameMillis);
         appendEvent("------------------------------------------------------------------------\n"
                 + "                                                           Events log\n"
                 + "------------------------------------------------------------------------\n");
@@ -66,14 +70,12 @@ public class ServerUI extends JFrame implements ActionListener, WindowListener {
         setVisible(true);
     }
 
-    /** append message to the end of GUI's JTextAreas with following methods **/
+    /** append message to the end of GUI's JTextAreas with following methods (safe from any thread, never blocks) **/
     void appendRoom(String str) {
-        chat.append(str);
-        chat.setCaretPosition(chat.getText().length() - 1);
+        chatLog.append(str);
     }
     void appendEvent(String str) {
-        event.append(str);
-        event.setCaretPosition(chat.getText().length() - 1);
+        eventLog.append(str);
     }
 
     /** start/stop server on click **/
@@ -113,6 +115,8 @@ public class ServerUI extends JFrame implements ActionListener, WindowListener {
             }
             server = null;
         }
+        chatLog.stop();
+        eventLog.stop();
         dispose(); // frame
         System.exit(0);
     }
@@ -0,0 +1,146 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/***********************************************************************************
+ * Load test comparing platform and virtual client handler threads                 *
+ *                                                                                 *
+ * for each thread model an in-process server is started, a number of mostly idle  *
+ * clients connect, and one client broadcasts messages while another measures      *
+ * how long each takes to arrive; connect time, live threads, heap and latency     *
+ * are reported per model                                                          *
+ *                                                                                 *
+ *   > java ThreadModelLoadTest [connections] [messages] [port]                    *
+ *                                                                                 *
+ * (virtual threads need Java 21+; each connection uses two file descriptors in    *
+ *  this process, so raise ulimit -n for large connection counts)                  *
+ ***********************************************************************************/
+
+public class ThreadModelLoadTest {
+
+    private static final long CONNECT_MILLIS = 30000; // how long to wait for the server to listen
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 8750;
+
+        for(ServerConfig.ThreadModel model : ServerConfig.ThreadModel.values())
+            run(model, connections, messages, port++);
+    }
+
+    /** run one thread model and print its results **/
+    private static void run(ServerConfig.ThreadModel model, int connections, int messages, int port) throws Exception {
+        ServerConfig config = ServerConfig.fromSystemProperties();
+        config.port = port;
+        config.transport = ServerConfig.Transport.BLOCKING;
+        config.threadModel = model;
+        if(System.getProperty("chat.net.maxConnectionsPerSource") == null)
+            config.maxConnectionsPerSource = 0; // every client is on the loopback address
+        final Server server = new Server(config, null);
+        Thread serverThread = new Thread(new Runnable() {
+            public void run() {
+                server.start();
+            }
+        }, "LoadTestServer");
+        serverThread.start();
+        List<Socket> sockets = new ArrayList<Socket>(connections + 2);
+        try {
+            sockets.add(connect(port, "warmup").socket); // returns once the server is listening
+            measure(model, connections, messages, port, sockets);
+        }
+        finally {
+            for(Socket socket : sockets)
+                socket.close();
+            server.stop();
+            serverThread.join();
+        }
+    }
+
+    /** connect the idle clients, time the broadcasts and print the results **/
+    private static void measure(ServerConfig.ThreadModel model, int connections, int messages, int port,
+            List<Socket> sockets) throws Exception {
+        System.gc();
+        long heapBefore = usedHeap();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        // idle clients: complete the handshake and never read
+        long connectStart = System.nanoTime();
+        for(int i = 0; i < connections; ++i)
+            sockets.add(connect(port, "idle" + i).socket);
+        long connectNanos = System.nanoTime() - connectStart;
+
+        System.gc();
+        long heapAfter = usedHeap();
+        int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        // one sender, one receiver timing each broadcast round trip
+        Client sender = connect(port, "sender");
+        sockets.add(sender.socket);
+        Client receiver = connect(port, "receiver");
+        sockets.add(receiver.socket);
+        long[] latencies = new long[messages];
+        for(int i = 0; i < messages; ++i) {
+            String marker = "load-" + i;
+            long start = System.nanoTime();
+            sender.out.writeObject(new ChatMessage(ChatMessage.MESSAGE, marker));
+            sender.out.flush();
+            while(!((String) receiver.in.readObject()).contains(marker)) {}
+            latencies[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+
+        System.out.println();
+        System.out.println("==== " + model + " threads, " + connections + " idle connections ====");
+        System.out.println("connect all:      " + connectNanos / 1000000 + " ms");
+        System.out.println("live threads:     +" + (threadsAfter - threadsBefore)
+                + " (virtual threads are not counted by the JVM thread count)");
+        System.out.println("heap used:        +" + (heapAfter - heapBefore) / (1024 * 1024) + " MB");
+        if(messages > 0) {
+            System.out.println("broadcast p50:    " + latencies[messages / 2] / 1000 + " us");
+            System.out.println("broadcast p99:    " + latencies[Math.min(messages - 1, messages * 99 / 100)] / 1000 + " us");
+        }
+    }
+
+    /** a test client's socket and object streams after the username handshake **/
+    private static class Client {
+        Socket socket;
+        ObjectOutputStream out;
+        ObjectInputStream in;
+    }
+
+    /** log in, retrying while the server is not listening yet **/
+    private static Client connect(int port, String username) throws IOException, InterruptedException {
+        Client client = new Client();
+        long deadline = System.currentTimeMillis() + CONNECT_MILLIS;
+        while(true) {
+            client.socket = new Socket();
+            try {
+                client.socket.connect(new InetSocketAddress("localhost", port));
+                break;
+            }
+            catch(ConnectException e) {
+                client.socket.close();
+                if(System.currentTimeMillis() > deadline)
+                    throw e;
+                Thread.sleep(100);
+            }
+        }
+        client.socket.setTcpNoDelay(true); // otherwise Nagle delays each sender write behind the last one's ACK
+        client.out = new ObjectOutputStream(client.socket.getOutputStream());
+        client.out.writeObject(username);
+        client.out.flush();
+        client.in = new ObjectInputStream(client.socket.getInputStream());
+        return client;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
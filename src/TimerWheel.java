@@ -0,0 +1,90 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/***********************************************************************************
+ * Hashed timer wheel that visits every registered item once per revolution        *
+ *                                                                                 *
+ * items are spread over a fixed ring of slots; one daemon thread advances one     *
+ * slot per tick and runs the check on each item in it, so thousands of            *
+ * connections are watched by a single thread with no per-item timers to create    *
+ * or cancel. Deadlines are only as precise as one revolution                      *
+ ***********************************************************************************/
+
+final class TimerWheel<T> {
+
+    /** looks at one item; false takes it off the wheel **/
+    interface Check<T> {
+        boolean check(T item, long now);
+    }
+
+    private static final int SLOTS = 64;
+
+    private final String name;
+    private final long tickNanos;
+    private final Check<T> check;
+    private final Set<T>[] slots;
+    private ScheduledExecutorService ticker;
+    private int cursor; // next slot to visit (ticker thread only)
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    TimerWheel(String name, long revolutionMillis, Check<T> check) {
+        this.name = name;
+        this.tickNanos = Math.max(1, TimeUnit.MILLISECONDS.toNanos(revolutionMillis) / SLOTS);
+        this.check = check;
+        slots = new Set[SLOTS];
+        for(int i = 0; i < SLOTS; ++i)
+            slots[i] = ConcurrentHashMap.<T>newKeySet();
+    }
+
+    void add(T item) {
+        slot(item).add(item);
+    }
+
+    void remove(T item) {
+        slot(item).remove(item);
+    }
+
+    private Set<T> slot(T item) {
+        return slots[(item.hashCode() & Integer.MAX_VALUE) % SLOTS];
+    }
+
+    void start() {
+        ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        ticker.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                tick();
+            }
+        }, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+    }
+
+    void stop() {
+        if(ticker != null)
+            ticker.shutdownNow();
+    }
+
+    /** check every item in the current slot and move on to the next **/
+    private void tick() {
+        Set<T> slot = slots[cursor];
+        cursor = (cursor + 1) % SLOTS;
+        long now = System.nanoTime();
+        for(T item : slot) {
+            try {
+                if(!check.check(item, now))
+                    slot.remove(item);
+            }
+            catch(RuntimeException e) {
+                ServerLog.warn(name + " check failed: " + e); // keep the ticker running
+            }
+        }
+    }
+}
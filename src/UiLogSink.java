@@ -0,0 +1,71 @@
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***********************************************************************************
+ * Feeds lines from server threads into a JTextArea without slowing them down      *
+ *                                                                                 *
+ * append() only offers the line to a bounded queue, so it never blocks and never  *
+ * touches Swing; a Swing timer drains the queue on the event dispatch thread once *
+ * per frame with a single append, then trims the oldest lines beyond maxLines.    *
+ * When the GUI falls behind, timer ticks coalesce and lines that do not fit in    *
+ * the queue are dropped and counted                                               *
+ ***********************************************************************************/
+
+final class UiLogSink implements ActionListener {
+
+    private final JTextArea area;
+    private final int maxLines; // lines kept in the text area, oldest trimmed first
+    private final ArrayBlockingQueue<String> pending; // lines waiting for the next frame
+    private final AtomicLong dropped = new AtomicLong(); // lines lost to a full queue since the last frame
+    private final Timer timer;
+
+    UiLogSink(JTextArea area, int maxLines, int queueCapacity, int frameMillis) {
+        this.area = area;
+        this.maxLines = Math.max(1, maxLines);
+        pending = new ArrayBlockingQueue<String>(Math.max(1, queueCapacity));
+        timer = new Timer(Math.max(1, frameMillis), this);
+        timer.setCoalesce(true); // a lagging EDT skips frames rather than queueing them
+        timer.start();
+    }
+
+    /** queue text for the next frame, from any thread; dropped if the queue is full **/
+    void append(String text) {
+        if(!pending.offer(text))
+            dropped.incrementAndGet();
+    }
+
+    /** stop rendering (lines still queued are discarded) **/
+    void stop() {
+        timer.stop();
+    }
+
+    /** one frame on the EDT: append everything queued at once, then trim to maxLines **/
+    public void actionPerformed(ActionEvent e) {
+        long lost = dropped.getAndSet(0);
+        if(pending.isEmpty() && lost == 0)
+            return;
+        StringBuilder sb = new StringBuilder();
+        if(lost > 0)
+            sb.append("... ").append(lost).append(" lines not shown, the display fell behind ...\n");
+        for(int n = pending.size(); n > 0; --n) {
+            String text = pending.poll();
+            if(text == null)
+                break;
+            sb.append(text);
+        }
+        area.append(sb.toString());
+
+        int excess = area.getLineCount() - maxLines;
+        if(excess > 0) {
+            try {
+                area.replaceRange(null, 0, area.getLineStartOffset(excess));
+            }
+            catch(BadLocationException ble) {}
+        }
+        area.setCaretPosition(area.getDocument().getLength());
+    }
+}
@@ -0,0 +1,152 @@
+import javax.management.JMX;
+import javax.management.ObjectName;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/***********************************************************************************
+ * Test that clients which never read are evicted by the write timeout             *
+ *                                                                                 *
+ * an in-process server with a one second write timeout is started; in each round  *
+ * a client logs in and never reads while a second client broadcasts until the     *
+ * first one's socket is full, and the server's evictedWriteTimeout count (read    *
+ * over JMX) must go up; the stuck clients stay connected and unread throughout,   *
+ * so the later rounds only pass if closing an evicted client did not block the    *
+ * liveness wheel, and the server must then stop with them still connected         *
+ *                                                                                 *
+ *   > java WriteTimeoutTest [rounds] [port]                                       *
+ ***********************************************************************************/
+
+public class WriteTimeoutTest {
+
+    private static final long CONNECT_MILLIS = 30000; // how long to wait for the server to listen
+    private static final long EVICT_MILLIS = 5000; // how long past the write timeout an eviction may take
+    private static final long STOP_MILLIS = 10000; // how long the server may take to stop
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8760;
+
+        ServerConfig config = ServerConfig.fromSystemProperties();
+        config.port = port;
+        config.transport = ServerConfig.Transport.BLOCKING;
+        config.writeTimeoutSeconds = 1;
+        config.heartbeatCheckMillis = 100;
+        config.slowConsumer = ServerConfig.SlowConsumer.DROP; // so only the write timeout removes the client
+        config.socketSendBufferBytes = 4096; // fill the socket with little data
+        config.rateChatPerSecond = 0; // the sender runs far above a person's typing rate
+        config.consoleLevel = ServerLog.Level.WARN; // not a console line per message
+        config.metricsJmx = true;
+        if(System.getProperty("chat.net.maxConnectionsPerSource") == null)
+            config.maxConnectionsPerSource = 0; // every client is on the loopback address
+        final Server server = new Server(config, null);
+        Thread serverThread = new Thread(new Runnable() {
+            public void run() {
+                server.start();
+            }
+        }, "WriteTimeoutTestServer");
+        serverThread.start();
+
+        int failed = 0;
+        List<Socket> sockets = new ArrayList<Socket>();
+        try {
+            Client sender = connect(port, "sender", 0);
+            sockets.add(sender.socket);
+            drain(sender); // the sender's own broadcasts come back to it
+            ServerMetricsMBean metrics = JMX.newMBeanProxy(ManagementFactory.getPlatformMBeanServer(),
+                    new ObjectName("chat:type=Server,port=" + port), ServerMetricsMBean.class);
+            for(int round = 1; round <= rounds && failed == 0; ++round) {
+                sockets.add(connect(port, "stuck" + round, 4096).socket);
+                long start = System.nanoTime();
+                fill(sender, config.writeTimeoutSeconds * 1000L + 500);
+                long deadline = System.currentTimeMillis() + EVICT_MILLIS;
+                while(metrics.getEvictedWriteTimeout() < round && System.currentTimeMillis() < deadline)
+                    Thread.sleep(50);
+                boolean evicted = metrics.getEvictedWriteTimeout() >= round;
+                System.out.println("round " + round + ": " + (evicted ? "evicted" : "NOT evicted")
+                        + " after " + (System.nanoTime() - start) / 1000000 + " ms");
+                if(!evicted)
+                    ++failed;
+            }
+        }
+        finally {
+            server.stop();
+            serverThread.join(STOP_MILLIS);
+            if(serverThread.isAlive()) {
+                System.out.println("server did not stop within " + STOP_MILLIS + " ms");
+                ++failed;
+            }
+            for(Socket socket : sockets)
+                socket.close();
+        }
+        System.out.println(failed == 0 ? "PASSED" : "FAILED");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    /** broadcast long lines for millis, well past the point a client that never reads stops taking them **/
+    private static void fill(Client sender, long millis) throws IOException, InterruptedException {
+        StringBuilder line = new StringBuilder();
+        while(line.length() < 4000)
+            line.append("fill the socket of the client that never reads ");
+        ChatMessage message = new ChatMessage(ChatMessage.MESSAGE, line.toString());
+        long end = System.currentTimeMillis() + millis;
+        while(System.currentTimeMillis() < end) {
+            sender.out.writeObject(message);
+            sender.out.reset();
+            sender.out.flush();
+            Thread.sleep(5);
+        }
+    }
+
+    /** keep reading a client's stream on a daemon thread so it never holds the server back **/
+    private static void drain(final Client client) {
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                byte[] buffer = new byte[8192];
+                try {
+                    InputStream in = client.socket.getInputStream();
+                    while(in.read(buffer) >= 0) {}
+                }
+                catch(IOException e) {} // closed
+            }
+        }, "WriteTimeoutTestDrain");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /** a test client's socket and object output stream after the username handshake **/
+    private static class Client {
+        Socket socket;
+        ObjectOutputStream out;
+    }
+
+    /** log in (retrying until the server listens), with a small receive buffer if receiveBytes > 0 **/
+    private static Client connect(int port, String username, int receiveBytes) throws IOException, InterruptedException {
+        Client client = new Client();
+        long deadline = System.currentTimeMillis() + CONNECT_MILLIS;
+        while(true) {
+            client.socket = new Socket();
+            if(receiveBytes > 0)
+                client.socket.setReceiveBufferSize(receiveBytes);
+            try {
+                client.socket.connect(new InetSocketAddress("localhost", port));
+                break;
+            }
+            catch(ConnectException e) {
+                client.socket.close();
+                if(System.currentTimeMillis() > deadline)
+                    throw e;
+                Thread.sleep(100);
+            }
+        }
+        client.socket.setTcpNoDelay(true);
+        client.out = new ObjectOutputStream(client.socket.getOutputStream());
+        client.out.writeObject(username);
+        client.out.flush();
+        return client;
+    }
+}